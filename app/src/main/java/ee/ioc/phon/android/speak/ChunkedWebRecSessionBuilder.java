@@ -19,9 +19,7 @@ package ee.ioc.phon.android.speak;
 import android.app.PendingIntent;
 import android.content.ComponentName;
 import android.content.Context;
-import android.content.SharedPreferences;
 import android.os.Bundle;
-import android.preference.PreferenceManager;
 import android.speech.RecognizerIntent;
 
 import java.net.MalformedURLException;
@@ -30,11 +28,11 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 
+import ee.ioc.phon.android.speak.service.ServiceConfig;
 import ee.ioc.phon.android.speak.utils.Utils;
 import ee.ioc.phon.android.speechutils.Extras;
 import ee.ioc.phon.android.speechutils.utils.BundleUtils;
 import ee.ioc.phon.android.speechutils.utils.IntentUtils;
-import ee.ioc.phon.android.speechutils.utils.PreferenceUtils;
 import ee.ioc.phon.netspeechapi.recsession.ChunkedWebRecSession;
 
 /**
@@ -61,12 +59,21 @@ import ee.ioc.phon.netspeechapi.recsession.ChunkedWebRecSession;
  * 		name of the target language (in case of GF grammars)
  * nbest
  * 		number of requested hypothesis
+ * deadline
+ * 		time (in milliseconds) that the client waits for the final result after the end of the audio
  * </pre>
  */
 public class ChunkedWebRecSessionBuilder {
 
     public static final int MAX_RESULTS = 5;
 
+    /**
+     * Integer. Max time (in milliseconds) to wait for the final result after the end of the audio.
+     * If the time runs out, then the best partial result is returned as the final result.
+     * 0 means no deadline. If not set, then the deadline is taken from the settings.
+     */
+    public static final String EXTRA_DEADLINE = "ee.ioc.phon.android.extra.DEADLINE";
+
     private final Context mContext;
 
     private URL mWsUrl;
@@ -80,8 +87,13 @@ public class ChunkedWebRecSessionBuilder {
     private String mUserAgentComment;
     private String mDeviceId;
     private String mCaller;
+    private int mDeadline;
+    private boolean mIsRespectLocale;
 
-    public ChunkedWebRecSessionBuilder(Context context, Bundle extras, ComponentName callingActivity) throws MalformedURLException {
+    /**
+     * @param config snapshot of the settings, i.e. the settings are not read by the builder
+     */
+    public ChunkedWebRecSessionBuilder(Context context, Bundle extras, ComponentName callingActivity, ServiceConfig config) throws MalformedURLException {
         mContext = context;
 
         if (extras == null) {
@@ -90,8 +102,8 @@ public class ChunkedWebRecSessionBuilder {
 
         if (Log.DEBUG) Log.i(BundleUtils.ppBundle(extras));
 
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        mDeviceId = PreferenceUtils.getUniqueId(prefs);
+        mDeviceId = config.getDeviceId();
+        mIsRespectLocale = config.isRespectLocale();
 
         PendingIntent pendingIntent = IntentUtils.getPendingIntent(extras);
 
@@ -107,9 +119,9 @@ public class ChunkedWebRecSessionBuilder {
 
         // Calling the constructor modifies the database
         PackageNameRegistry wrapper = new PackageNameRegistry(context, mCaller);
-        String urlService = prefs.getString(context.getString(R.string.keyHttpServer), context.getString(R.string.defaultHttpServer));
-        setFromExtras(extras, wrapper, urlService);
+        setFromExtras(extras, wrapper, config.getHttpServer());
         mNbest = makeNbest(extras);
+        mDeadline = extras.getInt(EXTRA_DEADLINE, config.getDeadline());
     }
 
 
@@ -161,6 +173,13 @@ public class ChunkedWebRecSessionBuilder {
         return mPartialResults;
     }
 
+    /**
+     * @return deadline in milliseconds, or 0 if there is no deadline
+     */
+    public int getDeadline() {
+        return mDeadline;
+    }
+
 
     public ChunkedWebRecSession build() {
         ChunkedWebRecSession recSession = new ChunkedWebRecSession(mWsUrl, mLmUrl, mGrammarTargetLang, mNbest);
@@ -190,6 +209,10 @@ public class ChunkedWebRecSessionBuilder {
             recSession.setParam("partial", "true");
         }
 
+        if (mDeadline > 0) {
+            recSession.setParam("deadline", "" + mDeadline);
+        }
+
         return recSession;
     }
 
@@ -206,6 +229,7 @@ public class ChunkedWebRecSessionBuilder {
         list.add(mDeviceId);
         list.add(mUserAgentComment);
         list.add(mPartialResults + "");
+        list.add(mDeadline + "");
         return list;
     }
 
@@ -311,8 +335,7 @@ public class ChunkedWebRecSessionBuilder {
             return selectedLanguage.toString();
         }
 
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
-        if (prefs.getBoolean(mContext.getString(R.string.keyRespectLocale), false)) {
+        if (mIsRespectLocale) {
             Locale locale = Locale.getDefault();
             if (locale != null) {
                 return locale.toString();
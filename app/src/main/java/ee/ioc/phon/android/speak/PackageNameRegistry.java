@@ -16,6 +16,7 @@
 
 package ee.ioc.phon.android.speak;
 
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
@@ -25,6 +26,7 @@ import android.net.Uri;
 import ee.ioc.phon.android.speak.provider.App;
 import ee.ioc.phon.android.speak.provider.Grammar;
 import ee.ioc.phon.android.speak.provider.Server;
+import ee.ioc.phon.android.speak.utils.TaskScheduler;
 import ee.ioc.phon.android.speak.utils.Utils;
 
 /**
@@ -34,6 +36,8 @@ import ee.ioc.phon.android.speak.utils.Utils;
  * and ignores the database.
  * If the package name is not <code>null</code> and not in the database, then adds it there.
  * Increases the package counter (i.e. a number that shows how many times this lookup has been called).
+ * The database is written in the background (in the IO lane), i.e. only the lookup itself
+ * delays the start of the recognition.
  *
  * <p>If the grammar ID is 0 then getGrammarUrl() returns <code>null</code>, otherwise returns the grammar URL.
  * If the server ID is 0 then getServerUrl() returns the default server URL, otherwise the listed URL.</p>
@@ -68,17 +72,19 @@ public class PackageNameRegistry {
                 long id = cursor.getLong(cursor.getColumnIndex(App.Columns._ID));
                 int count = cursor.getInt(cursor.getColumnIndex(App.Columns.COUNT));
 
-                ContentValues values = new ContentValues();
+                final ContentValues values = new ContentValues();
                 values.put(App.Columns.COUNT, ++count);
-                Uri appUri = ContentUris.withAppendedId(App.Columns.CONTENT_URI, id);
-                mContext.getContentResolver().update(appUri, values, null, null);
+                final Uri appUri = ContentUris.withAppendedId(App.Columns.CONTENT_URI, id);
+                final ContentResolver resolver = mContext.getContentResolver();
+                TaskScheduler.post(TaskScheduler.Lane.IO, new TaskScheduler.Token(), () -> resolver.update(appUri, values, null, null));
             } else {
                 mGrammarId = 0;
                 mServerId = 0;
-                ContentValues values = new ContentValues();
+                final ContentValues values = new ContentValues();
                 values.put(App.Columns.FNAME, packageName);
                 values.put(App.Columns.COUNT, 1);
-                mContext.getContentResolver().insert(App.Columns.CONTENT_URI, values);
+                final ContentResolver resolver = mContext.getContentResolver();
+                TaskScheduler.post(TaskScheduler.Lane.IO, new TaskScheduler.Token(), () -> resolver.insert(App.Columns.CONTENT_URI, values));
             }
             cursor.close();
         }
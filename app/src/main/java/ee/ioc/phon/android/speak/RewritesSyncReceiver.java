@@ -0,0 +1,31 @@
+package ee.ioc.phon.android.speak;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+import ee.ioc.phon.android.speak.utils.RewritesSync;
+import ee.ioc.phon.android.speak.utils.TaskScheduler;
+
+/**
+ * <p>Refreshes the subscribed rewrite tables, triggered by the alarm that is set
+ * by {@link RewritesSync#schedule}.</p>
+ */
+public class RewritesSyncReceiver extends BroadcastReceiver {
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        final Context appContext = context.getApplicationContext();
+        final PendingResult result = goAsync();
+        boolean isPosted = TaskScheduler.post(TaskScheduler.Lane.BACKGROUND, new TaskScheduler.Token(), () -> {
+            try {
+                RewritesSync.syncAll(appContext);
+            } finally {
+                result.finish();
+            }
+        });
+        if (!isPosted) {
+            result.finish();
+        }
+    }
+}
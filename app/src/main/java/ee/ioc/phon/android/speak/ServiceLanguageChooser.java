@@ -29,7 +29,7 @@ public class ServiceLanguageChooser {
     private final Context mContext;
     private final SharedPreferences mPrefs;
     private final List<String> mCombosAsList;
-    private final CallerInfo mCallerInfo;
+    private CallerInfo mCallerInfo;
     private final int mKeyCurrentCombo;
     private int mIndex;
     private SpeechRecognizer mSpeechRecognizer;
@@ -113,6 +113,15 @@ public class ServiceLanguageChooser {
         update();
     }
 
+    /**
+     * Updates the caller (e.g. the editor that was switched to), without recreating the recognizer.
+     * Assumes that the extras (which determine the list of combos) have not changed.
+     */
+    public void setCallerInfo(CallerInfo callerInfo) {
+        mCallerInfo = callerInfo;
+        mIntent = Utils.getRecognizerIntent(RecognizerIntent.ACTION_RECOGNIZE_SPEECH, mCallerInfo, mLanguage);
+    }
+
     public String getCombo() {
         return mCombosAsList.get(mIndex);
     }
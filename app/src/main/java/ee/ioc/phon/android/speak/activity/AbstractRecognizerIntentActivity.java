@@ -29,6 +29,7 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.provider.MediaStore;
 import android.speech.RecognizerIntent;
@@ -57,6 +58,9 @@ import java.util.Set;
 import ee.ioc.phon.android.speak.Log;
 import ee.ioc.phon.android.speak.R;
 import ee.ioc.phon.android.speak.provider.FileContentProvider;
+import ee.ioc.phon.android.speak.utils.MemoizingRewriter;
+import ee.ioc.phon.android.speak.utils.Metrics;
+import ee.ioc.phon.android.speak.utils.SpeculativeFetch;
 import ee.ioc.phon.android.speak.utils.Utils;
 import ee.ioc.phon.android.speechutils.Extras;
 import ee.ioc.phon.android.speechutils.RawAudioRecorder;
@@ -85,6 +89,8 @@ public abstract class AbstractRecognizerIntentActivity extends Activity {
 
     private Iterable<UtteranceRewriter> mRewriters;
 
+    private MemoizingRewriter mMemoizingRewriter;
+
     private static SparseIntArray mErrorCodesServiceToIntent = IntentUtils.createErrorCodesServiceToIntent();
 
     private List<byte[]> mBufferList = new ArrayList<>();
@@ -108,6 +114,8 @@ public abstract class AbstractRecognizerIntentActivity extends Activity {
 
     private boolean mIsAutoStart;
 
+    private boolean mIsSpeculativeFetch;
+
     private TtsProvider mTts;
 
     abstract void showError(String msg);
@@ -280,6 +288,10 @@ public abstract class AbstractRecognizerIntentActivity extends Activity {
 
         mVoicePrompt = mExtras.getString(Extras.EXTRA_VOICE_PROMPT);
         mIsStoreAudio = mExtras.getBoolean(Extras.EXTRA_GET_AUDIO) || MediaStore.Audio.Media.RECORD_SOUND_ACTION.equals(getIntent().getAction());
+        // The recognition service delivers the audio buffers only if asked to do so
+        if (mIsStoreAudio) {
+            mExtras.putBoolean(Extras.EXTRA_GET_AUDIO, true);
+        }
 
         mIsReturnErrors = mExtras.getBoolean(Extras.EXTRA_RETURN_ERRORS,
                 PreferenceUtils.getPrefBoolean(prefs, getResources(), R.string.keyReturnErrors, R.bool.defaultReturnErrors));
@@ -291,6 +303,8 @@ public abstract class AbstractRecognizerIntentActivity extends Activity {
                         || mExtras.getBoolean(Extras.EXTRA_AUTO_START,
                         PreferenceUtils.getPrefBoolean(prefs, getResources(), R.string.keyAutoStart, R.bool.defaultAutoStart));
 
+        mIsSpeculativeFetch = PreferenceUtils.getPrefBoolean(prefs, getResources(), R.string.keySpeculativeFetch, R.bool.defaultSpeculativeFetch);
+
         mMessageHandler = new SimpleMessageHandler(this);
         mErrorMessages = createErrorMessages();
     }
@@ -635,7 +649,6 @@ public abstract class AbstractRecognizerIntentActivity extends Activity {
     }
 
     protected void setRewriters(String language, ComponentName service) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
         Bundle extras = getExtras();
         String[] rewrites = null;
         Object rewritesAsObject = extras.get(Extras.EXTRA_RESULT_REWRITES);
@@ -646,7 +659,41 @@ public abstract class AbstractRecognizerIntentActivity extends Activity {
                 rewrites = new String[]{(String) rewritesAsObject};
             }
         }
-        mRewriters = Utils.genRewriters(prefs, getResources(), rewrites, language, service, getCallingActivity());
+        mRewriters = Utils.genRewriters(this, rewrites, language, service, getCallingActivity());
+        if (mMemoizingRewriter != null) {
+            mMemoizingRewriter.close();
+        }
+        // The rewrites based on EXTRAs come first, i.e. the memoized rewrites are keyed by the recognized text
+        final List<UtteranceRewriter> extrasRewriters = getExtrasRewriters();
+        final Iterable<UtteranceRewriter> rewriters = mRewriters;
+        mMemoizingRewriter = new MemoizingRewriter(() -> {
+            List<UtteranceRewriter> list = new ArrayList<>(extrasRewriters);
+            list.addAll(Utils.makeList(rewriters));
+            return list.iterator();
+        });
+        // The tables are read from the database, which is not done on the main thread
+        mMemoizingRewriter.load();
+    }
+
+    /**
+     * Rewrites the given partial results in the background, so that the final result
+     * does not need to be rewritten if it equals a recent partial result.
+     * Also starts the URL fetches of the rewrite rules that match the partial result
+     * (if enabled in the settings), so that the response is available when the final result
+     * launches the fetch.
+     */
+    protected void prepareRewrites(List<String> results) {
+        if (mMemoizingRewriter == null) {
+            return;
+        }
+        if (mIsSpeculativeFetch) {
+            final Context context = getApplicationContext();
+            final Bundle extras = mExtras;
+            mMemoizingRewriter.prepare(results, (texts, rewriters) ->
+                    SpeculativeFetch.speculate(context, rewriters, extras, texts.get(0)));
+        } else {
+            mMemoizingRewriter.prepare(results, null);
+        }
     }
 
     /**
@@ -655,16 +702,21 @@ public abstract class AbstractRecognizerIntentActivity extends Activity {
      * Note: ignores rewrite commands such as "activity".
      */
     private List<String> rewriteResults(List<String> results) {
-        List<String> newResults = rewriteResultsWithExtras(results);
-        if (mRewriters == null) {
-            return newResults;
-        }
-        for (UtteranceRewriter ur : mRewriters) {
-            // Skip null, i.e. a case where a rewrites name did not resolve to a table.
-            if (ur != null) {
-                newResults = ur.rewrite(newResults);
+        Bundle extras = getExtras();
+        String utterance = extras.getString(Extras.EXTRA_RESULT_UTTERANCE, null);
+        String replacement = extras.getString(Extras.EXTRA_RESULT_REPLACEMENT, null);
+        if (utterance != null && replacement != null) {
+            toast(utterance + "->" + replacement);
+        }
+        if (mMemoizingRewriter == null) {
+            for (UtteranceRewriter utteranceRewriter : getExtrasRewriters()) {
+                results = utteranceRewriter.rewrite(results);
             }
+            return results;
         }
+        long startTime = SystemClock.uptimeMillis();
+        List<String> newResults = mMemoizingRewriter.rewrite(results);
+        Metrics.sample("rewrite.final", SystemClock.uptimeMillis() - startTime);
         return newResults;
     }
 
@@ -677,25 +729,23 @@ public abstract class AbstractRecognizerIntentActivity extends Activity {
     }
 
     /**
-     * Rewrite results based on EXTRAs.
+     * Rewriters based on EXTRAs, to be applied to the results before the other rewriters.
      * First, the utterance-replacement pair (if exists) is applied to the results.
      * Then, the complete rewrite table (with a header) (if exists) is applied to the results.
      */
-    private List<String> rewriteResultsWithExtras(List<String> results) {
+    private List<UtteranceRewriter> getExtrasRewriters() {
         Bundle extras = getExtras();
         String rewritesAsStr = extras.getString(Extras.EXTRA_RESULT_REWRITES_AS_STR, null);
         String utterance = extras.getString(Extras.EXTRA_RESULT_UTTERANCE, null);
         String replacement = extras.getString(Extras.EXTRA_RESULT_REPLACEMENT, null);
+        List<UtteranceRewriter> rewriters = new ArrayList<>();
         if (utterance != null && replacement != null) {
-            toast(utterance + "->" + replacement);
-            UtteranceRewriter utteranceRewriter = new UtteranceRewriter(utterance + "\t" + replacement, HEADER_REWRITES_COL2);
-            results = utteranceRewriter.rewrite(results);
+            rewriters.add(new UtteranceRewriter(utterance + "\t" + replacement, HEADER_REWRITES_COL2));
         }
         if (rewritesAsStr != null) {
-            UtteranceRewriter utteranceRewriter = new UtteranceRewriter(rewritesAsStr);
-            results = utteranceRewriter.rewrite(results);
+            rewriters.add(new UtteranceRewriter(rewritesAsStr));
         }
-        return results;
+        return rewriters;
     }
 
     /*
@@ -19,7 +19,6 @@ package ee.ioc.phon.android.speak.activity;
 import android.app.Activity;
 import android.content.Intent;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.widget.Toast;
@@ -27,8 +26,10 @@ import android.widget.Toast;
 import java.io.IOException;
 import java.util.Map;
 
+import ee.ioc.phon.android.speak.utils.HttpClient;
+import ee.ioc.phon.android.speak.utils.SpeculativeFetch;
+import ee.ioc.phon.android.speak.utils.TaskScheduler;
 import ee.ioc.phon.android.speechutils.utils.BundleUtils;
-import ee.ioc.phon.android.speechutils.utils.HttpUtils;
 import ee.ioc.phon.android.speechutils.utils.IntentUtils;
 
 /**
@@ -57,9 +58,11 @@ public class FetchUrlActivity extends Activity {
                 if (bundle == null) {
                     bundle = new Bundle();
                 }
-                HttpTask task = new HttpTask(bundle);
-                task.execute(uri.toString());
-                return;
+                HttpClient.init(this);
+                HttpTask task = new HttpTask(bundle, uri.toString());
+                if (TaskScheduler.post(TaskScheduler.Lane.IO, new TaskScheduler.Token(), task)) {
+                    return;
+                }
             }
         }
         finish();
@@ -69,15 +72,17 @@ public class FetchUrlActivity extends Activity {
         Toast.makeText(getApplicationContext(), message, Toast.LENGTH_LONG).show();
     }
 
-    private class HttpTask extends AsyncTask<String, Void, String> {
+    private class HttpTask implements Runnable {
 
         private final Bundle mBundle;
+        private final String mUrl;
         private final String mHttpMethod;
         private final String mHttpBody;
         private final Map<String, String> mHttpHeader;
 
-        private HttpTask(@NonNull Bundle bundle) {
+        private HttpTask(@NonNull Bundle bundle, String url) {
             mBundle = bundle;
+            mUrl = url;
             mHttpMethod = bundle.getString(EXTRA_HTTP_METHOD, "GET");
             mHttpBody = bundle.getString(EXTRA_HTTP_BODY);
             // Mapping HTTP_HEADER bundle to a Map<String, String>,
@@ -86,16 +91,21 @@ public class FetchUrlActivity extends Activity {
         }
 
         @Override
-        protected String doInBackground(String... urls) {
-            try {
-                return HttpUtils.fetchUrl(urls[0], mHttpMethod, mHttpBody, mHttpHeader);
-            } catch (IOException e) {
-                return "Unable to retrieve " + urls[0] + ": " + e.getLocalizedMessage();
+        public void run() {
+            // The response might have been fetched already, based on a partial result
+            String result = SpeculativeFetch.take(mUrl, mHttpMethod, mHttpBody, mHttpHeader);
+            if (result == null) {
+                try {
+                    result = HttpClient.fetch(mUrl, mHttpMethod, mHttpBody, mHttpHeader);
+                } catch (IOException e) {
+                    result = "Unable to retrieve " + mUrl + ": " + e.getLocalizedMessage();
+                }
             }
+            final String finalResult = result;
+            runOnUiThread(() -> onResult(finalResult));
         }
 
-        @Override
-        protected void onPostExecute(String result) {
+        private void onResult(String result) {
             // TODO: handle errors differently
             String newResult = IntentUtils.rewriteResultWithExtras(FetchUrlActivity.this, mBundle, result);
             if (newResult != null) {
@@ -17,22 +17,32 @@
 package ee.ioc.phon.android.speak.activity;
 
 import android.app.Activity;
+import android.content.ContentResolver;
+import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.os.AsyncTask;
+import android.content.pm.ProviderInfo;
+import android.net.Uri;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.text.TextUtils;
 import android.widget.Toast;
 
+import org.json.JSONException;
+
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.HashSet;
+import java.io.InputStream;
+import java.util.List;
 
 import ee.ioc.phon.android.speak.Executable;
+import ee.ioc.phon.android.speak.Log;
 import ee.ioc.phon.android.speak.R;
+import ee.ioc.phon.android.speak.provider.RewritesStore;
+import ee.ioc.phon.android.speak.utils.HttpClient;
+import ee.ioc.phon.android.speak.utils.PreferenceImporter;
+import ee.ioc.phon.android.speak.utils.TaskScheduler;
 import ee.ioc.phon.android.speak.utils.Utils;
-import ee.ioc.phon.android.speechutils.utils.HttpUtils;
 import ee.ioc.phon.android.speechutils.utils.PreferenceUtils;
 
 
@@ -40,6 +50,9 @@ import ee.ioc.phon.android.speechutils.utils.PreferenceUtils;
  * Simple activity for showing and changing the stored preferences.
  * Meant mostly to be able to change the settings on a device with limited GUI
  * (e.g. Android Things, Android Wear), using adb or rewrite rules.
+ * A list of preferences (EXTRA_PREFS, or a content URI as the data of the intent, which the caller
+ * must grant with FLAG_GRANT_READ_URI_PERMISSION) is imported at once (see PreferenceImporter),
+ * and a summary is returned as the result.
  * TODO: maybe implement it instead as a service or broadcast receiver
  * TODO: allow GUI to be skipped with EXTRA SKIP_UI but then require a custom dangerous permission
  * TODO: set val as a return value instead of toasting it
@@ -51,6 +64,15 @@ public class GetPutPreferenceActivity extends Activity {
     public static final String EXTRA_KEY = "key";
     public static final String EXTRA_VAL = "val";
     public static final String EXTRA_IS_URL = "is_url";
+    public static final String EXTRA_PREFS = "prefs";
+
+    // Summary of the import of a list of preferences, returned as the result
+    public static final String EXTRA_RESULT_PUT_COUNT = "put_count";
+    public static final String EXTRA_RESULT_REMOVE_COUNT = "remove_count";
+    public static final String EXTRA_RESULT_ERRORS = "errors";
+
+    // Max length of the imported list of preferences (in chars)
+    private static final int MAX_IMPORT_LENGTH = 1024 * 1024;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -64,6 +86,31 @@ public class GetPutPreferenceActivity extends Activity {
         }
 
         Bundle extras = intent.getExtras();
+        Uri uri = intent.getData();
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(GetPutPreferenceActivity.this);
+        boolean skipUi = PreferenceUtils.getPrefBoolean(prefs, getResources(), R.string.keyGetPutPrefSkipUi, R.bool.defaultGetPutPrefSkipUi);
+
+        if (uri != null || (extras != null && extras.containsKey(EXTRA_PREFS))) {
+            if (uri != null && !isGrantedContentUri(intent, uri)) {
+                Log.i("GetPutPreferenceActivity: not a granted content URI: " + uri);
+                toast(getString(R.string.errorPrefImport));
+                finish();
+                return;
+            }
+            final String json = extras == null ? null : extras.getString(EXTRA_PREFS);
+            if (skipUi) {
+                importPrefs(uri, json);
+            } else {
+                Utils.getYesNoDialog(
+                        this,
+                        getString(R.string.taskPrefImport),
+                        () -> importPrefs(uri, json),
+                        this::finish
+                ).show();
+            }
+            return;
+        }
 
         if (extras == null) {
             finish();
@@ -77,9 +124,6 @@ public class GetPutPreferenceActivity extends Activity {
             return;
         }
 
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(GetPutPreferenceActivity.this);
-        boolean skipUi = PreferenceUtils.getPrefBoolean(prefs, getResources(), R.string.keyGetPutPrefSkipUi, R.bool.defaultGetPutPrefSkipUi);
-
         // If EXTRA_VAL is provided then change the value of the key,
         // if not then show the value of the key.
         if (extras.containsKey(EXTRA_VAL)) {
@@ -113,6 +157,29 @@ public class GetPutPreferenceActivity extends Activity {
                             createExecutablePut(prefs, key, val), skipUi);
                 }
             }
+        } else {
+            showValue(prefs, key);
+        }
+    }
+
+    /**
+     * Shows the value of the key. The rewrite tables (keyRewritesMap/NAME) are not in the
+     * SharedPreferences, they are read from RewritesStore in the background.
+     */
+    private void showValue(SharedPreferences prefs, final String key) {
+        final String prefix = getString(R.string.keyRewritesMap) + "/";
+        if (key.startsWith(prefix)) {
+            final Context context = getApplicationContext();
+            boolean isPosted = TaskScheduler.post(TaskScheduler.Lane.IO, new TaskScheduler.Token(), () -> {
+                final String val = RewritesStore.getInstance(context).get(key.substring(prefix.length()));
+                runOnUiThread(() -> {
+                    toast(key + " == " + val);
+                    finish();
+                });
+            });
+            if (!isPosted) {
+                finish();
+            }
         } else {
             toast(key + " == " + prefs.getAll().get(key));
             finish();
@@ -141,23 +208,18 @@ public class GetPutPreferenceActivity extends Activity {
     private Executable createExecutablePutUrl(final SharedPreferences prefs, final String key, final String url) {
         return () -> {
             final SharedPreferences.Editor editor = prefs.edit();
-            new AsyncTask<String, Void, String>() {
-
-                @Override
-                protected String doInBackground(String... urls) {
-                    try {
-                        return HttpUtils.getUrl(urls[0]);
-                    } catch (IOException e) {
-                        return "ERROR: Unable to retrieve " + urls[0] + ": " + e.getLocalizedMessage();
-                    }
+            HttpClient.init(this);
+            TaskScheduler.post(TaskScheduler.Lane.IO, new TaskScheduler.Token(), () -> {
+                String result;
+                try {
+                    result = HttpClient.get(url);
+                } catch (IOException e) {
+                    result = "ERROR: Unable to retrieve " + url + ": " + e.getLocalizedMessage();
                 }
-
-                @Override
-                protected void onPostExecute(String result) {
-                    editor.putString(key, result);
-                    editor.apply();
-                }
-            }.execute(url);
+                editor.putString(key, result);
+                editor.apply();
+                PreferenceImporter.updateRewrites(this, key, false);
+            });
             finish();
         };
     }
@@ -165,21 +227,11 @@ public class GetPutPreferenceActivity extends Activity {
     private Executable createExecutablePut(final SharedPreferences prefs, final String key, final Object val) {
         return () -> {
             SharedPreferences.Editor editor = prefs.edit();
-            if (val instanceof String[]) {
-                // adb --esa
-                editor.putStringSet(key, new HashSet<>(Arrays.asList((String[]) val)));
-            } else if (val instanceof Boolean) {
-                editor.putBoolean(key, (Boolean) val);
-            } else if (val instanceof Integer) {
-                editor.putInt(key, (Integer) val);
-            } else if (val instanceof Float) {
-                editor.putFloat(key, (Float) val);
-            } else if (val instanceof Long) {
-                editor.putLong(key, (Long) val);
-            } else {
-                editor.putString(key, val.toString());
-            }
+            // adb --esa is put as a string set
+            PreferenceImporter.put(editor, key, val);
             editor.apply();
+            final Context context = getApplicationContext();
+            TaskScheduler.post(TaskScheduler.Lane.IO, new TaskScheduler.Token(), () -> PreferenceImporter.updateRewrites(context, key, false));
             finish();
         };
     }
@@ -189,7 +241,82 @@ public class GetPutPreferenceActivity extends Activity {
             SharedPreferences.Editor editor = prefs.edit();
             editor.remove(key);
             editor.apply();
+            final Context context = getApplicationContext();
+            TaskScheduler.post(TaskScheduler.Lane.IO, new TaskScheduler.Token(), () -> PreferenceImporter.updateRewrites(context, key, true));
             finish();
         };
     }
+
+    /**
+     * Imports the list of preferences in the background, and then returns the summary
+     * (the number of changed and removed keys, and the errors) as the result.
+     */
+    private void importPrefs(final Uri uri, final String json) {
+        final Context context = getApplicationContext();
+        boolean isPosted = TaskScheduler.post(TaskScheduler.Lane.IO, new TaskScheduler.Token(), () -> {
+            Intent data = new Intent();
+            String message;
+            int resultCode;
+            try {
+                String doc = json == null ? PreferenceImporter.read(openInputStream(uri), MAX_IMPORT_LENGTH) : json;
+                PreferenceImporter.Result result = PreferenceImporter.apply(context, PreferenceImporter.parse(doc));
+                List<String> errors = result.getErrors();
+                for (String error : errors) {
+                    Log.i("GetPutPreferenceActivity: " + error);
+                }
+                data.putExtra(EXTRA_RESULT_PUT_COUNT, result.getPutCount());
+                data.putExtra(EXTRA_RESULT_REMOVE_COUNT, result.getRemoveCount());
+                data.putExtra(EXTRA_RESULT_ERRORS, errors.toArray(new String[0]));
+                message = getString(R.string.statusPrefImport, result.getPutCount(), result.getRemoveCount(), errors.size());
+                resultCode = RESULT_OK;
+            } catch (IOException | JSONException | SecurityException e) {
+                // The details (e.g. the parser errors, which quote the input) are only logged
+                Log.i("GetPutPreferenceActivity: " + e);
+                data.putExtra(EXTRA_RESULT_ERRORS, new String[]{getImportError(e)});
+                message = getString(R.string.errorPrefImport);
+                resultCode = RESULT_CANCELED;
+            }
+            final int code = resultCode;
+            final String msg = message;
+            runOnUiThread(() -> {
+                setResult(code, data);
+                toast(msg);
+                finish();
+            });
+        });
+        if (!isPosted) {
+            finish();
+        }
+    }
+
+    /**
+     * The list is read only from a content URI that the caller has granted to us, i.e. not from a file,
+     * nor from a content provider of this app (which the caller itself might not be allowed to read).
+     */
+    private boolean isGrantedContentUri(Intent intent, Uri uri) {
+        if (!ContentResolver.SCHEME_CONTENT.equals(uri.getScheme())
+                || (intent.getFlags() & Intent.FLAG_GRANT_READ_URI_PERMISSION) == 0) {
+            return false;
+        }
+        ProviderInfo providerInfo = getPackageManager().resolveContentProvider(uri.getAuthority(), 0);
+        return providerInfo != null && !getPackageName().equals(providerInfo.packageName);
+    }
+
+    private static String getImportError(Exception e) {
+        if (e instanceof JSONException) {
+            return "Invalid list of preferences";
+        }
+        if (e instanceof SecurityException) {
+            return "Permission denied";
+        }
+        return "Unable to read the list of preferences";
+    }
+
+    private InputStream openInputStream(Uri uri) throws IOException {
+        InputStream is = getContentResolver().openInputStream(uri);
+        if (is == null) {
+            throw new FileNotFoundException(uri.toString());
+        }
+        return is;
+    }
 }
\ No newline at end of file
@@ -4,13 +4,11 @@ import android.app.Activity;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.support.annotation.NonNull;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
-import android.util.Pair;
 import android.view.LayoutInflater;
 import android.view.ViewGroup;
 import android.view.inputmethod.EditorInfo;
@@ -25,22 +23,21 @@ import com.koushikdutta.async.http.WebSocket;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.IOException;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
-import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
 import ee.ioc.phon.android.speak.Log;
 import ee.ioc.phon.android.speak.R;
+import ee.ioc.phon.android.speak.service.ServerDiscovery;
+import ee.ioc.phon.android.speak.utils.TaskScheduler;
 import ee.ioc.phon.android.speechutils.utils.PreferenceUtils;
 
 public class RecognitionServiceWsUrlActivity extends Activity {
 
-    private static final int TIMEOUT_PING = 100;
-    private List<String> mList = new ArrayList<>();
+    private List<ServerDiscovery.DiscoveredServer> mList = new ArrayList<>();
     private ServerAdapter mAdapter;
     private Button mBScan;
     private TextView mTvServerStatus;
@@ -87,12 +84,13 @@ public class RecognitionServiceWsUrlActivity extends Activity {
                 if (mIp.isEmpty()) {
                     toast(getString(R.string.errorNetworkUndefined));
                 } else {
-                    mScan = new Scan();
-                    mScan.execute(mIp);
+                    mScan = new Scan(mIp);
+                    mScan.start();
                 }
             } else {
-                mScan.cancel(true);
+                mScan.cancel();
                 mScan = null;
+                setScanUi();
             }
         });
 
@@ -114,6 +112,15 @@ public class RecognitionServiceWsUrlActivity extends Activity {
         closeSocket();
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (mScan != null) {
+            mScan.cancel();
+            mScan = null;
+        }
+    }
+
     private String getBaseUri(String serverUri) {
         return serverUri.substring(0, serverUri.lastIndexOf('/') + 1);
     }
@@ -178,79 +185,81 @@ public class RecognitionServiceWsUrlActivity extends Activity {
         return "";
     }
 
-    private class Scan extends AsyncTask<String, Pair<String, Boolean>, String> {
-        @Override
-        protected String doInBackground(String... ips) {
-            String errorMessage = null;
-            int start = 0;
-            int end = 255;
-            for (String ip : ips) {
-                String base = ip.substring(0, ip.lastIndexOf('.') + 1);
-                try {
-                    // TODO: review
-                    NetworkInterface iFace = NetworkInterface
-                            .getByInetAddress(InetAddress.getByName(ip));
-
-                    for (int i = start; i <= end; i++) {
-                        if (isCancelled()) break;
-                        InetAddress pingAddr = InetAddress.getByName(base + i);
-                        String result = pingAddr.getHostAddress();
-                        if (pingAddr.isReachable(iFace, 200, TIMEOUT_PING)) {
-                            publishProgress(new Pair<>(result, true));
-                            Log.i("FOUND: " + result);
-                        } else {
-                            publishProgress(new Pair<>(result, false));
-                        }
-                    }
-                } catch (UnknownHostException ex) {
-                    Log.e(ex.toString());
-                    errorMessage = ex.getLocalizedMessage();
-                    break;
-                } catch (IOException ex) {
-                    Log.e(ex.toString());
-                    errorMessage = ex.getLocalizedMessage();
-                    break;
-                }
+    /**
+     * Discovers the servers in the subnet of the given IP, in the background lane.
+     * The discovered servers are added to the list, which is kept ordered by
+     * the number of available workers and the RTT.
+     */
+    private class Scan implements ServerDiscovery.Listener {
+
+        private final TaskScheduler.Token mToken = new TaskScheduler.Token();
+        private final ServerDiscovery mDiscovery;
+
+        private Scan(String ip) {
+            Uri uri = Uri.parse(mEtUrl.getText().toString());
+            String path = uri.getPath();
+            if (path != null) {
+                path = path.substring(0, path.lastIndexOf('/') + 1);
             }
-            return errorMessage;
+            mDiscovery = new ServerDiscovery(ip, uri.getPort(), path, mToken, this);
         }
 
-        @Override
-        protected void onProgressUpdate(Pair<String, Boolean>... progress) {
-            Pair<String, Boolean> pair = progress[0];
-            mEtScan.setText(pair.first);
-            if (pair.second) {
-                mList.add(pair.first);
-                mAdapter.notifyDataSetChanged();
+        private void start() {
+            mList.clear();
+            mAdapter.notifyDataSetChanged();
+            setCancelUi();
+            if (!TaskScheduler.post(TaskScheduler.Lane.BACKGROUND, mToken, mDiscovery)) {
+                mScan = null;
+                setScanUi();
             }
         }
 
+        private void cancel() {
+            TaskScheduler.cancel(mToken);
+        }
+
+        private boolean isCancelled() {
+            return mToken.isCancelled();
+        }
+
         @Override
-        protected void onPreExecute() {
-            super.onPreExecute();
-            mList.clear();
-            setCancelUi();
+        public void onProgress(final String host) {
+            runOnUiThread(() -> {
+                if (!isCancelled()) {
+                    mEtScan.setText(host);
+                }
+            });
         }
 
         @Override
-        protected void onPostExecute(String errorMessage) {
-            setScanUi();
-            if (errorMessage != null) {
-                toast(errorMessage);
-            }
+        public void onServerFound(final ServerDiscovery.DiscoveredServer server) {
+            runOnUiThread(() -> {
+                if (isCancelled()) {
+                    return;
+                }
+                int index = Collections.binarySearch(mList, server, ServerDiscovery.RANKING);
+                index = index < 0 ? -index - 1 : index;
+                mList.add(index, server);
+                mAdapter.notifyItemInserted(index);
+            });
         }
 
         @Override
-        protected void onCancelled(String errorMessage) {
-            setScanUi();
-            if (errorMessage != null) {
-                toast(errorMessage);
-            }
+        public void onFinished(final String errorMessage) {
+            runOnUiThread(() -> {
+                if (mScan == this) {
+                    mScan = null;
+                    setScanUi();
+                }
+                if (errorMessage != null && !isCancelled()) {
+                    toast(errorMessage);
+                }
+            });
         }
     }
 
     private class ServerAdapter extends RecyclerView.Adapter<ServerAdapter.MyViewHolder> {
-        private List<String> mDataset;
+        private List<ServerDiscovery.DiscoveredServer> mDataset;
 
         public class MyViewHolder extends RecyclerView.ViewHolder {
             public Button mView;
@@ -261,7 +270,7 @@ public class RecognitionServiceWsUrlActivity extends Activity {
             }
         }
 
-        public ServerAdapter(List<String> myDataset) {
+        public ServerAdapter(List<ServerDiscovery.DiscoveredServer> myDataset) {
             mDataset = myDataset;
         }
 
@@ -274,8 +283,12 @@ public class RecognitionServiceWsUrlActivity extends Activity {
 
         @Override
         public void onBindViewHolder(@NonNull final MyViewHolder holder, int position) {
-            holder.mView.setText(mDataset.get(position));
-            holder.mView.setOnClickListener(view -> setUrl("ws://" + holder.mView.getText() + ":8080/client/ws/"));
+            final ServerDiscovery.DiscoveredServer server = mDataset.get(position);
+            int numOfWorkers = server.getNumWorkersAvailable();
+            holder.mView.setText(server.getHost() + " · "
+                    + getResources().getQuantityString(R.plurals.summaryWsServerWithStatus, numOfWorkers, numOfWorkers)
+                    + " · " + String.format(getString(R.string.statusServerRtt), server.getRtt()));
+            holder.mView.setOnClickListener(view -> setUrl(server.getUrl()));
         }
 
         @Override
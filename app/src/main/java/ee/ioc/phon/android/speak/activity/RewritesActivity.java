@@ -19,10 +19,8 @@ package ee.ioc.phon.android.speak.activity;
 import android.app.ActionBar;
 import android.app.Activity;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.content.res.Resources;
 import android.os.Bundle;
-import android.preference.PreferenceManager;
 import android.support.v4.app.NavUtils;
 import android.support.v4.app.TaskStackBuilder;
 import android.view.Menu;
@@ -147,9 +145,8 @@ public class RewritesActivity extends Activity {
     }
 
     private void setRewrites(String name, String[] errors) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
         Resources res = getResources();
-        mRewrites = new Rewrites(prefs, res, name);
+        mRewrites = new Rewrites(this, name);
 
         int ruleCount = mRewrites.size();
         String subtitle = res.getQuantityString(R.plurals.statusLoadRewrites, ruleCount, ruleCount);
@@ -18,12 +18,9 @@ package ee.ioc.phon.android.speak.activity;
 
 import android.app.Activity;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.content.res.Resources;
 import android.net.Uri;
 import android.os.Bundle;
-import android.preference.PreferenceManager;
-import android.util.Base64;
 import android.view.View;
 import android.view.inputmethod.EditorInfo;
 import android.widget.ArrayAdapter;
@@ -31,24 +28,28 @@ import android.widget.AutoCompleteTextView;
 import android.widget.Button;
 import android.widget.LinearLayout;
 import android.widget.ListView;
+import android.widget.ProgressBar;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 import ee.ioc.phon.android.speak.R;
-import ee.ioc.phon.android.speechutils.editor.UtteranceRewriter;
-import ee.ioc.phon.android.speechutils.utils.PreferenceUtils;
+import ee.ioc.phon.android.speak.provider.RewritesStore;
+import ee.ioc.phon.android.speak.utils.RewritesCodec;
+import ee.ioc.phon.android.speak.utils.RewritesImporter;
+import ee.ioc.phon.android.speak.utils.TaskScheduler;
 
 /**
  * Loads the rewrites from the EXTRAs of an incoming VIEW- or SEND-intent, or if they are missing,
  * then launches ACTION_GET_CONTENT to load the rewrites from its result data.
- * In case of an incoming VIEW/SEND-intent we only accept "text/tab-separated-values" (see the manifest).
+ * In case of an incoming VIEW/SEND-intent we only accept "text/tab-separated-values", the compressed table
+ * (see RewritesCodec), and k6-links (see the manifest).
  * However, if the user explicitly launches a file picker from Kõnele, then any "text/*" files
- * can be picked.
+ * can be picked. The table is imported in the background (see RewritesImporter), while
+ * the user enters its name.
  */
 public class RewritesLoaderActivity extends Activity {
 
@@ -56,42 +57,43 @@ public class RewritesLoaderActivity extends Activity {
     private static final String TYPE = "text/*";
     private static final int GET_CONTENT_REQUEST_CODE = 1;
 
-    private UtteranceRewriter utteranceRewriter;
+    private final TaskScheduler.Token mToken = new TaskScheduler.Token();
+
+    private Button mBRewritesLoader;
+    private ListView mLvRewrites;
+    private ProgressBar mPbImport;
+    private TextView mTvImportStatus;
+
+    // The imported table and its errors, set when the import has finished
+    private String mRewrites;
+    private String[] mErrors;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_rewrites_loader);
-        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-        final Resources res = getResources();
-        final Button bRewritesLoader = findViewById(R.id.bRewritesNameOk);
+        mBRewritesLoader = findViewById(R.id.bRewritesNameOk);
+        mLvRewrites = findViewById(R.id.lvRewrites);
+        mPbImport = findViewById(R.id.pbRewritesImport);
+        mTvImportStatus = findViewById(R.id.tvRewritesImportStatus);
         final AutoCompleteTextView et = findViewById(R.id.etRewritesNameText);
         et.setOnEditorActionListener((v, actionId, event) -> {
             if (actionId == EditorInfo.IME_ACTION_DONE) {
-                bRewritesLoader.performClick();
+                mBRewritesLoader.performClick();
                 return true;
             }
             return false;
         });
-        bRewritesLoader.setOnClickListener(view -> saveAndShow(prefs, res, et.getText().toString()));
-        List<String> keysSorted = new ArrayList<>(PreferenceUtils.getPrefMapKeys(prefs, res, R.string.keyRewritesMap));
-
-        // If there are already some rewrites then we show their names as well
-        if (!keysSorted.isEmpty()) {
-            Collections.sort(keysSorted);
-            String[] names = keysSorted.toArray(new String[0]);
-
-            ArrayAdapter<String> adapter = new ArrayAdapter<>(this, android.R.layout.simple_list_item_1, names);
-            et.setAdapter(adapter);
-
-            final LinearLayout ll = findViewById(R.id.llRewritesChooser);
-            ll.setVisibility(View.VISIBLE);
-            final ListView lv = findViewById(R.id.lvRewrites);
-            lv.setAdapter(new ArrayAdapter<>(this,
-                    android.R.layout.simple_list_item_1, android.R.id.text1, names));
-
-            lv.setOnItemClickListener((parent, view, position, id) -> saveAndShow(prefs, res, (String) lv.getItemAtPosition(position)));
-        }
+        mBRewritesLoader.setOnClickListener(view -> saveAndShow(et.getText().toString()));
+        // Enabled when the import has finished
+        mBRewritesLoader.setEnabled(false);
+        mLvRewrites.setEnabled(false);
+        // The names are read in the background
+        final RewritesStore store = RewritesStore.getInstance(this);
+        TaskScheduler.post(TaskScheduler.Lane.IO, mToken, () -> {
+            final List<String> keysSorted = store.getNames();
+            runOnUiThread(() -> showNames(et, keysSorted));
+        });
 
         Intent intent = getIntent();
         Uri uri = intent.getData();
@@ -113,22 +115,25 @@ public class RewritesLoaderActivity extends Activity {
                 if (uri == null) {
                     uri = intent.getParcelableExtra(Intent.EXTRA_STREAM);
                 }
-                if (uri != null) {
-                    if ("k6".equals(uri.getScheme())) {
-                        byte[] data = Base64.decode(uri.getSchemeSpecificPart().substring(2), Base64.NO_WRAP | Base64.URL_SAFE);
-                        try {
-                            utteranceRewriter = new UtteranceRewriter(new String(data, "UTF-8"));
-                        } catch (UnsupportedEncodingException e) {
-                            // TODO: dont ignore
-                        }
-                    } else {
-                        utteranceRewriter = loadFromUri(uri);
+                if (uri == null) {
+                    finish();
+                } else if (RewritesCodec.SCHEME.equals(uri.getScheme())) {
+                    try {
+                        startImport(new RewritesImporter.BytesSource(RewritesCodec.getLinkBytes(uri.getSchemeSpecificPart())));
+                    } catch (IOException e) {
+                        toastError(e);
+                        finish();
                     }
+                } else {
+                    startImport(new RewritesImporter.UriSource(getContentResolver(), uri));
                 }
             } else {
-                utteranceRewriter = new UtteranceRewriter(text);
+                try {
+                    startImport(new RewritesImporter.BytesSource(text.getBytes("UTF-8")));
+                } catch (UnsupportedEncodingException e) {
+                    finish();
+                }
             }
-            finishIfFailed();
         }
     }
 
@@ -137,40 +142,126 @@ public class RewritesLoaderActivity extends Activity {
         if (requestCode == GET_CONTENT_REQUEST_CODE && resultCode == Activity.RESULT_OK && resultData != null) {
             Uri uri = resultData.getData();
             if (uri != null) {
-                utteranceRewriter = loadFromUri(uri);
+                startImport(new RewritesImporter.UriSource(getContentResolver(), uri));
+                return;
             }
         }
-        finishIfFailed();
+        finish();
     }
 
-    private UtteranceRewriter loadFromUri(Uri uri) {
-        try {
-            return new UtteranceRewriter(getContentResolver(), uri);
-        } catch (IOException e) {
-            String errorMessage = String.format(getString(R.string.errorLoadRewrites), e.getLocalizedMessage());
-            toast(errorMessage);
+    /**
+     * If there are already some rewrites then we show their names as well.
+     */
+    private void showNames(AutoCompleteTextView et, List<String> keysSorted) {
+        if (isFinishing() || keysSorted.isEmpty()) {
+            return;
         }
-        return null;
+        String[] names = keysSorted.toArray(new String[0]);
+
+        ArrayAdapter<String> adapter = new ArrayAdapter<>(this, android.R.layout.simple_list_item_1, names);
+        et.setAdapter(adapter);
+
+        final LinearLayout ll = findViewById(R.id.llRewritesChooser);
+        ll.setVisibility(View.VISIBLE);
+        mLvRewrites.setAdapter(new ArrayAdapter<>(this,
+                android.R.layout.simple_list_item_1, android.R.id.text1, names));
+
+        mLvRewrites.setOnItemClickListener((parent, view, position, id) -> saveAndShow((String) mLvRewrites.getItemAtPosition(position)));
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        // Stops the import
+        TaskScheduler.cancel(mToken);
     }
 
-    private void finishIfFailed() {
-        if (utteranceRewriter == null) {
+    /**
+     * Imports the table in the background, showing the progress. The name of the table
+     * can be entered during the import.
+     */
+    private void startImport(RewritesImporter.Source source) {
+        mPbImport.setIndeterminate(true);
+        RewritesImporter importer = new RewritesImporter(source, mToken, new RewritesImporter.Listener() {
+            @Override
+            public void onProgress(long bytesRead, long size, int ruleCount, int errorCount) {
+                runOnUiThread(() -> {
+                    if (size > 0) {
+                        mPbImport.setIndeterminate(false);
+                        mPbImport.setProgress((int) (100 * Math.min(bytesRead, size) / size));
+                    }
+                    mTvImportStatus.setText(getStatus(ruleCount, errorCount));
+                });
+            }
+
+            @Override
+            public void onDone(String rewrites, List<String> errors) {
+                runOnUiThread(() -> {
+                    mRewrites = rewrites;
+                    mErrors = errors.toArray(new String[0]);
+                    mPbImport.setIndeterminate(false);
+                    mPbImport.setProgress(100);
+                    mBRewritesLoader.setEnabled(true);
+                    mLvRewrites.setEnabled(true);
+                });
+            }
+
+            @Override
+            public void onError(Exception e) {
+                runOnUiThread(() -> {
+                    toastError(e);
+                    finish();
+                });
+            }
+        });
+        if (!TaskScheduler.post(TaskScheduler.Lane.IO, mToken, importer)) {
             finish();
         }
     }
 
-    private void saveAndShow(SharedPreferences prefs, Resources res, String name) {
-        if (utteranceRewriter != null) {
-            PreferenceUtils.putPrefMapEntry(prefs, res, R.string.keyRewritesMap, name, utteranceRewriter.toTsv());
-            Intent intent = new Intent(this, RewritesActivity.class);
-            intent.putExtra(RewritesActivity.EXTRA_NAME, name);
-            intent.putExtra(RewritesActivity.EXTRA_ERRORS, utteranceRewriter.getErrorsAsStringArray());
-            startActivity(intent);
+    private String getStatus(int ruleCount, int errorCount) {
+        Resources res = getResources();
+        String status = res.getQuantityString(R.plurals.statusLoadRewrites, ruleCount, ruleCount);
+        if (errorCount > 0) {
+            status += " · " + res.getQuantityString(R.plurals.statusLoadRewritesErrors, errorCount, errorCount);
+        }
+        return status;
+    }
+
+    private void toastError(Exception e) {
+        toast(String.format(getString(R.string.errorLoadRewrites), e.getLocalizedMessage()));
+    }
+
+    /**
+     * Stores the table in the background (it can be large), and then shows it, together with
+     * the invalid rules and the rules that can backtrack catastrophically.
+     */
+    private void saveAndShow(String name) {
+        if (mRewrites == null) {
+            return;
+        }
+        final String rewrites = mRewrites;
+        final String[] errors = mErrors;
+        mRewrites = null;
+        mBRewritesLoader.setEnabled(false);
+        mLvRewrites.setEnabled(false);
+        final RewritesStore store = RewritesStore.getInstance(this);
+        boolean isPosted = TaskScheduler.post(TaskScheduler.Lane.IO, new TaskScheduler.Token(), () -> {
+            store.put(name, rewrites);
+            runOnUiThread(() -> {
+                Intent intent = new Intent(this, RewritesActivity.class);
+                intent.putExtra(RewritesActivity.EXTRA_NAME, name);
+                intent.putExtra(RewritesActivity.EXTRA_ERRORS, errors);
+                startActivity(intent);
+                finish();
+            });
+        });
+        if (!isPosted) {
+            finish();
         }
-        finish();
     }
 
     private void toast(String message) {
         Toast.makeText(getApplicationContext(), message, Toast.LENGTH_LONG).show();
     }
-}
\ No newline at end of file
+}
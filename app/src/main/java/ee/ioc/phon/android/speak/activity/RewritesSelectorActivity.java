@@ -26,6 +26,8 @@ import ee.ioc.phon.android.speak.adapter.RewritesAdapter;
 import ee.ioc.phon.android.speak.fragment.K6neleListFragment;
 import ee.ioc.phon.android.speak.model.Combo;
 import ee.ioc.phon.android.speak.model.Rewrites;
+import ee.ioc.phon.android.speak.utils.RewritesSync;
+import ee.ioc.phon.android.speak.utils.TaskScheduler;
 import ee.ioc.phon.android.speak.utils.Utils;
 import ee.ioc.phon.android.speechutils.utils.PreferenceUtils;
 
@@ -79,6 +81,7 @@ public class RewritesSelectorActivity extends Activity {
             initAdapter();
             registerForContextMenu(getListView());
             setEmptyView(getString(R.string.emptylistRewrites));
+            RewritesSync.schedule(getActivity());
         }
 
         @Override
@@ -104,6 +107,9 @@ public class RewritesSelectorActivity extends Activity {
             super.onCreateContextMenu(menu, v, menuInfo);
             MenuInflater inflater = getActivity().getMenuInflater();
             inflater.inflate(R.menu.cm_rewrites, menu);
+            AdapterView.AdapterContextMenuInfo info = (AdapterView.AdapterContextMenuInfo) menuInfo;
+            Rewrites rewrites = (Rewrites) getListView().getItemAtPosition(info.position);
+            menu.findItem(R.id.cmRewritesSync).setVisible(rewrites.getUrl() != null);
         }
 
         @Override
@@ -121,6 +127,23 @@ public class RewritesSelectorActivity extends Activity {
                 case R.id.cmRewritesTest:
                     startActivity(rewrites.getK6neleIntent());
                     return true;
+                case R.id.cmRewritesSubscribe:
+                    Utils.getTextEntryDialog(
+                            getActivity(),
+                            getString(R.string.confirmSubscribe),
+                            rewrites.getUrl(),
+                            url -> {
+                                RewritesSync.setUrl(getActivity(), name, url.trim());
+                                initAdapter();
+                                if (rewrites.getUrl() != null) {
+                                    sync(name);
+                                }
+                            }
+                    ).show();
+                    return true;
+                case R.id.cmRewritesSync:
+                    sync(name);
+                    return true;
                 case R.id.cmRewritesRename:
                     Utils.getTextEntryDialog(
                             getActivity(),
@@ -154,8 +177,26 @@ public class RewritesSelectorActivity extends Activity {
             startActivity(((Rewrites) l.getItemAtPosition(position)).getShowIntent());
         }
 
+        /**
+         * Refreshes the subscribed table in the background, and then shows its new status.
+         */
+        private void sync(String name) {
+            final Context context = getActivity().getApplicationContext();
+            TaskScheduler.post(TaskScheduler.Lane.IO, new TaskScheduler.Token(), () -> {
+                RewritesSync.sync(context, name);
+                Activity activity = getActivity();
+                if (activity != null) {
+                    activity.runOnUiThread(() -> {
+                        if (isResumed()) {
+                            initAdapter();
+                        }
+                    });
+                }
+            });
+        }
+
         private void initAdapter() {
-            List<Rewrites> tables = Rewrites.getTables(mPrefs, mRes);
+            List<Rewrites> tables = Rewrites.getTables(getActivity());
             setListAdapter(new RewritesAdapter(this, tables));
             ActionBar actionBar = getActivity().getActionBar();
             if (actionBar != null) {
@@ -15,11 +15,14 @@ import android.view.View;
 import android.widget.AdapterView;
 import android.widget.ListView;
 import android.widget.SimpleCursorAdapter;
+import android.widget.TextView;
 
 import java.net.MalformedURLException;
+import java.util.List;
 
 import ee.ioc.phon.android.speak.R;
 import ee.ioc.phon.android.speak.provider.Server;
+import ee.ioc.phon.android.speak.service.ServerPool;
 import ee.ioc.phon.android.speak.utils.Utils;
 
 public class ServerListActivity extends AbstractContentActivity {
@@ -108,6 +111,7 @@ public class ServerListActivity extends AbstractContentActivity {
     public static class CursorLoaderListFragment extends ListFragment
             implements LoaderManager.LoaderCallbacks<Cursor> {
         private SimpleCursorAdapter mAdapter;
+        private List<String> mWsUrls;
 
         @Override
         public void onActivityCreated(Bundle savedInstanceState) {
@@ -122,6 +126,16 @@ public class ServerListActivity extends AbstractContentActivity {
                     TO,
                     0
             );
+            // Shows the load of the WebSocket-based servers, as measured by the server pool
+            mAdapter.setViewBinder((view, cursor, columnIndex) -> {
+                if (view.getId() == R.id.itemServerUrl) {
+                    String url = cursor.getString(columnIndex);
+                    ((TextView) view).setText(url);
+                    setStatus(((View) view.getParent()).findViewById(R.id.itemServerStatus), url);
+                    return true;
+                }
+                return false;
+            });
             setListAdapter(mAdapter);
             registerForContextMenu(getListView());
             getLoaderManager().initLoader(0, null, this);
@@ -157,6 +171,56 @@ public class ServerListActivity extends AbstractContentActivity {
 
         public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
             mAdapter.swapCursor(data);
+            checkServers();
+        }
+
+        @Override
+        public void onResume() {
+            super.onResume();
+            ServerPool.getInstance().setListener(url -> {
+                View view = getView();
+                if (view != null) {
+                    view.post(() -> mAdapter.notifyDataSetChanged());
+                }
+            });
+            if (mWsUrls != null) {
+                ServerPool.getInstance().startChecking(mWsUrls);
+            }
+        }
+
+        @Override
+        public void onPause() {
+            super.onPause();
+            ServerPool.getInstance().setListener(null);
+        }
+
+        private void checkServers() {
+            mWsUrls = ServerPool.getUrls(getActivity(), null);
+            ServerPool.getInstance().startChecking(mWsUrls);
+        }
+
+        private void setStatus(View view, String url) {
+            TextView tvStatus = (TextView) view;
+            if (url.endsWith("/")) {
+                url = url + "speech";
+            }
+            ServerPool pool = ServerPool.getInstance();
+            ServerPool.ServerStatus status = pool.getStatus(url);
+            if (status == null) {
+                tvStatus.setVisibility(View.GONE);
+                return;
+            }
+            StringBuilder sb = new StringBuilder(status.toString(getResources()));
+            int numSelected = pool.getNumSelected(url);
+            if (numSelected > 0) {
+                sb.append(" · ");
+                sb.append(getResources().getQuantityString(R.plurals.statusServerSelected, numSelected, numSelected));
+            }
+            if (url.equals(pool.getLastSelected())) {
+                sb.append(" · ").append(getString(R.string.statusServerLastSelected));
+            }
+            tvStatus.setText(sb);
+            tvStatus.setVisibility(View.VISIBLE);
         }
 
         public void onLoaderReset(Loader<Cursor> loader) {
@@ -3,9 +3,11 @@ package ee.ioc.phon.android.speak.activity;
 import android.Manifest;
 import android.content.ComponentName;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.speech.SpeechRecognizer;
 import android.support.v4.app.ActivityCompat;
+import android.support.v4.os.TraceCompat;
 import android.widget.TextView;
 
 import java.util.ArrayList;
@@ -16,6 +18,9 @@ import java.util.List;
 import ee.ioc.phon.android.speak.Log;
 import ee.ioc.phon.android.speak.R;
 import ee.ioc.phon.android.speak.model.CallerInfo;
+import ee.ioc.phon.android.speak.utils.Metrics;
+import ee.ioc.phon.android.speak.utils.RuleGuard;
+import ee.ioc.phon.android.speak.utils.Utils;
 import ee.ioc.phon.android.speak.view.AbstractSpeechInputViewListener;
 import ee.ioc.phon.android.speak.view.SpeechInputView;
 import ee.ioc.phon.android.speechutils.Extras;
@@ -99,6 +104,8 @@ public class SpeechActionActivity extends AbstractRecognizerIntentActivity {
         //info.add("Selected server: " + getRecSessionBuilder().getServerUrl());
         info.add("Intent action: " + getIntent().getAction());
         info.addAll(BundleUtils.ppBundle(getExtras()));
+        info.addAll(Metrics.toStringList());
+        info.addAll(RuleGuard.toStringList());
         return info.toArray(new String[info.size()]);
     }
 
@@ -106,14 +113,18 @@ public class SpeechActionActivity extends AbstractRecognizerIntentActivity {
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        long startTime = SystemClock.uptimeMillis();
         // TODO: do not use the default dialog style when in multi window mode
         /*
         if (isInMultiWindowMode()) {
             setTheme(R.style.Theme_K6nele_NoActionBar);
         }
         */
+        TraceCompat.beginSection("setUpActivity");
         setUpActivity(R.layout.activity_recognizer);
+        TraceCompat.endSection();
         registerPrompt(findViewById(R.id.tvPrompt));
+        Utils.sampleFirstFrame(findViewById(R.id.vVoiceImeView), "startup.activity.firstFrame", startTime);
 
     }
 
@@ -145,8 +156,10 @@ public class SpeechActionActivity extends AbstractRecognizerIntentActivity {
         mView = findViewById(R.id.vVoiceImeView);
         CallerInfo callerInfo = new CallerInfo(getExtras(), getCallingActivity());
         // TODO: do we need to send the ComponentName of the calling activity instead
+        TraceCompat.beginSection("initInputView");
         mView.init(R.array.keysActivity, callerInfo, 0);
         mView.setListener(getSpeechInputViewListener(), null);
+        TraceCompat.endSection();
 
         String[] results = getExtras().getStringArray(Extras.EXTRA_RESULT_RESULTS);
         if (results == null) {
@@ -191,6 +204,11 @@ public class SpeechActionActivity extends AbstractRecognizerIntentActivity {
                 setRewriters(language, service);
             }
 
+            @Override
+            public void onPartialResult(List<String> results, boolean isSemiFinal) {
+                prepareRewrites(results);
+            }
+
             @Override
             public void onFinalResult(List<String> results, Bundle bundle) {
                 returnOrForwardMatches(results);
@@ -3,6 +3,7 @@ package ee.ioc.phon.android.speak.adapter;
 import android.app.Activity;
 import android.app.Fragment;
 import android.support.annotation.NonNull;
+import android.text.format.DateUtils;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ArrayAdapter;
@@ -13,6 +14,7 @@ import java.util.List;
 
 import ee.ioc.phon.android.speak.R;
 import ee.ioc.phon.android.speak.model.Rewrites;
+import ee.ioc.phon.android.speak.utils.RewritesSync;
 
 public class RewritesAdapter extends ArrayAdapter<Rewrites> {
 
@@ -27,6 +29,7 @@ public class RewritesAdapter extends ArrayAdapter<Rewrites> {
 
     private static class ViewHolder {
         private TextView id;
+        private TextView syncStatus;
         private CheckBox checkbox;
     }
 
@@ -38,6 +41,7 @@ public class RewritesAdapter extends ArrayAdapter<Rewrites> {
             view = context.getLayoutInflater().inflate(R.layout.list_item_rewrites, null);
             final ViewHolder viewHolder = new ViewHolder();
             viewHolder.id = view.findViewById(R.id.rewritesId);
+            viewHolder.syncStatus = view.findViewById(R.id.rewritesSyncStatus);
             viewHolder.checkbox = view.findViewById(R.id.rewritesIsSelected);
             viewHolder.checkbox.setOnCheckedChangeListener((buttonView, isChecked) -> {
                 Rewrites item = (Rewrites) viewHolder.checkbox.getTag();
@@ -53,6 +57,36 @@ public class RewritesAdapter extends ArrayAdapter<Rewrites> {
         Rewrites item = list.get(position);
         holder.id.setText(item.getId());
         holder.checkbox.setChecked(item.isSelected());
+        if (item.getUrl() == null) {
+            holder.syncStatus.setVisibility(View.GONE);
+        } else {
+            holder.syncStatus.setText(getSyncStatus(item.getSyncStatus()));
+            holder.syncStatus.setVisibility(View.VISIBLE);
+        }
         return view;
     }
+
+    /**
+     * @return time, result and duration of the last refresh of the subscribed table
+     */
+    private String getSyncStatus(RewritesSync.Status status) {
+        if (status == null) {
+            return context.getString(R.string.statusSyncNever);
+        }
+        String time = DateUtils.formatDateTime(context, status.getTime(),
+                DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_SHOW_TIME | DateUtils.FORMAT_ABBREV_ALL);
+        switch (status.getResult()) {
+            case RewritesSync.Status.UPDATED:
+                String str = context.getString(R.string.statusSyncUpdated, time, status.getChangedRows(), status.getDuration());
+                int errorCount = status.getErrorCount();
+                if (errorCount > 0) {
+                    str += " · " + context.getResources().getQuantityString(R.plurals.statusLoadRewritesErrors, errorCount, errorCount);
+                }
+                return str;
+            case RewritesSync.Status.NOT_MODIFIED:
+                return context.getString(R.string.statusSyncNotModified, time, status.getDuration());
+            default:
+                return context.getString(R.string.statusSyncFailed, time, status.getMessage());
+        }
+    }
 }
\ No newline at end of file
@@ -18,10 +18,7 @@ package ee.ioc.phon.android.speak.demo
 
 import android.app.Activity
 import android.content.ComponentName
-import android.content.SharedPreferences
-import android.content.res.Resources
 import android.os.Bundle
-import android.preference.PreferenceManager
 import android.speech.RecognizerIntent
 import android.widget.AdapterView
 import android.widget.ArrayAdapter
@@ -47,16 +44,13 @@ class ChatDemoActivity : Activity() {
 
     private val mMatches = ArrayList<String>()
 
-    private var mPrefs: SharedPreferences? = null
-    private var mRes: Resources? = null
-
     val speechInputViewListener: SpeechInputView.SpeechInputViewListener
         get() = object : AbstractSpeechInputViewListener() {
 
             private var mRewriters: Iterable<UtteranceRewriter>? = null
 
             override fun onComboChange(language: String, service: ComponentName) {
-                mRewriters = Utils.genRewriters(mPrefs, mRes, arrayOf("Base", "Commands"), language, service, componentName)
+                mRewriters = Utils.genRewriters(this@ChatDemoActivity, arrayOf("Base", "Commands"), language, service, componentName)
             }
 
             override fun onFinalResult(results: List<String>, bundle: Bundle) {
@@ -84,9 +78,6 @@ class ChatDemoActivity : Activity() {
         super.onCreate(savedInstanceState)
         setContentView(R.layout.activity_chat_demo)
 
-        mPrefs = PreferenceManager.getDefaultSharedPreferences(this)
-        mRes = resources
-
         val siv = findViewById<SpeechInputView>(R.id.vSpeechInputView)
         val callerInfo = CallerInfo(createExtras(), callingActivity)
         // TODO: review this
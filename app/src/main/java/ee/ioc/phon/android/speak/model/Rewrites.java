@@ -1,14 +1,17 @@
 package ee.ioc.phon.android.speak.model;
 
+import android.content.ClipData;
+import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
 import android.graphics.Typeface;
+import android.net.Uri;
+import android.preference.PreferenceManager;
 import android.speech.RecognizerIntent;
 import android.text.SpannableStringBuilder;
 import android.text.style.ForegroundColorSpan;
 import android.text.style.StyleSpan;
-import android.util.Base64;
 
 import java.util.ArrayList;
 import java.util.Collection;
@@ -21,6 +24,10 @@ import java.util.Set;
 
 import ee.ioc.phon.android.speak.R;
 import ee.ioc.phon.android.speak.activity.RewritesActivity;
+import ee.ioc.phon.android.speak.provider.RewritesContentProvider;
+import ee.ioc.phon.android.speak.provider.RewritesStore;
+import ee.ioc.phon.android.speak.utils.RewritesCodec;
+import ee.ioc.phon.android.speak.utils.RewritesSync;
 import ee.ioc.phon.android.speechutils.Extras;
 import ee.ioc.phon.android.speechutils.editor.Command;
 import ee.ioc.phon.android.speechutils.editor.UtteranceRewriter;
@@ -30,14 +37,21 @@ public class Rewrites {
 
     private static final Comparator SORT_BY_ID = new Rewrites.SortById();
 
-    private SharedPreferences mPrefs;
-    private Resources mRes;
+    // Longer tables are shared as streams, because the intent must fit into a Binder transaction
+    private static final int MAX_EXTRA_TEXT_LENGTH = 100000;
+
+    private final Context mContext;
+    private final SharedPreferences mPrefs;
+    private final Resources mRes;
+    private final RewritesStore mStore;
 
     private final String mId;
 
-    public Rewrites(SharedPreferences prefs, Resources res, String id) {
-        mPrefs = prefs;
-        mRes = res;
+    public Rewrites(Context context, String id) {
+        mContext = context;
+        mPrefs = PreferenceManager.getDefaultSharedPreferences(context);
+        mRes = context.getResources();
+        mStore = RewritesStore.getInstance(context);
         mId = id;
     }
 
@@ -68,6 +82,20 @@ public class Rewrites {
         }
     }
 
+    /**
+     * @return URL that the table is subscribed to, or null
+     */
+    public String getUrl() {
+        return mStore.getUrl(mId);
+    }
+
+    /**
+     * @return status of the last refresh of the subscribed table, or null
+     */
+    public RewritesSync.Status getSyncStatus() {
+        return RewritesSync.getStatus(mContext, mId);
+    }
+
     public Intent getK6neleIntent() {
         Intent intent = new Intent();
         intent.setClassName("ee.ioc.phon.android.speak", "ee.ioc.phon.android.speak.activity.SpeechActionActivity");
@@ -84,28 +112,60 @@ public class Rewrites {
         return intent;
     }
 
+    /**
+     * Shares the table as plain TSV text, or if it is too large for an intent EXTRA,
+     * as a stream of the compressed table.
+     */
     public Intent getSendIntent() {
-        String rewrites = PreferenceUtils.getPrefMapEntry(mPrefs, mRes, R.string.keyRewritesMap, mId);
+        String rewrites = mStore.get(mId);
         UtteranceRewriter ur = new UtteranceRewriter(rewrites);
+        String tsv = ur.toTsv();
+        if (tsv.length() > MAX_EXTRA_TEXT_LENGTH) {
+            return getStreamIntent();
+        }
         Intent intent = new Intent();
         intent.setAction(Intent.ACTION_SEND);
         intent.putExtra(Intent.EXTRA_SUBJECT, mId);
-        intent.putExtra(Intent.EXTRA_TEXT, ur.toTsv());
+        intent.putExtra(Intent.EXTRA_TEXT, tsv);
         intent.setType("text/tab-separated-values");
         return intent;
     }
 
+    /**
+     * Shares the table as a k6-link that contains the compressed table, or if the link is too long
+     * for an intent EXTRA, as a stream of the compressed table.
+     */
     public Intent getIntentSendBase64() {
-        String rewrites = PreferenceUtils.getPrefMapEntry(mPrefs, mRes, R.string.keyRewritesMap, mId);
+        String rewrites = mStore.get(mId);
         UtteranceRewriter ur = new UtteranceRewriter(rewrites);
+        String link = RewritesCodec.toLink(ur.toTsv());
+        if (link.length() > MAX_EXTRA_TEXT_LENGTH) {
+            return getStreamIntent();
+        }
         Intent intent = new Intent();
         intent.setAction(Intent.ACTION_SEND);
         intent.putExtra(Intent.EXTRA_SUBJECT, mId);
-        intent.putExtra(Intent.EXTRA_TEXT, "k6://" + Base64.encodeToString(ur.toTsv().getBytes(), Base64.NO_WRAP | Base64.URL_SAFE));
+        intent.putExtra(Intent.EXTRA_TEXT, link);
         intent.setType("text/plain");
         return intent;
     }
 
+    /**
+     * The table is encoded by RewritesContentProvider while the receiver reads it.
+     */
+    private Intent getStreamIntent() {
+        Uri uri = RewritesContentProvider.getUri(mId);
+        Intent intent = new Intent();
+        intent.setAction(Intent.ACTION_SEND);
+        intent.putExtra(Intent.EXTRA_SUBJECT, mId);
+        intent.putExtra(Intent.EXTRA_STREAM, uri);
+        intent.setType(RewritesCodec.MIME_TYPE);
+        // ClipData makes the grant work also when the intent is wrapped in a chooser
+        intent.setClipData(ClipData.newRawUri(mId, uri));
+        intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        return intent;
+    }
+
     public SpannableStringBuilder[] getRules() {
         UtteranceRewriter.CommandHolder holder = getCommandHolder();
         Collection<String> header = holder.getHeader().values();
@@ -123,13 +183,12 @@ public class Rewrites {
 
     public void rename(String newName) {
         if (!mId.equals(newName)) {
-            if (newName != null) {
-                String rewrites = PreferenceUtils.getPrefMapEntry(mPrefs, mRes, R.string.keyRewritesMap, mId);
-                PreferenceUtils.putPrefMapEntry(mPrefs, mRes, R.string.keyRewritesMap, newName, rewrites);
+            // The subscription (if any) is renamed/deleted together with the table
+            if (newName == null) {
+                mStore.delete(mId);
+            } else {
+                mStore.rename(mId, newName);
             }
-            Set<String> deleteKeys = new HashSet<>();
-            deleteKeys.add(mId);
-            PreferenceUtils.clearPrefMap(mPrefs, mRes, R.string.keyRewritesMap, deleteKeys);
             Set<String> defaults = new HashSet<>(getDefaults());
             if (defaults.contains(mId)) {
                 defaults.remove(mId);
@@ -146,7 +205,7 @@ public class Rewrites {
     }
 
     private UtteranceRewriter.CommandHolder getCommandHolder() {
-        String rewrites = PreferenceUtils.getPrefMapEntry(mPrefs, mRes, R.string.keyRewritesMap, mId);
+        String rewrites = mStore.get(mId);
         UtteranceRewriter ur = new UtteranceRewriter(rewrites);
         return ur.getCommandHolder();
     }
@@ -163,11 +222,10 @@ public class Rewrites {
         return PreferenceUtils.getPrefStringSet(prefs, res, R.string.defaultRewriteTables);
     }
 
-    public static List<Rewrites> getTables(SharedPreferences prefs, Resources res) {
-        List<String> rewritesIds = new ArrayList<>(PreferenceUtils.getPrefMapKeys(prefs, res, R.string.keyRewritesMap));
+    public static List<Rewrites> getTables(Context context) {
         List<Rewrites> rewritesTables = new ArrayList<>();
-        for (String id : rewritesIds) {
-            rewritesTables.add(new Rewrites(prefs, res, id));
+        for (String id : RewritesStore.getInstance(context).getNames()) {
+            rewritesTables.add(new Rewrites(context, id));
         }
         Collections.sort(rewritesTables, SORT_BY_ID);
         return rewritesTables;
@@ -0,0 +1,108 @@
+package ee.ioc.phon.android.speak.provider;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
+
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import ee.ioc.phon.android.speak.Log;
+import ee.ioc.phon.android.speak.utils.RewritesCodec;
+import ee.ioc.phon.android.speechutils.editor.UtteranceRewriter;
+
+/**
+ * Streams a rewrite table in the encoded format (see {@link RewritesCodec}), so that tables that are
+ * too large for an intent EXTRA can be shared. The table is encoded while it is read, i.e.
+ * the encoded table is never stored. The URI is "content://AUTHORITY/NAME.k6", and
+ * the receiver needs a URI permission grant to read it.
+ */
+public class RewritesContentProvider extends ContentProvider implements ContentProvider.PipeDataWriter<String> {
+
+    public static final String AUTHORITY = "ee.ioc.phon.android.speak.provider.RewritesContentProvider";
+
+    private static final String[] COLUMNS = {OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE};
+
+    public static Uri getUri(String name) {
+        return new Uri.Builder()
+                .scheme("content")
+                .authority(AUTHORITY)
+                .appendPath(name + RewritesCodec.FILE_EXTENSION)
+                .build();
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        // The size is not known before the table is encoded
+        MatrixCursor cursor = new MatrixCursor(COLUMNS, 1);
+        cursor.addRow(new Object[]{uri.getLastPathSegment(), null});
+        return cursor;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return RewritesCodec.MIME_TYPE;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues contentValues) {
+        return null;
+    }
+
+    @Override
+    public int delete(Uri uri, String s, String[] strings) {
+        return 0;
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues contentValues, String s, String[] strings) {
+        return 0;
+    }
+
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        String name = getName(uri);
+        String rewrites = name == null ? null : RewritesStore.getInstance(getContext()).get(name);
+        if (rewrites == null) {
+            throw new FileNotFoundException(uri.toString());
+        }
+        return openPipeHelper(uri, RewritesCodec.MIME_TYPE, null, rewrites, this);
+    }
+
+    @Override
+    public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType, Bundle opts, String rewrites) {
+        OutputStream os = new FileOutputStream(output.getFileDescriptor());
+        try {
+            RewritesCodec.encode(new UtteranceRewriter(rewrites).toTsv(), os);
+        } catch (IOException e) {
+            // E.g. the reader closed the pipe
+            Log.i("RewritesContentProvider: " + uri + ": " + e.getLocalizedMessage());
+        } finally {
+            try {
+                os.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    private static String getName(Uri uri) {
+        String segment = uri.getLastPathSegment();
+        if (segment == null || !segment.endsWith(RewritesCodec.FILE_EXTENSION)) {
+            return null;
+        }
+        return segment.substring(0, segment.length() - RewritesCodec.FILE_EXTENSION.length());
+    }
+}
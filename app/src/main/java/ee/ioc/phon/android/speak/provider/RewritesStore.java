@@ -0,0 +1,395 @@
+package ee.ioc.phon.android.speak.provider;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.res.Resources;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import ee.ioc.phon.android.speak.Log;
+import ee.ioc.phon.android.speak.R;
+import ee.ioc.phon.android.speak.utils.Metrics;
+import ee.ioc.phon.android.speak.utils.RewriterIndex;
+import ee.ioc.phon.android.speak.utils.RuleGuard;
+import ee.ioc.phon.android.speak.utils.TaskScheduler;
+import ee.ioc.phon.android.speechutils.utils.PreferenceUtils;
+
+/**
+ * <p>Store of the rewrite tables (content, and the subscription URL and sync status, see RewritesSync),
+ * in a dedicated SQLite database. Earlier the tables were stored in the default SharedPreferences
+ * (keyRewritesMap), which are loaded into memory as a whole, and rewritten as a whole on every
+ * change. Here, a table is loaded only when it is needed, and every change is a transaction that
+ * touches only the row of the table.</p>
+ *
+ * <p>The tables in the SharedPreferences are moved here once, in the background after the store
+ * is first opened (keyRewritesMigrated is set when done), and after they are put there
+ * by GetPutPreferenceActivity (see {@link #migrate}).</p>
+ *
+ * <p>The clips of the loadClip/saveClip commands (keyClipboardMap) stay in the SharedPreferences,
+ * because these commands are implemented in speechutils (InputConnectionCommandEditor), which
+ * reads and writes the map directly with PreferenceUtils. The clipboard of the IME (see SpeechInputView)
+ * is built from the rewrite tables, i.e. it reads from this store.</p>
+ *
+ * <p>Large tables are read in chunks, because a row of a Cursor must fit into
+ * its window (2 MB). The tables that have been read are cached until they are changed,
+ * i.e. the IME reads a table from the database only once. The listeners are told which
+ * table has changed, i.e. they can refresh only what depends on that table.</p>
+ */
+public final class RewritesStore {
+
+    private static final String DATABASE_NAME = "rewrites.db";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String TABLE = "rewrites";
+    private static final String NAME = "name";
+    private static final String CONTENT = "content";
+    private static final String URL = "url";
+    private static final String SYNC_STATUS = "sync_status";
+
+    // Number of characters that are read at once, at most 4 bytes each in UTF-8
+    private static final int CHUNK_LENGTH = 256 * 1024;
+
+    private static final String WHERE_NAME = NAME + "=?";
+
+    private static RewritesStore sInstance;
+
+    private final DatabaseHelper mDbHelper;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<>();
+    private final Map<String, String> mCache = new HashMap<>();
+    // Incremented on every change, so that a table that was read during a change is not cached
+    private int mGeneration = 0;
+
+    private RewritesStore(Context context) {
+        mDbHelper = new DatabaseHelper(context);
+    }
+
+    /**
+     * Returns the store. The database is opened only when it is first used, and the tables in the
+     * SharedPreferences are migrated in the background. The tables that are read before the migration
+     * has finished can be missing, i.e. the readers must reread them when the listeners are notified
+     * that several tables have changed (name == null). The other methods access the database,
+     * i.e. they must be called in the background.
+     */
+    public static synchronized RewritesStore getInstance(Context context) {
+        if (sInstance == null) {
+            final Context appContext = context.getApplicationContext();
+            final RewritesStore store = new RewritesStore(appContext);
+            sInstance = store;
+            TaskScheduler.post(TaskScheduler.Lane.IO, new TaskScheduler.Token(), () -> {
+                // The rules that froze the rewriting in an earlier process stay blocked
+                RuleGuard.init(appContext);
+                store.migrateOnce(appContext);
+            });
+        }
+        return sInstance;
+    }
+
+    public interface Listener {
+        /**
+         * Called on the main thread after a table has changed.
+         *
+         * @param name name of the table that has changed, or null if several tables have changed
+         */
+        void onChanged(String name);
+    }
+
+    public void registerListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void unregisterListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * @return names of the tables, sorted ignoring case
+     */
+    public List<String> getNames() {
+        return queryNames(null);
+    }
+
+    /**
+     * @return names of the tables that are subscribed to a URL
+     */
+    public List<String> getSubscribedNames() {
+        return queryNames(URL + " IS NOT NULL");
+    }
+
+    /**
+     * @return content of the table as a TSV string, or null if there is no such table
+     */
+    public String get(String name) {
+        int generation;
+        synchronized (mCache) {
+            String content = mCache.get(name);
+            if (content != null) {
+                return content;
+            }
+            generation = mGeneration;
+        }
+        String content = read(name);
+        if (content != null) {
+            synchronized (mCache) {
+                if (generation == mGeneration) {
+                    mCache.put(name, content);
+                }
+            }
+        }
+        return content;
+    }
+
+    private String read(String name) {
+        long startTime = SystemClock.uptimeMillis();
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        db.beginTransaction();
+        try {
+            int length;
+            Cursor cursor = db.query(TABLE, new String[]{"length(" + CONTENT + ")"}, WHERE_NAME, new String[]{name}, null, null, null);
+            try {
+                if (!cursor.moveToFirst()) {
+                    return null;
+                }
+                length = cursor.getInt(0);
+            } finally {
+                cursor.close();
+            }
+            StringBuilder sb = new StringBuilder(length);
+            // substr counts characters from 1
+            for (int start = 1; start <= length; start += CHUNK_LENGTH) {
+                cursor = db.rawQuery("SELECT substr(" + CONTENT + ", " + start + ", " + CHUNK_LENGTH + ") FROM "
+                        + TABLE + " WHERE " + WHERE_NAME, new String[]{name});
+                try {
+                    if (cursor.moveToFirst()) {
+                        sb.append(cursor.getString(0));
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+            db.setTransactionSuccessful();
+            return sb.toString();
+        } finally {
+            db.endTransaction();
+            Metrics.sample("rewrite.store.read", SystemClock.uptimeMillis() - startTime);
+        }
+    }
+
+    /**
+     * Creates the table, or replaces its content (keeping its subscription).
+     */
+    public void put(String name, String content) {
+        ContentValues values = new ContentValues();
+        values.put(CONTENT, content);
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            putValues(db, name, values);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        notifyListeners(name);
+    }
+
+    /**
+     * Renames the table (together with its subscription), replacing the table with the new name.
+     */
+    public void rename(String name, String newName) {
+        ContentValues values = new ContentValues();
+        values.put(NAME, newName);
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.delete(TABLE, WHERE_NAME, new String[]{newName});
+            db.update(TABLE, values, WHERE_NAME, new String[]{name});
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        RewriterIndex.remove(name);
+        RewriterIndex.remove(newName);
+        notifyListeners(name);
+        notifyListeners(newName);
+    }
+
+    public void delete(String name) {
+        mDbHelper.getWritableDatabase().delete(TABLE, WHERE_NAME, new String[]{name});
+        RewriterIndex.remove(name);
+        notifyListeners(name);
+    }
+
+    public String getUrl(String name) {
+        return queryString(URL, name);
+    }
+
+    /**
+     * Subscribes the table to the given URL (or unsubscribes it if the URL is null),
+     * and clears its sync status.
+     */
+    public void setUrl(String name, String url) {
+        ContentValues values = new ContentValues();
+        values.put(URL, url);
+        values.putNull(SYNC_STATUS);
+        mDbHelper.getWritableDatabase().update(TABLE, values, WHERE_NAME, new String[]{name});
+    }
+
+    public String getSyncStatus(String name) {
+        return queryString(SYNC_STATUS, name);
+    }
+
+    /**
+     * Stores the sync status, and the new content of the table (if not null), in one transaction.
+     */
+    public void putSyncStatus(String name, String syncStatus, String content) {
+        ContentValues values = new ContentValues();
+        values.put(SYNC_STATUS, syncStatus);
+        if (content != null) {
+            values.put(CONTENT, content);
+        }
+        mDbHelper.getWritableDatabase().update(TABLE, values, WHERE_NAME, new String[]{name});
+        if (content != null) {
+            notifyListeners(name);
+        }
+    }
+
+    /**
+     * Moves the tables (and their subscriptions) from the SharedPreferences into the store,
+     * in one transaction. The table names that do not have content yet (e.g. it is still
+     * being fetched by GetPutPreferenceActivity) are left in the SharedPreferences.
+     */
+    public void migrate(SharedPreferences prefs, Resources res) {
+        Set<String> names = new HashSet<>();
+        for (String name : PreferenceUtils.getPrefMapKeys(prefs, res, R.string.keyRewritesMap)) {
+            if (PreferenceUtils.getPrefMapEntry(prefs, res, R.string.keyRewritesMap, name) != null) {
+                names.add(name);
+            }
+        }
+        if (names.isEmpty()) {
+            return;
+        }
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (String name : names) {
+                ContentValues values = new ContentValues();
+                values.put(CONTENT, PreferenceUtils.getPrefMapEntry(prefs, res, R.string.keyRewritesMap, name));
+                values.put(URL, PreferenceUtils.getPrefMapEntry(prefs, res, R.string.keyRewritesSubscriptions, name));
+                values.put(SYNC_STATUS, PreferenceUtils.getPrefMapEntry(prefs, res, R.string.keyRewritesSyncStatus, name));
+                putValues(db, name, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        // Removed only after the transaction has succeeded
+        PreferenceUtils.clearPrefMap(prefs, res, R.string.keyRewritesMap, names);
+        PreferenceUtils.clearPrefMap(prefs, res, R.string.keyRewritesSubscriptions, names);
+        PreferenceUtils.clearPrefMap(prefs, res, R.string.keyRewritesSyncStatus, names);
+        Log.i("RewritesStore: migrated: " + names);
+        notifyListeners(null);
+    }
+
+    /**
+     * Migrates the tables unless this has been done before. The listeners are notified
+     * (see {@link #migrate}), i.e. the tables that were read before the migration are reread.
+     */
+    private void migrateOnce(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        Resources res = context.getResources();
+        String key = res.getString(R.string.keyRewritesMigrated);
+        if (!prefs.getBoolean(key, false)) {
+            migrate(prefs, res);
+            prefs.edit().putBoolean(key, true).apply();
+        }
+    }
+
+    private static void putValues(SQLiteDatabase db, String name, ContentValues values) {
+        if (db.update(TABLE, values, WHERE_NAME, new String[]{name}) == 0) {
+            values.put(NAME, name);
+            db.insertOrThrow(TABLE, null, values);
+        }
+    }
+
+    private List<String> queryNames(String selection) {
+        List<String> names = new ArrayList<>();
+        Cursor cursor = mDbHelper.getReadableDatabase().query(TABLE, new String[]{NAME}, selection,
+                null, null, null, NAME + " COLLATE NOCASE");
+        try {
+            while (cursor.moveToNext()) {
+                names.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return names;
+    }
+
+    private String queryString(String column, String name) {
+        Cursor cursor = mDbHelper.getReadableDatabase().query(TABLE, new String[]{column}, WHERE_NAME,
+                new String[]{name}, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Removes the table from the cache (and unblocks the rules, see RuleGuard) and notifies
+     * the listeners, called after every change of the content.
+     *
+     * @param name name of the table that has changed, or null if several tables have changed
+     */
+    private void notifyListeners(final String name) {
+        synchronized (mCache) {
+            if (name == null) {
+                mCache.clear();
+            } else {
+                mCache.remove(name);
+            }
+            mGeneration++;
+        }
+        // The blocked rules might have been fixed
+        RuleGuard.clear();
+        for (final Listener listener : mListeners) {
+            mHandler.post(() -> listener.onChanged(name));
+        }
+    }
+
+    private static class DatabaseHelper extends SQLiteOpenHelper {
+
+        DatabaseHelper(Context context) {
+            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE + " ("
+                    + NAME + " TEXT PRIMARY KEY NOT NULL,"
+                    + CONTENT + " TEXT NOT NULL,"
+                    + URL + " TEXT,"
+                    + SYNC_STATUS + " TEXT"
+                    + ");");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            // Nothing to upgrade yet
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package ee.ioc.phon.android.speak.service;
+
+import android.os.SystemClock;
+
+import java.io.ByteArrayOutputStream;
+
+import ee.ioc.phon.android.speak.utils.Metrics;
+
+/**
+ * Delivers the recorded audio to the client (RecognitionListener.onBufferReceived) in batches,
+ * and only if the client has asked for it (EXTRA_GET_AUDIO). Every delivery is a Binder call,
+ * so batching reduces the number of calls, and skipping the delivery avoids copying the audio
+ * to clients that ignore it (e.g. the IME).
+ */
+class AudioBufferDelivery {
+
+    // About 1 sec of 16 kHz raw audio
+    private static final int BATCH_SIZE = 32 * 1024;
+
+    interface Consumer {
+        void onBufferReceived(byte[] buffer);
+    }
+
+    private final boolean mIsWanted;
+    private final Consumer mConsumer;
+    private final ByteArrayOutputStream mBatch = new ByteArrayOutputStream(BATCH_SIZE);
+    private final long mStartTime = SystemClock.elapsedRealtime();
+    private long mNumBytesDelivered;
+
+    AudioBufferDelivery(boolean isWanted, Consumer consumer) {
+        mIsWanted = isWanted;
+        mConsumer = consumer;
+    }
+
+    /**
+     * @return true if the client wants the audio, i.e. the raw audio needs to be read
+     */
+    boolean isWanted() {
+        return mIsWanted;
+    }
+
+    synchronized void add(byte[] buffer) {
+        if (mIsWanted && buffer != null && buffer.length > 0) {
+            mBatch.write(buffer, 0, buffer.length);
+            if (mBatch.size() >= BATCH_SIZE) {
+                flush();
+            }
+        }
+    }
+
+    synchronized void flush() {
+        if (mBatch.size() > 0) {
+            byte[] bytes = mBatch.toByteArray();
+            mBatch.reset();
+            mNumBytesDelivered += bytes.length;
+            mConsumer.onBufferReceived(bytes);
+        }
+    }
+
+    /**
+     * Records the Binder traffic per minute of recording. The remaining audio is not delivered,
+     * because the session might have already returned its result, i.e. the services must
+     * flush the audio before they send the last chunk (EOS).
+     */
+    synchronized void close() {
+        mBatch.reset();
+        long duration = SystemClock.elapsedRealtime() - mStartTime;
+        Metrics.add("binder.bytes", mNumBytesDelivered);
+        if (duration > 0) {
+            Metrics.sample("binder.bytesPerMinute", 60000 * mNumBytesDelivered / duration);
+        }
+    }
+}
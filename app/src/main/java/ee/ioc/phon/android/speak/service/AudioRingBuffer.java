@@ -0,0 +1,138 @@
+package ee.ioc.phon.android.speak.service;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+
+/**
+ * Bounded buffer of sequence-numbered audio chunks that have been sent to the server.
+ * Chunks are acknowledged (and removed) once the server has finalized the corresponding audio,
+ * so that after a reconnect the session can be resumed by resending the unacknowledged chunks.
+ * The chunks also have byte offsets (from the start of the recording), so that the audio
+ * can be acknowledged up to the end of a finalized segment.
+ * If the buffer overflows then the oldest chunks are dropped, and the buffer cannot be
+ * replayed until the dropped chunks have been acknowledged.
+ */
+class AudioRingBuffer {
+
+    private final int mCapacity;
+    private final ArrayDeque<Chunk> mChunks = new ArrayDeque<>();
+    private int mSize;
+    private long mNextSeq;
+    private long mNextOffset;
+    private long mAckedSeq = -1;
+    private long mDroppedSeq = -1;
+    private long mDroppedEnd;
+
+    AudioRingBuffer(int capacity) {
+        mCapacity = capacity;
+    }
+
+    /**
+     * @return sequence number of the added chunk
+     */
+    synchronized long add(byte[] bytes) {
+        long seq = mNextSeq++;
+        mChunks.addLast(new Chunk(seq, mNextOffset, bytes));
+        mNextOffset += bytes.length;
+        mSize += bytes.length;
+        while (mSize > mCapacity && !mChunks.isEmpty()) {
+            Chunk chunk = mChunks.removeFirst();
+            mSize -= chunk.mBytes.length;
+            mDroppedSeq = chunk.mSeq;
+            mDroppedEnd = chunk.getEnd();
+        }
+        return seq;
+    }
+
+    /**
+     * Acknowledges all the chunks up to (and including) the given sequence number.
+     */
+    synchronized void ack(long seq) {
+        while (!mChunks.isEmpty() && mChunks.getFirst().mSeq <= seq) {
+            mSize -= mChunks.removeFirst().mBytes.length;
+        }
+        mAckedSeq = Math.max(mAckedSeq, seq);
+    }
+
+    /**
+     * Acknowledges the chunks that end at or before the given byte offset. The chunk that
+     * contains the offset is not acknowledged, i.e. it is resent together with the rest.
+     */
+    synchronized void ackBytes(long offset) {
+        while (!mChunks.isEmpty() && mChunks.getFirst().getEnd() <= offset) {
+            Chunk chunk = mChunks.removeFirst();
+            mSize -= chunk.mBytes.length;
+            mAckedSeq = Math.max(mAckedSeq, chunk.mSeq);
+        }
+        // The dropped chunks that end before the offset are acknowledged as well
+        if (mDroppedSeq > mAckedSeq && mDroppedEnd <= offset) {
+            mAckedSeq = mDroppedSeq;
+        }
+    }
+
+    /**
+     * Acknowledges all the chunks added so far.
+     */
+    synchronized void ackAll() {
+        ack(mNextSeq - 1);
+    }
+
+    /**
+     * @return true if all the unacknowledged chunks are in the buffer
+     */
+    synchronized boolean isComplete() {
+        return mDroppedSeq <= mAckedSeq;
+    }
+
+    /**
+     * @return concatenation of the unacknowledged chunks
+     */
+    synchronized byte[] getUnacked() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(mSize);
+        for (Chunk chunk : mChunks) {
+            baos.write(chunk.mBytes, 0, chunk.mBytes.length);
+        }
+        return baos.toByteArray();
+    }
+
+    synchronized long getFirstUnackedSeq() {
+        return mChunks.isEmpty() ? mNextSeq : mChunks.getFirst().mSeq;
+    }
+
+    /**
+     * @return byte offset of the first unacknowledged chunk, i.e. of the audio returned by {@link #getUnacked}
+     */
+    synchronized long getFirstUnackedOffset() {
+        return mChunks.isEmpty() ? mNextOffset : mChunks.getFirst().mOffset;
+    }
+
+    synchronized long getNextSeq() {
+        return mNextSeq;
+    }
+
+    synchronized void clear() {
+        mChunks.clear();
+        mSize = 0;
+        mNextSeq = 0;
+        mNextOffset = 0;
+        mAckedSeq = -1;
+        mDroppedSeq = -1;
+        mDroppedEnd = 0;
+    }
+
+    private static class Chunk {
+        private final long mSeq;
+        private final long mOffset;
+        private final byte[] mBytes;
+
+        Chunk(long seq, long offset, byte[] bytes) {
+            mSeq = seq;
+            mOffset = offset;
+            mBytes = bytes;
+        }
+
+        long getEnd() {
+            return mOffset + mBytes.length;
+        }
+    }
+}
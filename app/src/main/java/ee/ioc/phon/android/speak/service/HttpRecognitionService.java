@@ -22,25 +22,24 @@ import android.app.SearchManager;
 import android.content.Intent;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Looper;
-import android.os.Process;
 import android.speech.RecognizerIntent;
 import android.speech.SpeechRecognizer;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import ee.ioc.phon.android.speak.ChunkedWebRecSessionBuilder;
 import ee.ioc.phon.android.speak.Log;
-import ee.ioc.phon.android.speak.R;
+import ee.ioc.phon.android.speak.utils.Metrics;
+import ee.ioc.phon.android.speak.utils.TaskScheduler;
 import ee.ioc.phon.android.speechutils.AudioRecorder;
 import ee.ioc.phon.android.speechutils.EncodedAudioRecorder;
 import ee.ioc.phon.android.speechutils.Extras;
 import ee.ioc.phon.android.speechutils.service.AbstractRecognitionService;
 import ee.ioc.phon.android.speechutils.utils.IntentUtils;
-import ee.ioc.phon.android.speechutils.utils.PreferenceUtils;
 import ee.ioc.phon.netspeechapi.recsession.ChunkedWebRecSession;
 import ee.ioc.phon.netspeechapi.recsession.Hypothesis;
 import ee.ioc.phon.netspeechapi.recsession.Linearization;
@@ -50,6 +49,9 @@ import ee.ioc.phon.netspeechapi.recsession.RecSessionResult;
 
 /**
  * Implements RecognitionService, connects to the server via HTTP.
+ * If the result does not arrive before the deadline (counted from the end of the input, i.e. it
+ * includes the sending of the remaining audio, {@link #MAX_WAIT} if the deadline is not set), then the session is cancelled and a timeout is reported.
+ * The result of every session is waited for in the BLOCKING lane (see {@link Transcription}).
  *
  * @author Kaarel Kaljurand
  */
@@ -59,24 +61,51 @@ public class HttpRecognitionService extends AbstractRecognitionService {
     private static final int TASK_DELAY_SEND = 100;
     private static final int TASK_INTERVAL_SEND = 300;
 
-    private volatile Looper mSendLooper;
-    private volatile Handler mSendHandler;
+    // Upper bound of the wait for the result, if the deadline is not set
+    private static final int MAX_WAIT = 60000;
+
+    private volatile TaskScheduler.Token mSendToken;
 
     private Runnable mSendTask;
 
     private ChunkedWebRecSession mRecSession;
 
+    private int mDeadline;
+
+    private volatile AudioBufferDelivery mBufferDelivery;
+
+    private ServiceConfig.Holder mConfigHolder;
+
+    private final Handler mDeadlineHandler = new Handler(Looper.getMainLooper());
+
+    // Makes sure that either the result/error or the timeout is reported, but not both (per session)
+    private volatile AtomicBoolean mIsAnswered = new AtomicBoolean();
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mConfigHolder = new ServiceConfig.Holder(this);
+    }
+
+    @Override
+    public void onDestroy() {
+        mConfigHolder.close();
+        super.onDestroy();
+    }
+
     @Override
     protected String getEncoderType() {
-        return PreferenceUtils.getPrefString(getSharedPreferences(), getResources(),
-                R.string.keyAudioFormat, R.string.defaultAudioFormat);
+        return mConfigHolder.get().getHttpAudioFormat();
     }
 
     @Override
     protected void configure(Intent recognizerIntent) throws IOException {
-        ChunkedWebRecSessionBuilder mRecSessionBuilder = new ChunkedWebRecSessionBuilder(this, getExtras(), null);
+        ChunkedWebRecSessionBuilder mRecSessionBuilder = new ChunkedWebRecSessionBuilder(this, getExtras(), null, mConfigHolder.get());
 
         mRecSessionBuilder.setContentType(getEncoderType(), getSampleRate());
+        mDeadline = mRecSessionBuilder.getDeadline();
+        mBufferDelivery = new AudioBufferDelivery(getExtras().getBoolean(Extras.EXTRA_GET_AUDIO, false), this::onBufferReceived);
+        mIsAnswered = new AtomicBoolean();
         if (Log.DEBUG) Log.i(mRecSessionBuilder.toStringArrayList());
         mRecSession = mRecSessionBuilder.build();
         try {
@@ -91,32 +120,39 @@ public class HttpRecognitionService extends AbstractRecognitionService {
 
     @Override
     protected void connect() {
-        HandlerThread thread = new HandlerThread("HttpSendHandlerThread", Process.THREAD_PRIORITY_BACKGROUND);
-        thread.start();
-        mSendLooper = thread.getLooper();
-        mSendHandler = new Handler(mSendLooper);
+        final TaskScheduler.Token token = new TaskScheduler.Token();
+        mSendToken = token;
 
         // Send chunks to the server
         mSendTask = new Runnable() {
             public void run() {
                 AudioRecorder audioRecorder = getRecorder();
                 if (audioRecorder != null) {
-                    byte[] buffer = audioRecorder.consumeRecording();
-                    onBufferReceived(buffer);
+                    boolean isEncoded = audioRecorder instanceof EncodedAudioRecorder;
+                    AudioBufferDelivery bufferDelivery = mBufferDelivery;
+                    boolean isWanted = bufferDelivery != null && bufferDelivery.isWanted();
+                    // The raw audio is not read if it is not sent and nobody wants it
+                    byte[] buffer = null;
+                    if (isWanted || !isEncoded) {
+                        buffer = audioRecorder.consumeRecording();
+                        if (isWanted) {
+                            bufferDelivery.add(buffer);
+                        }
+                    }
                     try {
-                        if (audioRecorder instanceof EncodedAudioRecorder) {
+                        if (isEncoded) {
                             sendChunk(((EncodedAudioRecorder) audioRecorder).consumeRecordingEnc(), false);
                         } else {
                             sendChunk(buffer, false);
                         }
-                        mSendHandler.postDelayed(this, TASK_INTERVAL_SEND);
+                        TaskScheduler.postDelayed(TaskScheduler.Lane.AUDIO, token, this, TASK_INTERVAL_SEND);
                     } catch (IOException e) {
                         onError(SpeechRecognizer.ERROR_NETWORK);
                     }
                 }
             }
         };
-        mSendHandler.postDelayed(mSendTask, TASK_DELAY_SEND);
+        TaskScheduler.postDelayed(TaskScheduler.Lane.AUDIO, token, mSendTask, TASK_DELAY_SEND);
     }
 
     @Override
@@ -126,22 +162,17 @@ public class HttpRecognitionService extends AbstractRecognitionService {
 
     @Override
     protected boolean isAudioCues() {
-        return PreferenceUtils.getPrefBoolean(getSharedPreferences(), getResources(), R.string.keyAudioCues, R.bool.defaultAudioCues);
+        return mConfigHolder.get().isHttpAudioCues();
     }
 
     @Override
     protected int getSampleRate() {
-        return PreferenceUtils.getPrefInt(getSharedPreferences(), getResources(), R.string.keyRecordingRate, R.string.defaultRecordingRate);
+        return mConfigHolder.get().getSampleRate();
     }
 
     @Override
     protected int getAutoStopAfterMillis() {
-        //return 1000 * PreferenceUtils.getPrefInt(getSharedPreferences(), getResources(),
-        //        R.string.keyAutoStopAfterTime, R.string.defaultAutoStopAfterTime);
-        return 1000 * Integer.parseInt(
-                getSharedPreferences().getString(
-                        getString(R.string.keyAutoStopAfterTime),
-                        getString(R.string.defaultAutoStopAfterTime)));
+        return mConfigHolder.get().getAutoStopAfterMillis();
     }
 
     @Override
@@ -151,19 +182,23 @@ public class HttpRecognitionService extends AbstractRecognitionService {
         if (getExtras().containsKey(Extras.EXTRA_UNLIMITED_DURATION)) {
             return !getExtras().getBoolean(Extras.EXTRA_UNLIMITED_DURATION);
         }
-        return PreferenceUtils.getPrefBoolean(getSharedPreferences(), getResources(), R.string.keyAutoStopAfterPause, R.bool.defaultAutoStopAfterPause);
+        return mConfigHolder.get().isAutoStopAfterPause();
     }
 
+    /**
+     * Releases the resources of the current session, which is not answered anymore.
+     */
     private void releaseResources() {
+        mIsAnswered.set(true);
         stopTasks();
+        AudioBufferDelivery bufferDelivery = mBufferDelivery;
+        mBufferDelivery = null;
+        if (bufferDelivery != null) {
+            bufferDelivery.close();
+        }
         if (mRecSession != null && !mRecSession.isFinished()) {
             mRecSession.cancel();
         }
-
-        if (mSendLooper != null) {
-            mSendLooper.quit();
-            mSendLooper = null;
-        }
     }
 
 
@@ -186,24 +221,128 @@ public class HttpRecognitionService extends AbstractRecognitionService {
 
 
     private void stopTasks() {
-        if (mSendHandler != null) mSendHandler.removeCallbacks(mSendTask);
+        TaskScheduler.cancel(mSendToken);
     }
 
 
     private void transcribeAndFinishInBackground(final byte[] bytes) {
-        Thread t = new Thread() {
-            public void run() {
-                try {
-                    sendChunk(bytes, true);
-                    getResult(mRecSession);
-                } catch (IOException e) {
+        if (mRecSession == null) {
+            onError(SpeechRecognizer.ERROR_CLIENT);
+            return;
+        }
+        if (!new Transcription(bytes).start()) {
+            onError(SpeechRecognizer.ERROR_RECOGNIZER_BUSY);
+        }
+    }
+
+
+    /**
+     * <p>Sends the last chunk of a session and waits for its result. The wait is blocking,
+     * so it runs in the BLOCKING lane (which runs several tasks at a time), i.e. it does not hold up
+     * the DECODE lane (which is shared with the rewriting of the results), nor the session that
+     * the user might start in the meantime.</p>
+     *
+     * <p>The transcription refers only to the resources of its own session, because the fields
+     * of the service can already refer to the next session when the result arrives.
+     * When the deadline expires, the session is cancelled and the thread is interrupted
+     * (unless the transcription has already finished, because the thread is reused).</p>
+     */
+    private class Transcription implements Runnable {
+        private final byte[] mBytes;
+        private final ChunkedWebRecSession mSession;
+        private final AudioBufferDelivery mDelivery;
+        private final TaskScheduler.Token mToken;
+        private final AtomicBoolean mAnswered;
+        private final int mWait;
+        private final Runnable mDeadlineTask = this::onDeadline;
+        // Thread that runs the transcription, null when it is not running
+        private Thread mThread;
+
+        Transcription(byte[] bytes) {
+            mBytes = bytes;
+            mSession = mRecSession;
+            mDelivery = mBufferDelivery;
+            mToken = mSendToken;
+            mAnswered = mIsAnswered;
+            mWait = mDeadline > 0 ? mDeadline : MAX_WAIT;
+        }
+
+        /**
+         * Arms the deadline, i.e. a slow upload of the remaining audio (or a full lane)
+         * counts towards it, and starts the transcription.
+         *
+         * @return false if the transcription could not be started, i.e. the lane is full
+         */
+        boolean start() {
+            mDeadlineHandler.postDelayed(mDeadlineTask, mWait);
+            if (TaskScheduler.post(TaskScheduler.Lane.BLOCKING, new TaskScheduler.Token(), this)) {
+                return true;
+            }
+            mDeadlineHandler.removeCallbacks(mDeadlineTask);
+            return false;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                mThread = Thread.currentThread();
+            }
+            try {
+                // The deadline expired while the transcription was queued
+                if (mAnswered.get()) {
+                    return;
+                }
+                // The client gets all the audio before the result
+                if (mDelivery != null) {
+                    mDelivery.flush();
+                }
+                if (!mSession.isFinished()) {
+                    mSession.sendChunk(mBytes, true);
+                }
+                getResult(mSession, mAnswered);
+            } catch (IOException e) {
+                if (mAnswered.compareAndSet(false, true)) {
                     onError(SpeechRecognizer.ERROR_NETWORK);
-                } finally {
-                    releaseResources();
+                }
+            } finally {
+                release();
+                synchronized (this) {
+                    mThread = null;
+                    // Clears the interrupt of the deadline, the thread runs other tasks next
+                    Thread.interrupted();
                 }
             }
-        };
-        t.start();
+        }
+
+        private void onDeadline() {
+            if (mAnswered.compareAndSet(false, true)) {
+                Log.i("Deadline expired: " + mWait + " ms");
+                Metrics.inc("http.deadline.timeout");
+                if (!mSession.isFinished()) {
+                    mSession.cancel();
+                }
+                synchronized (this) {
+                    if (mThread != null) {
+                        mThread.interrupt();
+                    }
+                }
+                onError(SpeechRecognizer.ERROR_NETWORK_TIMEOUT);
+            }
+        }
+
+        private void release() {
+            mDeadlineHandler.removeCallbacks(mDeadlineTask);
+            TaskScheduler.cancel(mToken);
+            if (mDelivery != null) {
+                mDelivery.close();
+            }
+            if (mBufferDelivery == mDelivery) {
+                mBufferDelivery = null;
+            }
+            if (!mSession.isFinished()) {
+                mSession.cancel();
+            }
+        }
     }
 
 
@@ -212,9 +351,14 @@ public class HttpRecognitionService extends AbstractRecognitionService {
      * Otherwise packages the results in two different formats which both use an {@code ArrayList<String>}
      * and sends the results to the caller.</p>
      */
-    private void getResult(RecSession recSession) throws IOException {
+    private void getResult(RecSession recSession, AtomicBoolean isAnswered) throws IOException {
         RecSessionResult result = recSession.getResult();
 
+        // The deadline has already expired, or the session has been released
+        if (!isAnswered.compareAndSet(false, true)) {
+            return;
+        }
+
         if (result == null) {
             Log.i("Callback: error: ERROR_NO_MATCH: RecSessionResult == null");
             onError(SpeechRecognizer.ERROR_NO_MATCH);
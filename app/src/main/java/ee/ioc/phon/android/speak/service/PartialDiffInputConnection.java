@@ -0,0 +1,177 @@
+package ee.ioc.phon.android.speak.service;
+
+import android.view.inputmethod.InputConnection;
+import android.view.inputmethod.InputConnectionWrapper;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import ee.ioc.phon.android.speak.utils.Metrics;
+
+/**
+ * InputConnection that replaces the composing text (i.e. the partial result) by sending only
+ * the part that follows the common prefix of the previous and the new composing text.
+ * The position of the composing region is tracked without querying the editor: it is updated
+ * by every edit, and compared to the editor's selection updates (see InputMethodService#onUpdateSelection).
+ * These arrive asynchronously, i.e. an update can describe an earlier edit, and several edits can be
+ * reported by a single update. Therefore the expected regions of the edits whose updates have not
+ * arrived yet are queued, and an update is a mismatch only if it matches none of them (e.g. the editor
+ * itself has changed the text). After a mismatch, the complete composing text is replaced.
+ */
+public class PartialDiffInputConnection extends InputConnectionWrapper {
+
+    // Max number of edits whose selection updates are waited for
+    private static final int MAX_PENDING = 16;
+
+    // Composing text set by the previous call to setComposingText
+    private String mComposing;
+    // Composing region as reported by the editor (or updated by us), -1 if unknown
+    private int mComposingStart = -1;
+    private int mComposingEnd = -1;
+    // Cursor position as reported by the editor (or updated by us), -1 if there is a selection
+    private int mCursor = -1;
+    // Expected composing regions (start, or -1 if any, and length) of the edits, whose updates have not arrived
+    private final Deque<int[]> mPending = new ArrayDeque<>();
+
+    public PartialDiffInputConnection(InputConnection target) {
+        super(target, false);
+    }
+
+    /**
+     * Must be called from InputMethodService#onUpdateSelection.
+     */
+    public void onUpdateSelection(int selStart, int selEnd, int candidatesStart, int candidatesEnd) {
+        if (!mPending.isEmpty()) {
+            int cursor = selStart == selEnd ? selEnd : -1;
+            while (!mPending.isEmpty() && !matches(mPending.peekFirst(), cursor, candidatesStart, candidatesEnd)) {
+                mPending.pollFirst();
+            }
+            if (mPending.isEmpty()) {
+                // The editor has changed the text, i.e. the region that we track is not reliable
+                Metrics.inc("ime.partial.mismatch");
+                mComposing = null;
+                mComposingStart = -1;
+                mComposingEnd = -1;
+                mCursor = -1;
+                return;
+            }
+            // This and the earlier edits have been reported
+            mPending.pollFirst();
+            if (!mPending.isEmpty()) {
+                // Keeps the region of the later edits
+                return;
+            }
+        }
+        mCursor = selStart == selEnd ? selEnd : -1;
+        mComposingStart = candidatesStart;
+        mComposingEnd = candidatesEnd;
+    }
+
+    @Override
+    public boolean setComposingText(CharSequence text, int newCursorPosition) {
+        String prev = mComposing;
+        String next = text.toString();
+        mComposing = next;
+        if (next.equals(prev) && newCursorPosition == 1) {
+            return true;
+        }
+        if (newCursorPosition == 1 && prev != null && mComposingStart >= 0
+                && mComposingEnd - mComposingStart == prev.length() && mCursor == mComposingEnd) {
+            int prefix = getCommonPrefixLength(prev, next);
+            if (prefix > 0) {
+                int start = mComposingStart;
+                beginBatchEdit();
+                try {
+                    if (super.setComposingRegion(start + prefix, mComposingEnd)) {
+                        boolean success = super.setComposingText(text.subSequence(prefix, text.length()), 1);
+                        super.setComposingRegion(start, start + next.length());
+                        mComposingEnd = start + next.length();
+                        mCursor = mComposingEnd;
+                        expect(start, next.length());
+                        Metrics.inc("ime.partial.diff");
+                        Metrics.add("ime.partial.charsSaved", prefix);
+                        return success;
+                    }
+                } finally {
+                    endBatchEdit();
+                }
+            }
+        }
+        Metrics.inc("ime.partial.full");
+        // The new region is known after the selection update of this edit
+        mComposingStart = -1;
+        mComposingEnd = -1;
+        mCursor = -1;
+        if (newCursorPosition == 1) {
+            expect(-1, next.length());
+        } else {
+            mPending.clear();
+        }
+        return super.setComposingText(text, newCursorPosition);
+    }
+
+    private void expect(int start, int length) {
+        if (mPending.size() >= MAX_PENDING) {
+            mPending.pollFirst();
+        }
+        mPending.addLast(new int[]{start, length});
+    }
+
+    /**
+     * @return true if the editor reports the expected composing region, with the cursor at its end
+     */
+    private static boolean matches(int[] expected, int cursor, int candidatesStart, int candidatesEnd) {
+        return (expected[0] < 0 || expected[0] == candidatesStart) && candidatesStart >= 0
+                && candidatesEnd - candidatesStart == expected[1] && cursor == candidatesEnd;
+    }
+
+    private void reset() {
+        mComposing = null;
+        mPending.clear();
+    }
+
+    @Override
+    public boolean setComposingRegion(int start, int end) {
+        reset();
+        return super.setComposingRegion(start, end);
+    }
+
+    @Override
+    public boolean finishComposingText() {
+        reset();
+        return super.finishComposingText();
+    }
+
+    @Override
+    public boolean commitText(CharSequence text, int newCursorPosition) {
+        reset();
+        return super.commitText(text, newCursorPosition);
+    }
+
+    @Override
+    public boolean deleteSurroundingText(int beforeLength, int afterLength) {
+        reset();
+        return super.deleteSurroundingText(beforeLength, afterLength);
+    }
+
+    @Override
+    public boolean setSelection(int start, int end) {
+        reset();
+        return super.setSelection(start, end);
+    }
+
+    /**
+     * Length of the common prefix, which does not end in the middle of a surrogate pair.
+     */
+    private static int getCommonPrefixLength(String a, String b) {
+        int max = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < max && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        if (i > 0 && Character.isHighSurrogate(a.charAt(i - 1))) {
+            i--;
+        }
+        return i;
+    }
+}
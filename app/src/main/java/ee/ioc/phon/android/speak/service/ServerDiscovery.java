@@ -0,0 +1,289 @@
+package ee.ioc.phon.android.speak.service;
+
+import android.os.SystemClock;
+
+import com.koushikdutta.async.http.AsyncHttpClient;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Comparator;
+import java.util.Iterator;
+
+import ee.ioc.phon.android.speak.Log;
+import ee.ioc.phon.android.speak.utils.Metrics;
+import ee.ioc.phon.android.speak.utils.TaskScheduler;
+
+/**
+ * <p>Discovers WebSocket-based recognizer servers in the /24 subnet of the given IPv4 address.</p>
+ *
+ * <p>Every address of the subnet is probed with a non-blocking TCP connect to the recognizer port,
+ * with at most {@link #MAX_PARALLEL} connection attempts in flight. The hosts that accept
+ * the connection are verified by querying their status-socket (see {@link ServerPool}),
+ * and only the hosts that report "num_workers_available" are passed to the listener.</p>
+ *
+ * <p>Runs on the calling thread (typically a {@link TaskScheduler} lane), and stops early if the
+ * given token is cancelled. The listener is called from background threads.</p>
+ */
+public final class ServerDiscovery implements Runnable {
+
+    public static final int DEFAULT_PORT = 8080;
+    public static final String DEFAULT_PATH = "/client/ws/";
+
+    // Max number of simultaneous connection attempts
+    private static final int MAX_PARALLEL = 64;
+    // A host that does not accept the connection within this time is skipped
+    private static final long CONNECT_TIMEOUT = 500;
+    // Time to wait for the status of the candidates after the probing has finished
+    private static final long VERIFY_TIMEOUT = 3000;
+    private static final long SELECT_INTERVAL = 50;
+
+    /**
+     * Orders the servers by decreasing number of available workers, and then by increasing RTT.
+     */
+    public static final Comparator<DiscoveredServer> RANKING = (s1, s2) -> {
+        if (s1.mNumWorkersAvailable != s2.mNumWorkersAvailable) {
+            return s2.mNumWorkersAvailable - s1.mNumWorkersAvailable;
+        }
+        // Long.compare requires API 19
+        return s1.mRtt < s2.mRtt ? -1 : (s1.mRtt == s2.mRtt ? 0 : 1);
+    };
+
+    public interface Listener {
+        void onProgress(String host);
+
+        void onServerFound(DiscoveredServer server);
+
+        void onFinished(String errorMessage);
+    }
+
+    private final String mIp;
+    private final int mPort;
+    private final String mPath;
+    private final TaskScheduler.Token mToken;
+    private final Listener mListener;
+    private final Object mLock = new Object();
+    private int mNumPending = 0;
+
+    /**
+     * @param ip       IPv4 address in the subnet to be scanned
+     * @param port     port of the recognizer
+     * @param path     path of the recognizer WebSocket API, ending with a slash, e.g. "/client/ws/"
+     * @param token    token whose cancellation stops the discovery
+     * @param listener listener of the discovered servers
+     */
+    public ServerDiscovery(String ip, int port, String path, TaskScheduler.Token token, Listener listener) {
+        mIp = ip;
+        mPort = port < 0 ? DEFAULT_PORT : port;
+        mPath = path == null || !path.endsWith("/") ? DEFAULT_PATH : path;
+        mToken = token;
+        mListener = listener;
+    }
+
+    @Override
+    public void run() {
+        long startTime = SystemClock.elapsedRealtime();
+        String errorMessage = null;
+        try {
+            InetAddress addr = InetAddress.getByName(mIp);
+            if (!(addr instanceof Inet4Address)) {
+                throw new IOException("Not an IPv4 address: " + mIp);
+            }
+            probe(mIp.substring(0, mIp.lastIndexOf('.') + 1));
+            awaitVerification();
+        } catch (IOException ex) {
+            Log.e(ex.toString());
+            errorMessage = ex.getLocalizedMessage();
+        }
+        Metrics.sample("discovery.time", SystemClock.elapsedRealtime() - startTime);
+        mListener.onFinished(errorMessage);
+    }
+
+    /**
+     * Connects to the recognizer port of all the hosts of the subnet, keeping at most MAX_PARALLEL
+     * connection attempts in flight, and starts the verification of the hosts that accept.
+     */
+    private void probe(String base) throws IOException {
+        Selector selector = Selector.open();
+        try {
+            int next = 0;
+            while (!mToken.isCancelled() && (next <= 255 || !selector.keys().isEmpty())) {
+                while (next <= 255 && selector.keys().size() < MAX_PARALLEL) {
+                    String host = base + next++;
+                    connect(selector, host);
+                    mListener.onProgress(host);
+                }
+                selector.select(SELECT_INTERVAL);
+                Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+                while (iter.hasNext()) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+                    SocketChannel channel = (SocketChannel) key.channel();
+                    try {
+                        if (channel.finishConnect()) {
+                            verify(((Probe) key.attachment()).mHost);
+                        }
+                    } catch (IOException e) {
+                        // Connection refused, i.e. no recognizer on this host
+                    }
+                    close(key);
+                }
+                long now = SystemClock.elapsedRealtime();
+                for (SelectionKey key : selector.keys()) {
+                    if (key.isValid() && now - ((Probe) key.attachment()).mStartTime > CONNECT_TIMEOUT) {
+                        close(key);
+                    }
+                }
+                // Deregisters the closed channels so that they do not count towards the limit
+                selector.selectNow();
+            }
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                close(key);
+            }
+            selector.close();
+        }
+    }
+
+    private void connect(Selector selector, String host) {
+        Metrics.inc("discovery.probed");
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            if (channel.connect(new InetSocketAddress(host, mPort))) {
+                channel.close();
+                verify(host);
+            } else {
+                channel.register(selector, SelectionKey.OP_CONNECT, new Probe(host));
+            }
+        } catch (IOException e) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private static void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Queries the status-socket of the given host, and reports the host if it responds with
+     * the number of available workers.
+     */
+    private void verify(final String host) {
+        final String url = "ws://" + host + ":" + mPort + mPath;
+        Metrics.inc("discovery.candidates");
+        synchronized (mLock) {
+            mNumPending++;
+        }
+        final long start = SystemClock.elapsedRealtime();
+        AsyncHttpClient.getDefaultInstance().websocket(url + "status", "", (ex, webSocket) -> {
+            if (ex != null) {
+                onVerified();
+                return;
+            }
+            webSocket.setStringCallback(s -> {
+                long rtt = SystemClock.elapsedRealtime() - start;
+                webSocket.setStringCallback(null);
+                webSocket.close();
+                try {
+                    int numOfWorkers = new JSONObject(s).getInt("num_workers_available");
+                    if (!mToken.isCancelled()) {
+                        Metrics.inc("discovery.verified");
+                        Log.i("ServerDiscovery: found: " + url + " (" + numOfWorkers + ", " + rtt + " ms)");
+                        mListener.onServerFound(new DiscoveredServer(host, url, rtt, numOfWorkers));
+                    }
+                } catch (JSONException e) {
+                    Log.i("ServerDiscovery: not a recognizer: " + url);
+                }
+                onVerified();
+            });
+        });
+    }
+
+    private void onVerified() {
+        synchronized (mLock) {
+            mNumPending--;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until the pending verifications have finished, the timeout is reached,
+     * or the discovery is cancelled.
+     */
+    private void awaitVerification() {
+        long deadline = SystemClock.elapsedRealtime() + VERIFY_TIMEOUT;
+        synchronized (mLock) {
+            long remaining;
+            while (mNumPending > 0 && !mToken.isCancelled()
+                    && (remaining = deadline - SystemClock.elapsedRealtime()) > 0) {
+                try {
+                    mLock.wait(Math.min(remaining, SELECT_INTERVAL));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private static class Probe {
+        private final String mHost;
+        private final long mStartTime;
+
+        Probe(String host) {
+            mHost = host;
+            mStartTime = SystemClock.elapsedRealtime();
+        }
+    }
+
+    public static final class DiscoveredServer {
+        private final String mHost;
+        private final String mUrl;
+        private final long mRtt;
+        private final int mNumWorkersAvailable;
+
+        private DiscoveredServer(String host, String url, long rtt, int numWorkersAvailable) {
+            mHost = host;
+            mUrl = url;
+            mRtt = rtt;
+            mNumWorkersAvailable = numWorkersAvailable;
+        }
+
+        public String getHost() {
+            return mHost;
+        }
+
+        /**
+         * @return base URL of the server, e.g. "ws://192.168.0.10:8080/client/ws/"
+         */
+        public String getUrl() {
+            return mUrl;
+        }
+
+        public long getRtt() {
+            return mRtt;
+        }
+
+        public int getNumWorkersAvailable() {
+            return mNumWorkersAvailable;
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package ee.ioc.phon.android.speak.service;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.koushikdutta.async.future.Future;
+import com.koushikdutta.async.http.AsyncHttpClient;
+import com.koushikdutta.async.http.AsyncHttpGet;
+import com.koushikdutta.async.http.WebSocket;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import ee.ioc.phon.android.speak.Log;
+import ee.ioc.phon.android.speak.R;
+import ee.ioc.phon.android.speak.provider.Server;
+
+/**
+ * <p>Keeps track of the load of a set of WebSocket-based recognizer servers, and routes each
+ * recognition session to the least loaded available server.</p>
+ *
+ * <p>The load is queried from the status-socket of the server (i.e. the last path segment of the
+ * speech-URL is replaced by "status"), which responds with e.g.</p>
+ * <pre>
+ * {"num_workers_available": 3, "num_requests_processed": 123}
+ * </pre>
+ *
+ * <p>The status of every server is refreshed in the background for as long as the pool is in use,
+ * i.e. for some time after the last routing decision.</p>
+ */
+public final class ServerPool {
+
+    // Status that is older than this is not trusted when routing
+    private static final long STATUS_MAX_AGE = 30000;
+    // Interval of the background status check
+    private static final long CHECK_INTERVAL = 10000;
+    // Stop checking if the pool has not been used for this long
+    private static final long IDLE_TIMEOUT = 5 * 60000;
+    // Timeout of connecting to the status socket
+    private static final int CONNECT_TIMEOUT = 5000;
+    // Timeout of the whole status check (connecting and waiting for the status)
+    private static final long CHECK_TIMEOUT = 10000;
+
+    private static final ServerPool INSTANCE = new ServerPool();
+
+    private final Map<String, ServerStatus> mStatus = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicInteger> mNumSelected = new ConcurrentHashMap<>();
+    // Start index of the next selection, so that equally good servers are selected in turns
+    private final AtomicInteger mNextIndex = new AtomicInteger();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private List<String> mUrls = new ArrayList<>();
+    private long mLastUsed;
+    private boolean mIsChecking = false;
+    private volatile String mLastSelected;
+    private volatile Listener mListener;
+
+    private final Runnable mCheckTask = new Runnable() {
+        public void run() {
+            List<String> urls;
+            synchronized (ServerPool.this) {
+                if (SystemClock.elapsedRealtime() - mLastUsed > IDLE_TIMEOUT) {
+                    mIsChecking = false;
+                    return;
+                }
+                urls = mUrls;
+            }
+            for (String url : urls) {
+                check(url);
+            }
+            mHandler.postDelayed(this, CHECK_INTERVAL);
+        }
+    };
+
+    public interface Listener {
+        void onStatusChanged(String url);
+    }
+
+    private ServerPool() {
+    }
+
+    public static ServerPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the URLs of the WebSocket-based servers (ws:// and wss://) in the server list,
+     * preceded by the given URL (typically the server URL from the settings).
+     * Base URLs (ending with a slash) are completed with the "speech" path segment.
+     */
+    public static List<String> getUrls(Context context, String defaultUrl) {
+        Set<String> urls = new LinkedHashSet<>();
+        if (defaultUrl != null) {
+            urls.add(defaultUrl);
+        }
+        Cursor c = context.getContentResolver().query(
+                Server.Columns.CONTENT_URI,
+                new String[]{Server.Columns.URL},
+                null,
+                null,
+                null);
+        if (c != null) {
+            while (c.moveToNext()) {
+                String url = c.getString(0);
+                if (isWsUrl(url)) {
+                    urls.add(url.endsWith("/") ? url + "speech" : url);
+                }
+            }
+            c.close();
+        }
+        return new ArrayList<>(urls);
+    }
+
+    public static boolean isWsUrl(String url) {
+        return url != null && (url.startsWith("ws://") || url.startsWith("wss://"));
+    }
+
+    public static String getStatusUrl(String url) {
+        return url.substring(0, url.lastIndexOf('/') + 1) + "status";
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public ServerStatus getStatus(String url) {
+        return mStatus.get(url);
+    }
+
+    public int getNumSelected(String url) {
+        AtomicInteger count = mNumSelected.get(url);
+        return count == null ? 0 : count.get();
+    }
+
+    public String getLastSelected() {
+        return mLastSelected;
+    }
+
+    /**
+     * Starts (or keeps alive) the background status check of the given servers.
+     */
+    public void startChecking(Collection<String> urls) {
+        synchronized (this) {
+            mUrls = new ArrayList<>(urls);
+            mLastUsed = SystemClock.elapsedRealtime();
+            if (!mIsChecking) {
+                mIsChecking = true;
+                mHandler.post(mCheckTask);
+            }
+        }
+    }
+
+    /**
+     * Selects the server with the largest number of available workers, preferring the
+     * server with the smaller RTT in case of a tie. Servers that are equally good are selected
+     * in turns (round-robin). Servers whose status is unknown, outdated,
+     * or erroneous are not considered. If no server qualifies then returns the fallback URL.
+     *
+     * @param urls     list of candidate servers
+     * @param fallback URL to use if no candidate is known to be available
+     * @return URL of the selected server
+     */
+    public String select(List<String> urls, String fallback) {
+        startChecking(urls);
+        long now = SystemClock.elapsedRealtime();
+        String bestUrl = null;
+        ServerStatus best = null;
+        int size = urls.size();
+        int offset = size == 0 ? 0 : (mNextIndex.getAndIncrement() & Integer.MAX_VALUE) % size;
+        for (int i = 0; i < size; i++) {
+            String url = urls.get((offset + i) % size);
+            ServerStatus status = mStatus.get(url);
+            if (status != null && status.isAvailable(now) && (best == null || status.isBetterThan(best))) {
+                best = status;
+                bestUrl = url;
+            }
+        }
+        if (bestUrl == null) {
+            bestUrl = fallback;
+            Log.i("ServerPool: no available server, using: " + bestUrl);
+        } else {
+            Log.i("ServerPool: selected: " + bestUrl + " (" + best + ")");
+        }
+        AtomicInteger count = mNumSelected.get(bestUrl);
+        if (count == null) {
+            AtomicInteger newCount = new AtomicInteger();
+            count = mNumSelected.putIfAbsent(bestUrl, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+        count.incrementAndGet();
+        mLastSelected = bestUrl;
+        return bestUrl;
+    }
+
+    /**
+     * Marks the given server as unavailable until its next status check,
+     * e.g. after it has rejected a session or the connection has failed.
+     */
+    public void markFailed(String url, String reason) {
+        update(new ServerStatus(url, -1, 0, reason == null ? "failed" : reason));
+    }
+
+    /**
+     * Queries the status of the given server in the background. If the server does not
+     * connect within {@link #CONNECT_TIMEOUT}, or does not respond within {@link #CHECK_TIMEOUT},
+     * then the check is cancelled and the server is marked as unavailable.
+     */
+    public void check(final String url) {
+        final long start = SystemClock.elapsedRealtime();
+        // Set when the status (or error) has been recorded, the later callbacks are ignored
+        final AtomicBoolean isDone = new AtomicBoolean(false);
+        final AtomicReference<WebSocket> socketRef = new AtomicReference<>();
+        AsyncHttpGet request = new AsyncHttpGet(getStatusUrl(url).replace("ws://", "http://").replace("wss://", "https://"));
+        request.setTimeout(CONNECT_TIMEOUT);
+        final Future<WebSocket> future = AsyncHttpClient.getDefaultInstance().websocket(request, "", (ex, webSocket) -> {
+            if (ex != null) {
+                if (isDone.compareAndSet(false, true)) {
+                    update(new ServerStatus(url, -1, 0, ex.getLocalizedMessage()));
+                }
+                return;
+            }
+            socketRef.set(webSocket);
+            if (isDone.get()) {
+                webSocket.close();
+                return;
+            }
+            webSocket.setStringCallback(s -> {
+                webSocket.setStringCallback(null);
+                webSocket.close();
+                if (!isDone.compareAndSet(false, true)) {
+                    return;
+                }
+                long rtt = SystemClock.elapsedRealtime() - start;
+                try {
+                    int numOfWorkers = new JSONObject(s).getInt("num_workers_available");
+                    update(new ServerStatus(url, rtt, numOfWorkers, null));
+                } catch (JSONException e) {
+                    update(new ServerStatus(url, rtt, 0, e.getLocalizedMessage()));
+                }
+            });
+        });
+        mHandler.postDelayed(() -> {
+            if (isDone.compareAndSet(false, true)) {
+                future.cancel();
+                WebSocket webSocket = socketRef.get();
+                if (webSocket != null) {
+                    webSocket.close();
+                }
+                update(new ServerStatus(url, -1, 0, "timeout"));
+            }
+        }, CHECK_TIMEOUT);
+    }
+
+    private void update(ServerStatus status) {
+        mStatus.put(status.getUrl(), status);
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onStatusChanged(status.getUrl());
+        }
+    }
+
+    public static final class ServerStatus {
+        private final String mUrl;
+        private final long mRtt;
+        private final int mNumWorkersAvailable;
+        private final String mError;
+        private final long mTimestamp;
+
+        private ServerStatus(String url, long rtt, int numWorkersAvailable, String error) {
+            mUrl = url;
+            mRtt = rtt;
+            mNumWorkersAvailable = numWorkersAvailable;
+            mError = error;
+            mTimestamp = SystemClock.elapsedRealtime();
+        }
+
+        public String getUrl() {
+            return mUrl;
+        }
+
+        public long getRtt() {
+            return mRtt;
+        }
+
+        public int getNumWorkersAvailable() {
+            return mNumWorkersAvailable;
+        }
+
+        public String getError() {
+            return mError;
+        }
+
+        public boolean isAvailable(long now) {
+            return mError == null && mNumWorkersAvailable > 0 && now - mTimestamp < STATUS_MAX_AGE;
+        }
+
+        private boolean isBetterThan(ServerStatus status) {
+            if (mNumWorkersAvailable == status.mNumWorkersAvailable) {
+                return mRtt < status.mRtt;
+            }
+            return mNumWorkersAvailable > status.mNumWorkersAvailable;
+        }
+
+        public String toString(Resources res) {
+            if (mError != null) {
+                return String.format(res.getString(R.string.summaryWsServerWithStatusError), mError);
+            }
+            return res.getQuantityString(R.plurals.summaryWsServerWithStatus, mNumWorkersAvailable, mNumWorkersAvailable)
+                    + " · " + String.format(res.getString(R.string.statusServerRtt), mRtt);
+        }
+
+        @Override
+        public String toString() {
+            return "workers=" + mNumWorkersAvailable + ", rtt=" + mRtt + ", error=" + mError;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package ee.ioc.phon.android.speak.service;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.res.Resources;
+import android.preference.PreferenceManager;
+
+import ee.ioc.phon.android.speak.Log;
+import ee.ioc.phon.android.speak.R;
+import ee.ioc.phon.android.speak.utils.Metrics;
+import ee.ioc.phon.android.speechutils.utils.PreferenceUtils;
+
+/**
+ * Immutable snapshot of the settings that the recognition services need when setting up a session.
+ * The services obtain the snapshot from a {@link Holder}, which rebuilds it only when the
+ * settings change, so that the session setup does not need to read the SharedPreferences.
+ */
+public final class ServiceConfig {
+
+    private final String mDeviceId;
+    private final String mHttpServer;
+    private final String mWsServer;
+    private final String mHttpAudioFormat;
+    private final String mWsAudioFormat;
+    private final boolean mIsHttpAudioCues;
+    private final boolean mIsWsAudioCues;
+    private final int mSampleRate;
+    private final int mAutoStopAfterMillis;
+    private final boolean mIsAutoStopAfterPause;
+    private final int mDeadline;
+    private final boolean mIsWsServerPool;
+    private final boolean mIsWsHedged;
+    private final int mWsHedgeDelay;
+    private final boolean mIsWsVad;
+    private final int mWsRingBufferSize;
+    private final boolean mIsRespectLocale;
+
+    private ServiceConfig(SharedPreferences prefs, Resources res) {
+        mDeviceId = PreferenceUtils.getUniqueId(prefs);
+        mHttpServer = PreferenceUtils.getPrefString(prefs, res, R.string.keyHttpServer, R.string.defaultHttpServer);
+        mWsServer = PreferenceUtils.getPrefString(prefs, res, R.string.keyWsServer, R.string.defaultWsServer);
+        mHttpAudioFormat = PreferenceUtils.getPrefString(prefs, res, R.string.keyAudioFormat, R.string.defaultAudioFormat);
+        mWsAudioFormat = PreferenceUtils.getPrefString(prefs, res, R.string.keyImeAudioFormat, R.string.defaultAudioFormat);
+        mIsHttpAudioCues = PreferenceUtils.getPrefBoolean(prefs, res, R.string.keyAudioCues, R.bool.defaultAudioCues);
+        mIsWsAudioCues = PreferenceUtils.getPrefBoolean(prefs, res, R.string.keyImeAudioCues, R.bool.defaultImeAudioCues);
+        mSampleRate = PreferenceUtils.getPrefInt(prefs, res, R.string.keyRecordingRate, R.string.defaultRecordingRate);
+        mAutoStopAfterMillis = 1000 * PreferenceUtils.getPrefInt(prefs, res, R.string.keyAutoStopAfterTime, R.string.defaultAutoStopAfterTime);
+        mIsAutoStopAfterPause = PreferenceUtils.getPrefBoolean(prefs, res, R.string.keyAutoStopAfterPause, R.bool.defaultAutoStopAfterPause);
+        mDeadline = 1000 * PreferenceUtils.getPrefInt(prefs, res, R.string.keyDeadline, R.string.defaultDeadline);
+        mIsWsServerPool = PreferenceUtils.getPrefBoolean(prefs, res, R.string.keyWsServerPool, R.bool.defaultWsServerPool);
+        mIsWsHedged = PreferenceUtils.getPrefBoolean(prefs, res, R.string.keyWsHedged, R.bool.defaultWsHedged);
+        mWsHedgeDelay = PreferenceUtils.getPrefInt(prefs, res, R.string.keyWsHedgeDelay, R.string.defaultWsHedgeDelay);
+        mIsWsVad = PreferenceUtils.getPrefBoolean(prefs, res, R.string.keyWsVad, R.bool.defaultWsVad);
+        mWsRingBufferSize = 1024 * PreferenceUtils.getPrefInt(prefs, res, R.string.keyWsRingBufferSize, R.string.defaultWsRingBufferSize);
+        mIsRespectLocale = prefs.getBoolean(res.getString(R.string.keyRespectLocale), false);
+    }
+
+    public String getDeviceId() {
+        return mDeviceId;
+    }
+
+    public String getHttpServer() {
+        return mHttpServer;
+    }
+
+    public String getWsServer() {
+        return mWsServer;
+    }
+
+    public String getHttpAudioFormat() {
+        return mHttpAudioFormat;
+    }
+
+    public String getWsAudioFormat() {
+        return mWsAudioFormat;
+    }
+
+    public boolean isHttpAudioCues() {
+        return mIsHttpAudioCues;
+    }
+
+    public boolean isWsAudioCues() {
+        return mIsWsAudioCues;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getAutoStopAfterMillis() {
+        return mAutoStopAfterMillis;
+    }
+
+    public boolean isAutoStopAfterPause() {
+        return mIsAutoStopAfterPause;
+    }
+
+    /**
+     * @return deadline for the final result in milliseconds, 0 means no deadline
+     */
+    public int getDeadline() {
+        return mDeadline;
+    }
+
+    public boolean isWsServerPool() {
+        return mIsWsServerPool;
+    }
+
+    public boolean isWsHedged() {
+        return mIsWsHedged;
+    }
+
+    /**
+     * @return delay (after EOS) of the hedged session in milliseconds
+     */
+    public int getWsHedgeDelay() {
+        return mWsHedgeDelay;
+    }
+
+    public boolean isWsVad() {
+        return mIsWsVad;
+    }
+
+    /**
+     * @return size of the audio ring buffer in bytes
+     */
+    public int getWsRingBufferSize() {
+        return mWsRingBufferSize;
+    }
+
+    public boolean isRespectLocale() {
+        return mIsRespectLocale;
+    }
+
+    /**
+     * Holds the current snapshot, and replaces it whenever the settings change.
+     * The snapshot can be read from any thread without locking.
+     * Note that SharedPreferences keeps only a weak reference to its listeners,
+     * i.e. the holder must be referenced by its owner.
+     */
+    public static class Holder implements SharedPreferences.OnSharedPreferenceChangeListener {
+
+        private final SharedPreferences mPrefs;
+        private final Resources mRes;
+        private volatile ServiceConfig mConfig;
+
+        public Holder(Context context) {
+            mPrefs = PreferenceManager.getDefaultSharedPreferences(context);
+            mRes = context.getResources();
+            mConfig = new ServiceConfig(mPrefs, mRes);
+            mPrefs.registerOnSharedPreferenceChangeListener(this);
+        }
+
+        public ServiceConfig get() {
+            return mConfig;
+        }
+
+        public void close() {
+            mPrefs.unregisterOnSharedPreferenceChangeListener(this);
+        }
+
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+            Log.i("ServiceConfig: rebuilding after change of " + key);
+            mConfig = new ServiceConfig(mPrefs, mRes);
+            Metrics.inc("config.rebuild");
+        }
+    }
+}
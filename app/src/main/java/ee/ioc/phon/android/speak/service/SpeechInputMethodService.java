@@ -3,16 +3,21 @@ package ee.ioc.phon.android.speak.service;
 import android.annotation.TargetApi;
 import android.app.Dialog;
 import android.content.ComponentName;
+import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
 import android.inputmethodservice.InputMethodService;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.speech.SpeechRecognizer;
 import android.support.annotation.NonNull;
+import android.support.v4.os.TraceCompat;
 import android.text.InputType;
 import android.view.View;
 import android.view.Window;
@@ -23,12 +28,25 @@ import android.view.inputmethod.InputMethodManager;
 import android.view.inputmethod.InputMethodSubtype;
 import android.widget.Toast;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
 
 import ee.ioc.phon.android.speak.Log;
 import ee.ioc.phon.android.speak.R;
 import ee.ioc.phon.android.speak.activity.PermissionsRequesterActivity;
 import ee.ioc.phon.android.speak.model.CallerInfo;
+import ee.ioc.phon.android.speak.model.Rewrites;
+import ee.ioc.phon.android.speak.provider.RewritesStore;
+import ee.ioc.phon.android.speak.utils.ClipIndex;
+import ee.ioc.phon.android.speak.utils.MemoizingRewriter;
+import ee.ioc.phon.android.speak.utils.Metrics;
+import ee.ioc.phon.android.speak.utils.RewritesSync;
+import ee.ioc.phon.android.speak.utils.SpeculativeFetch;
+import ee.ioc.phon.android.speak.utils.TaskScheduler;
 import ee.ioc.phon.android.speak.utils.Utils;
 import ee.ioc.phon.android.speak.view.AbstractSpeechInputViewListener;
 import ee.ioc.phon.android.speak.view.SpeechInputView;
@@ -37,6 +55,7 @@ import ee.ioc.phon.android.speechutils.editor.CommandEditor;
 import ee.ioc.phon.android.speechutils.editor.CommandEditorResult;
 import ee.ioc.phon.android.speechutils.editor.InputConnectionCommandEditor;
 import ee.ioc.phon.android.speechutils.editor.Op;
+import ee.ioc.phon.android.speechutils.editor.UtteranceRewriter;
 import ee.ioc.phon.android.speechutils.utils.PreferenceUtils;
 
 public class SpeechInputMethodService extends InputMethodService {
@@ -44,16 +63,83 @@ public class SpeechInputMethodService extends InputMethodService {
     private InputMethodManager mInputMethodManager;
     private SpeechInputView mInputView;
     private CommandEditor mCommandEditor;
+    private PartialDiffInputConnection mInputConnection;
     private boolean mShowPartialResults;
     private SharedPreferences mPrefs;
     private Resources mRes;
 
+    // Incremented whenever the settings (or several rewrite tables) change, the settings below are reread only if it has changed
+    private long mPrefsGeneration;
+    private long mCachedPrefsGeneration = -1;
+    private Bundle mExtras;
+    private int mImeMode;
+    private boolean mIsAutoStart;
+    private boolean mIsSpeculativeFetch;
+    // Matches the spoken lookup of a clip ("paste <name>"), null if the lookup is off
+    private Pattern mClipLookupPattern;
+    private Iterable<UtteranceRewriter> mRewritersIterable;
+    private List<UtteranceRewriter> mRewriters;
+    // Rewrites (and checks the rules of) the final results in the background
+    private MemoizingRewriter mMemoizingRewriter;
+    // Clips of the default rewrite tables, for the spoken lookup ("paste <name>")
+    private final ClipIndex mClipIndex = new ClipIndex();
+    private TaskScheduler.Token mClipIndexToken = new TaskScheduler.Token();
+    // Rewrites of the final results before they are committed
+    private final TaskScheduler.Token mGuardToken = new TaskScheduler.Token();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private long mCreateTime;
+
+    // Settings that do not change the view: the current combo of the IME is stored by the view
+    // itself (see ServiceLanguageChooser), i.e. the view already shows it, and the current combo
+    // of the recognizer activity is not used by the IME
+    private Set<String> mIgnoredPrefKeys;
+
+    // SharedPreferences keeps only a weak reference to the listener
+    private final SharedPreferences.OnSharedPreferenceChangeListener mPrefsListener = (sharedPreferences, key) -> {
+        if (!mIgnoredPrefKeys.contains(key)) {
+            mPrefsGeneration++;
+        }
+    };
+
+    // The rewrite tables are not in the SharedPreferences. A change of a single table
+    // refreshes only the rewriters (and the clipboard), not all the settings.
+    // Several tables change e.g. when they are migrated after an upgrade, which can happen
+    // after the rewriters of the current session have been read.
+    private final RewritesStore.Listener mRewritesListener = name -> {
+        if (name == null) {
+            mPrefsGeneration++;
+        }
+        refreshRewriters(name);
+    };
+
     @Override
     public void onCreate() {
         super.onCreate();
         Log.i("onCreate");
+        mCreateTime = SystemClock.uptimeMillis();
         mInputMethodManager = (InputMethodManager) getSystemService(INPUT_METHOD_SERVICE);
         mCommandEditor = new InputConnectionCommandEditor(getApplicationContext());
+        mPrefs = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
+        mRes = getResources();
+        mIgnoredPrefKeys = new HashSet<>(Arrays.asList(
+                getString(R.string.keyImeCurrentCombo),
+                getString(R.string.keyCurrentCombo)));
+        mPrefs.registerOnSharedPreferenceChangeListener(mPrefsListener);
+        RewritesStore.getInstance(this).registerListener(mRewritesListener);
+        // The refresh alarm of the subscribed rewrite tables does not survive a reboot (scheduled in the background)
+        RewritesSync.schedule(getApplicationContext());
+    }
+
+    @Override
+    public void onDestroy() {
+        mPrefs.unregisterOnSharedPreferenceChangeListener(mPrefsListener);
+        RewritesStore.getInstance(this).unregisterListener(mRewritesListener);
+        TaskScheduler.cancel(mClipIndexToken);
+        TaskScheduler.cancel(mGuardToken);
+        if (mMemoizingRewriter != null) {
+            mMemoizingRewriter.close();
+        }
+        super.onDestroy();
     }
 
     /**
@@ -69,7 +155,14 @@ public class SpeechInputMethodService extends InputMethodService {
     @Override
     public View onCreateInputView() {
         Log.i("onCreateInputView");
+        TraceCompat.beginSection("inflateInputView");
         mInputView = (SpeechInputView) getLayoutInflater().inflate(R.layout.voice_ime_view, null, false);
+        TraceCompat.endSection();
+        if (mCreateTime > 0) {
+            // Time from the creation of the service to the first frame of the keyboard
+            Utils.sampleFirstFrame(mInputView, "startup.ime.firstFrame", mCreateTime);
+            mCreateTime = 0;
+        }
         return mInputView;
     }
 
@@ -140,6 +233,7 @@ public class SpeechInputMethodService extends InputMethodService {
     public void onStartInputView(EditorInfo editorInfo, boolean restarting) {
         super.onStartInputView(editorInfo, restarting);
         Log.i("onStartInputView: " + editorInfo.inputType + "/" + editorInfo.imeOptions + "/" + restarting);
+        long startTime = SystemClock.uptimeMillis();
 
         InputConnection ic = getCurrentInputConnection();
         // InputConnectionCommandEditor cannot be called with a null InputConnection.
@@ -149,31 +243,55 @@ public class SpeechInputMethodService extends InputMethodService {
             switchToLastIme();
             return;
         }
-        ((InputConnectionCommandEditor) mCommandEditor).setInputConnection(ic);
-        mPrefs = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
-        mRes = getResources();
+        TraceCompat.beginSection("onStartInputView");
+        // Partial results are committed by replacing only the changed suffix
+        mInputConnection = new PartialDiffInputConnection(ic);
+        ((InputConnectionCommandEditor) mCommandEditor).setInputConnection(mInputConnection);
+        long prefsGeneration = mPrefsGeneration;
+        if (prefsGeneration != mCachedPrefsGeneration) {
+            mExtras = makeExtras(mPrefs, mRes);
+            mImeMode = PreferenceUtils.getPrefInt(mPrefs, mRes, R.string.keyImeMode, R.string.defaultImeMode);
+            mShowPartialResults = PreferenceUtils.getPrefBoolean(mPrefs, mRes, R.string.keyImeShowPartialResults, R.bool.defaultImeShowPartialResults);
+            mIsAutoStart = PreferenceUtils.getPrefBoolean(mPrefs, mRes, R.string.keyImeAutoStart, R.bool.defaultImeAutoStart);
+            mIsSpeculativeFetch = PreferenceUtils.getPrefBoolean(mPrefs, mRes, R.string.keySpeculativeFetch, R.bool.defaultSpeculativeFetch);
+            mClipLookupPattern = ClipIndex.makeLookupPattern(PreferenceUtils.getPrefString(mPrefs, mRes, R.string.keyClipLookup, R.string.defaultClipLookup));
+            mCachedPrefsGeneration = prefsGeneration;
+        }
+        // The view is fully reinitialized only if the settings have changed
         mInputView.init(
                 R.array.keysIme,
-                new CallerInfo(makeExtras(mPrefs, mRes), editorInfo, getPackageName()),
-                PreferenceUtils.getPrefInt(mPrefs, mRes, R.string.keyImeMode, R.string.defaultImeMode));
+                new CallerInfo(new Bundle(mExtras), editorInfo, getPackageName()),
+                mImeMode,
+                prefsGeneration);
 
-        // TODO: update this less often (in onStart)
         closeSession();
 
         if (restarting) {
+            TraceCompat.endSection();
+            Metrics.sample("ime.startInputView", SystemClock.uptimeMillis() - startTime);
             return;
         }
 
         mInputView.setListener(getSpeechInputViewListener(getMyWindow(), editorInfo.packageName), editorInfo);
-        mShowPartialResults = PreferenceUtils.getPrefBoolean(mPrefs, mRes, R.string.keyImeShowPartialResults, R.bool.defaultImeShowPartialResults);
+        TraceCompat.endSection();
+        Metrics.sample("ime.startInputView", SystemClock.uptimeMillis() - startTime);
 
         // Launch recognition immediately (if set so)
-        if (PreferenceUtils.getPrefBoolean(mPrefs, mRes, R.string.keyImeAutoStart, R.bool.defaultImeAutoStart)) {
+        if (mIsAutoStart) {
             Log.i("Auto-starting");
             mInputView.start();
         }
     }
 
+    @Override
+    public void onUpdateSelection(int oldSelStart, int oldSelEnd, int newSelStart, int newSelEnd,
+                                  int candidatesStart, int candidatesEnd) {
+        super.onUpdateSelection(oldSelStart, oldSelEnd, newSelStart, newSelEnd, candidatesStart, candidatesEnd);
+        if (mInputConnection != null) {
+            mInputConnection.onUpdateSelection(newSelStart, newSelEnd, candidatesStart, candidatesEnd);
+        }
+    }
+
     /**
      * Called when the input view is being hidden from the user.
      * This will be called either prior to hiding the window,
@@ -290,6 +408,58 @@ public class SpeechInputMethodService extends InputMethodService {
         return extras;
     }
 
+    /**
+     * Rereads the rewriters of the current combo if the given table is one of the default tables.
+     * Only the changed table is reread, the other tables (and their parsed partitions,
+     * see RewriterIndex) come from the caches.
+     *
+     * @param name name of the changed table, or null if several tables have changed
+     */
+    private void refreshRewriters(String name) {
+        if (mRewritersIterable == null || name != null && !Rewrites.getDefaults(mPrefs, mRes).contains(name)) {
+            return;
+        }
+        Metrics.inc("ime.rewriters.refresh");
+        resetRewriters();
+        if (mInputView != null) {
+            mInputView.invalidateClipboard();
+        }
+    }
+
+    /**
+     * Reads and parses the rewriters of the current combo in the background, and then gives them
+     * to the editor. The final results are rewritten in the same lane, i.e. after the rewriters are ready.
+     */
+    private void resetRewriters() {
+        if (mMemoizingRewriter != null) {
+            mMemoizingRewriter.close();
+        }
+        final MemoizingRewriter memoizingRewriter = new MemoizingRewriter(mRewritersIterable);
+        mMemoizingRewriter = memoizingRewriter;
+        TaskScheduler.post(TaskScheduler.Lane.DECODE, mGuardToken, () -> {
+            final List<UtteranceRewriter> rewriters = memoizingRewriter.getRewriters();
+            mHandler.post(() -> {
+                // Unless the combo has changed in the meantime
+                if (memoizingRewriter == mMemoizingRewriter) {
+                    mRewriters = rewriters;
+                    mCommandEditor.setRewriters(mRewriters);
+                    updateClipIndex(mRewriters);
+                }
+            });
+        });
+    }
+
+    /**
+     * Updates the clip index in the background. Only the clips that have changed since
+     * the previous update are reindexed.
+     */
+    private void updateClipIndex(final List<UtteranceRewriter> rewriters) {
+        TaskScheduler.cancel(mClipIndexToken);
+        mClipIndexToken = new TaskScheduler.Token();
+        TaskScheduler.post(TaskScheduler.Lane.BACKGROUND, mClipIndexToken,
+                () -> mClipIndex.update(ClipIndex.getClips(rewriters)));
+    }
+
     private SpeechInputView.SpeechInputViewListener getSpeechInputViewListener(final Window window, final String packageName) {
         return new AbstractSpeechInputViewListener() {
 
@@ -297,6 +467,9 @@ public class SpeechInputMethodService extends InputMethodService {
             // class name of the app
             private ComponentName app = new ComponentName(packageName, packageName);
 
+            // Number of final results that are waiting for the check of the rules
+            private int mNumPendingCommits = 0;
+
             private void runOp(Op op) {
                 mCommandEditor.runOp(op, false);
             }
@@ -311,32 +484,96 @@ public class SpeechInputMethodService extends InputMethodService {
                 }
             }
 
+            /**
+             * The text is rewritten in the background (with the rules matched within the budget,
+             * see RuleGuard) by the leading tables that contain no commands. Only the remaining tables,
+             * without the rules that exceeded the budget on this text, are applied by the editor
+             * on the main thread, because the editor executes their commands while it rewrites.
+             * The commits stay in order, because the rewrites run in a single lane, and the partial
+             * results are not shown while a commit is pending.
+             */
+            private void commitFinalGuarded(final String text) {
+                final MemoizingRewriter memoizingRewriter = mMemoizingRewriter;
+                mNumPendingCommits++;
+                boolean isPosted = memoizingRewriter != null && TaskScheduler.post(TaskScheduler.Lane.DECODE, mGuardToken, () -> {
+                    final MemoizingRewriter.EditorRewrite rewrite = memoizingRewriter.rewriteForEditor(text);
+                    mHandler.post(() -> {
+                        mNumPendingCommits--;
+                        mCommandEditor.setRewriters(rewrite.getRewriters());
+                        commitFinal(rewrite.getText());
+                        // Unless the combo has changed in the meantime, the skipped and blocked rules are left out from now on
+                        if (memoizingRewriter == mMemoizingRewriter) {
+                            mRewriters = memoizingRewriter.getRewriters();
+                        }
+                        mCommandEditor.setRewriters(mRewriters);
+                    });
+                });
+                if (!isPosted) {
+                    mNumPendingCommits--;
+                    commitFinal(text);
+                }
+            }
+
+            /**
+             * "paste <name>" is replaced by the clip whose name is closest to the name, which is then
+             * committed as if it was tapped in the clipboard. The name of the clip is shown (together
+             * with the heard name, if the match is approximate), i.e. the replacement is not silent.
+             */
+            private String lookupClip(String text) {
+                String query = ClipIndex.getQuery(mClipLookupPattern, text);
+                ClipIndex.Match match = mClipIndex.find(query);
+                if (match == null) {
+                    return text;
+                }
+                if (mInputView != null) {
+                    if (match.isExact()) {
+                        mInputView.showMessage(getString(R.string.statusClipLookup, match.getName()), true);
+                    } else {
+                        mInputView.showMessage(getString(R.string.statusClipLookupApprox, match.getName(), query), false);
+                    }
+                }
+                return match.getClip();
+            }
+
+            private void commitFinal(String text) {
+                CommandEditorResult editorResult = mCommandEditor.commitFinalResult(text);
+                if (editorResult != null && mInputView != null && editorResult.isCommand()) {
+                    mInputView.showMessage(editorResult.ppCommand(), editorResult.isSuccess());
+                }
+            }
+
             @Override
             public void onComboChange(String language, ComponentName service) {
                 // TODO: name of the rewrites table configurable
-                mCommandEditor.setRewriters(Utils.makeList(Utils.genRewriters(mPrefs, mRes, null, language, service, app)));
+                mRewritersIterable = Utils.genRewriters(SpeechInputMethodService.this, null, language, service, app);
+                resetRewriters();
             }
 
             @Override
             public void onPartialResult(List<String> results, boolean isSemiFinal) {
                 if (isSemiFinal) {
-                    CommandEditorResult editorResult = mCommandEditor.commitFinalResult(getText(results));
-                    if (editorResult != null && mInputView != null && editorResult.isCommand()) {
-                        mInputView.showMessage(editorResult.ppCommand(), editorResult.isSuccess());
-                    }
+                    commitFinalGuarded(lookupClip(getText(results)));
                 } else {
-                    if (mShowPartialResults) {
+                    if (mShowPartialResults && mNumPendingCommits == 0) {
                         mCommandEditor.commitPartialResult(getText(results));
                     }
+                    // The final result often equals the last partial result. The matching of the rules
+                    // for the speculative fetches also runs in the background, after the rewriting.
+                    if (mMemoizingRewriter != null) {
+                        if (mIsSpeculativeFetch) {
+                            final Context context = getApplicationContext();
+                            mMemoizingRewriter.prepare(Collections.singletonList(getText(results)), (texts, rewriters) ->
+                                    SpeculativeFetch.speculate(context, rewriters, null, texts.get(0)));
+                        } else {
+                            mMemoizingRewriter.prepare(Collections.singletonList(getText(results)), null);
+                        }
+                    }
                 }
             }
 
             @Override
             public void onFinalResult(List<String> results, Bundle bundle) {
-                CommandEditorResult editorResult = mCommandEditor.commitFinalResult(getText(results));
-                if (editorResult != null && mInputView != null && editorResult.isCommand()) {
-                    mInputView.showMessage(editorResult.ppCommand(), editorResult.isSuccess());
-                }
+                commitFinalGuarded(lookupClip(getText(results)));
                 setKeepScreenOn(false);
             }
 
@@ -375,9 +612,9 @@ public class SpeechInputMethodService extends InputMethodService {
             }
 
             @Override
-            public void onDeleteLeftChar() {
+            public void onDeleteLeftChars(int numOfChars) {
                 // TODO: indicate somehow (e.g. vibration, different background color) that the Op failed
-                runOp(mCommandEditor.deleteChars(-1));
+                runOp(mCommandEditor.deleteChars(-1 * numOfChars));
                 // TODO: might be better, i.e. able to delete non-text (checkboxes), but not undoable
                 //runOp(mCommandEditor.keyCode(KeyEvent.KEYCODE_DEL));
             }
@@ -0,0 +1,96 @@
+package ee.ioc.phon.android.speak.service;
+
+/**
+ * Lightweight energy-based voice activity detector for 16-bit little-endian mono PCM.
+ * The audio is processed in 20 ms frames, and a frame is considered to be speech if its energy
+ * is clearly above the (adaptively estimated) noise floor. A chunk of audio is speech
+ * if it contains at least a couple of speech frames.
+ * The noise floor is the minimum energy of the frames during the first few hundred ms
+ * (the calibration, i.e. speech at the very start of the recording does not raise the floor,
+ * as long as it contains short pauses), and then adapts only to the non-speech frames.
+ */
+class VoiceActivityDetector {
+
+    private static final int FRAME_MILLIS = 20;
+    // Speech energy must be this many times above the noise floor
+    private static final double SPEECH_TO_NOISE = 4.0;
+    // Minimum (mean square) energy of speech, filters out digital silence
+    private static final double MIN_SPEECH_ENERGY = 1e4;
+    // Number of speech frames that makes the chunk a speech chunk
+    private static final int MIN_SPEECH_FRAMES = 3;
+    // Adaptation rate of the noise floor
+    private static final double NOISE_ALPHA = 0.05;
+    // Number of frames at the start whose minimum energy is the noise floor
+    private static final int CALIBRATION_FRAMES = 15;
+
+    private final int mFrameBytes;
+    private final int mBytesPerMilli;
+
+    private double mNoise = Double.MAX_VALUE;
+    private int mNumFrames;
+    private boolean mIsSpeechStarted;
+    private long mSilenceMillis;
+
+    VoiceActivityDetector(int sampleRate) {
+        mBytesPerMilli = Math.max(1, 2 * sampleRate / 1000);
+        mFrameBytes = FRAME_MILLIS * mBytesPerMilli;
+    }
+
+    /**
+     * Classifies the next chunk of audio, and updates the length of the current silence.
+     *
+     * @return true if the chunk contains speech
+     */
+    boolean process(byte[] pcm) {
+        int numSpeechFrames = 0;
+        for (int start = 0; start + mFrameBytes <= pcm.length; start += mFrameBytes) {
+            double energy = getEnergy(pcm, start, mFrameBytes);
+            if (mNumFrames < CALIBRATION_FRAMES) {
+                mNumFrames++;
+                mNoise = Math.min(mNoise, energy);
+            }
+            if (energy > MIN_SPEECH_ENERGY && energy > SPEECH_TO_NOISE * mNoise) {
+                numSpeechFrames++;
+            } else if (mNumFrames >= CALIBRATION_FRAMES) {
+                mNoise = (1 - NOISE_ALPHA) * mNoise + NOISE_ALPHA * energy;
+            }
+        }
+        boolean isSpeech = numSpeechFrames >= MIN_SPEECH_FRAMES;
+        if (isSpeech) {
+            mIsSpeechStarted = true;
+            mSilenceMillis = 0;
+        } else {
+            mSilenceMillis += getMillis(pcm.length);
+        }
+        return isSpeech;
+    }
+
+    boolean isSpeechStarted() {
+        return mIsSpeechStarted;
+    }
+
+    /**
+     * @return length of the silence since the last speech chunk (or since the start)
+     */
+    long getSilenceMillis() {
+        return mSilenceMillis;
+    }
+
+    long getMillis(int numBytes) {
+        return numBytes / mBytesPerMilli;
+    }
+
+    int getBytes(long millis) {
+        return (int) (millis * mBytesPerMilli);
+    }
+
+    private static double getEnergy(byte[] pcm, int start, int length) {
+        double sum = 0;
+        int end = start + length - 1;
+        for (int i = start; i < end; i += 2) {
+            int sample = (short) ((pcm[i] & 0xff) | (pcm[i + 1] << 8));
+            sum += sample * sample;
+        }
+        return sum / (length / 2);
+    }
+}
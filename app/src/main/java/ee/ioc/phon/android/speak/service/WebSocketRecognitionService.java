@@ -2,10 +2,8 @@ package ee.ioc.phon.android.speak.service;
 
 import android.content.Intent;
 import android.os.Handler;
-import android.os.HandlerThread;
-import android.os.Looper;
 import android.os.Message;
-import android.os.Process;
+import android.os.SystemClock;
 import android.speech.RecognizerIntent;
 import android.speech.SpeechRecognizer;
 
@@ -14,21 +12,43 @@ import com.koushikdutta.async.http.WebSocket;
 
 import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import ee.ioc.phon.android.speak.ChunkedWebRecSessionBuilder;
 import ee.ioc.phon.android.speak.Log;
-import ee.ioc.phon.android.speak.R;
+import ee.ioc.phon.android.speak.utils.Metrics;
 import ee.ioc.phon.android.speak.utils.QueryUtils;
+import ee.ioc.phon.android.speak.utils.TaskScheduler;
 import ee.ioc.phon.android.speechutils.AudioRecorder;
 import ee.ioc.phon.android.speechutils.EncodedAudioRecorder;
 import ee.ioc.phon.android.speechutils.Extras;
 import ee.ioc.phon.android.speechutils.service.AbstractRecognitionService;
-import ee.ioc.phon.android.speechutils.utils.PreferenceUtils;
 
 /**
  * Implements RecognitionService, connects to the server via WebSocket.
+ *
+ * The audio that is sent to the server is also kept in a ring buffer until the server has
+ * finalized it, so that if the server is busy or the connection fails, the session can be
+ * retried (possibly on another server of the server pool) by replaying the unfinalized audio.
+ * In the case of encoded audio, the session can be resumed only before the first final result,
+ * because a new session must start with the header of the encoded stream.
+ * In the hedged mode, a second session is started if the final result does not arrive
+ * soon enough after the end of the recording, and the first final result wins.
+ * If voice activity detection is enabled, then leading silence and (in dictation mode) long
+ * pauses are not sent, and (in single utterance mode) EOS is sent after the trailing silence.
+ * Silence is not removed from encoded audio.
+ * If the final result does not arrive before the deadline (counted from EOS), then the
+ * best partial result is returned as the final result.
+ *
+ * The state of the sessions is changed only on the main thread (by the handler): the callbacks
+ * of the sockets, and the sending task (in the AUDIO lane) post their updates to the handler,
+ * only the byte counters are updated directly.
  */
 public class WebSocketRecognitionService extends AbstractRecognitionService {
 
@@ -41,6 +61,16 @@ public class WebSocketRecognitionService extends AbstractRecognitionService {
     // Pretty-print results
     // TODO: make configurable
     private static final boolean PRETTY_PRINT = true;
+    // Number of times a rejected or failed session is retried
+    private static final int MAX_RETRIES = 2;
+    // Delay before the first retry, doubled with every further retry, and randomized by +/-50%
+    private static final int RETRY_DELAY = 300;
+    // VAD: length of the audio that is kept before the start of speech
+    private static final int VAD_PRE_ROLL = 300;
+    // VAD: in dictation mode, longer pauses are shortened to this length
+    private static final int VAD_MAX_PAUSE = 1000;
+    // VAD: in single utterance mode, EOS is sent after this much trailing silence
+    private static final int VAD_EOS_SILENCE = 1200;
 
     private static final String EOS = "EOS";
 
@@ -48,29 +78,116 @@ public class WebSocketRecognitionService extends AbstractRecognitionService {
 
     private static final int MSG_RESULT = 1;
     private static final int MSG_ERROR = 2;
+    private static final int MSG_CLOSED = 3;
 
-    private volatile Looper mSendLooper;
-    private volatile Handler mSendHandler;
+    private static final Random RANDOM = new Random();
+
+    private volatile TaskScheduler.Token mSendToken;
 
     private MyHandler mMyHandler;
 
     private Runnable mSendRunnable;
 
+    private Runnable mRetryRunnable;
+
+    private final Runnable mHedgeRunnable = this::startHedge;
+
+    private final Runnable mDeadlineRunnable = this::onDeadline;
+
     private WebSocket mWebSocket;
+    private WebSocket mHedgeWebSocket;
 
     private String mUrl;
 
+    // Server URL (without the query) and the query, needed to fail over to another server
+    private String mServerUrl;
+    private String mQuery;
+    private List<String> mServerUrls;
+
+    private String mSessionUrl;
+
+    private boolean mIsHedged;
+    // Hedged mode: delay after EOS after which the second session is started
+    private int mHedgeDelay;
+    private int mDeadline;
+    private boolean mIsDeadlineSet;
+    private ArrayList<String> mLastPartial;
+    private boolean mIsUnlimitedDuration;
+
     private boolean mIsEosSent;
 
-    private int mNumBytesSent;
+    // Updated both in the AUDIO lane and by the handler
+    private final AtomicInteger mNumBytesSent = new AtomicInteger();
+    private final AtomicInteger mNumBytesWasted = new AtomicInteger();
+    private final AtomicInteger mNumBytesSentPrimary = new AtomicInteger();
+    private int mNumBytesSentHedge;
+
+    // Callbacks of sockets other than the current ones are ignored
+    private int mSocketCounter;
+    private volatile int mSocketId;
+    private volatile int mHedgeSocketId;
+
+    private int mNumRetries;
+    private boolean mIsFinalReceived;
+    private long mEosTime;
+    private volatile long mFailureTime;
+    private volatile boolean mIsEncoded;
+
+    private volatile AudioRingBuffer mRingBuffer;
+    // Byte offsets (in the ring buffer) of the start of the audio of the primary and the hedged session
+    private long mSessionOffset;
+    private long mHedgeOffset;
+
+    private volatile AudioBufferDelivery mBufferDelivery;
+
+    private boolean mIsVad;
+    private VoiceActivityDetector mVad;
+    private final ArrayDeque<byte[]> mPreRoll = new ArrayDeque<>();
+    private int mPreRollSize;
+    private int mNumBytesDropped;
+    private volatile long mSpeechEndTime;
+
+    private ServiceConfig.Holder mConfigHolder;
+    private ServiceConfig mConfig;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mConfigHolder = new ServiceConfig.Holder(this);
+    }
+
+    @Override
+    public void onDestroy() {
+        mConfigHolder.close();
+        super.onDestroy();
+    }
+
+    /**
+     * @return snapshot of the settings
+     */
+    protected ServiceConfig getConfig() {
+        return mConfigHolder.get();
+    }
 
     @Override
     protected void configure(Intent recognizerIntent) throws IOException {
-        ChunkedWebRecSessionBuilder builder = new ChunkedWebRecSessionBuilder(this, getExtras(), null);
-        mUrl = getServerUrl(R.string.keyWsServer, R.string.defaultWsServer)
-                + getAudioRecorder().getWsArgs() + QueryUtils.getQueryParams(recognizerIntent, builder, "UTF-8");
+        // The same snapshot is used for the whole session
+        mConfig = getConfig();
+        ChunkedWebRecSessionBuilder builder = new ChunkedWebRecSessionBuilder(this, getExtras(), null, mConfig);
+        mServerUrl = getExtras().getString(Extras.EXTRA_SERVER_URL, mConfig.getWsServer());
+        mServerUrls = null;
+        if (mConfig.isWsServerPool()) {
+            mServerUrls = ServerPool.getUrls(this, mServerUrl);
+            mServerUrl = ServerPool.getInstance().select(mServerUrls, mServerUrl);
+        }
+        mQuery = getAudioRecorder().getWsArgs() + QueryUtils.getQueryParams(recognizerIntent, builder, "UTF-8");
+        mUrl = mServerUrl + mQuery;
+        mDeadline = builder.getDeadline();
         boolean isUnlimitedDuration = getExtras().getBoolean(Extras.EXTRA_UNLIMITED_DURATION, false)
                 || getExtras().getBoolean(Extras.EXTRA_DICTATION_MODE, false);
+        // Hedging is only done for single utterances
+        mIsHedged = !isUnlimitedDuration && mConfig.isWsHedged();
+        mHedgeDelay = mConfig.getWsHedgeDelay();
         configureHandler(isUnlimitedDuration,
                 getExtras().getBoolean(RecognizerIntent.EXTRA_PARTIAL_RESULTS, false));
     }
@@ -82,46 +199,61 @@ public class WebSocketRecognitionService extends AbstractRecognitionService {
 
     @Override
     protected void disconnect() {
-        if (mSendHandler != null) mSendHandler.removeCallbacks(mSendRunnable);
-        if (mSendLooper != null) {
-            mSendLooper.quit();
-            mSendLooper = null;
+        stopSending();
+        if (mMyHandler != null) {
+            mMyHandler.removeCallbacks(mHedgeRunnable);
+            mMyHandler.removeCallbacks(mDeadlineRunnable);
+            if (mRetryRunnable != null) mMyHandler.removeCallbacks(mRetryRunnable);
         }
+        mIsDeadlineSet = false;
+        mSocketId = 0;
 
         if (mWebSocket != null && mWebSocket.isOpen()) {
             mWebSocket.end(); // TODO: or close?
-            mWebSocket = null;
         }
-        Log.i("Number of bytes sent: " + mNumBytesSent);
+        mWebSocket = null;
+        closeHedge();
+        if (mRingBuffer != null) {
+            mRingBuffer.clear();
+        }
+        AudioBufferDelivery bufferDelivery = mBufferDelivery;
+        mBufferDelivery = null;
+        if (bufferDelivery != null) {
+            bufferDelivery.close();
+        }
+        int numBytesSent = mNumBytesSent.get();
+        int numBytesWasted = mNumBytesWasted.get();
+        Metrics.add(mIsVad ? "ws.bytes.sent.vad" : "ws.bytes.sent", numBytesSent);
+        Metrics.add("ws.bytes.wasted", numBytesWasted);
+        Metrics.add("ws.bytes.dropped.vad", mNumBytesDropped);
+        Log.i("Number of bytes sent: " + numBytesSent + " (wasted: " + numBytesWasted + ", dropped: " + mNumBytesDropped + ")");
     }
 
     @Override
     protected String getEncoderType() {
-        return PreferenceUtils.getPrefString(getSharedPreferences(), getResources(),
-                R.string.keyImeAudioFormat, R.string.defaultAudioFormat);
+        return getConfig().getWsAudioFormat();
     }
 
     @Override
     protected boolean isAudioCues() {
-        return PreferenceUtils.getPrefBoolean(getSharedPreferences(), getResources(), R.string.keyImeAudioCues, R.bool.defaultImeAudioCues);
+        return getConfig().isWsAudioCues();
     }
 
     protected void configureHandler(boolean isUnlimitedDuration, boolean isPartialResults) {
+        mIsUnlimitedDuration = isUnlimitedDuration;
         mMyHandler = new MyHandler(this, isUnlimitedDuration, isPartialResults);
     }
 
-    private void handleResult(String text) {
-        Message msg = new Message();
-        msg.what = MSG_RESULT;
-        msg.obj = text;
-        mMyHandler.sendMessage(msg);
+    private void handleResult(int socketId, String text) {
+        mMyHandler.sendMessage(mMyHandler.obtainMessage(MSG_RESULT, socketId, 0, text));
     }
 
-    private void handleException(Exception error) {
-        Message msg = new Message();
-        msg.what = MSG_ERROR;
-        msg.obj = error;
-        mMyHandler.sendMessage(msg);
+    private void handleException(int socketId, Exception error) {
+        mMyHandler.sendMessage(mMyHandler.obtainMessage(MSG_ERROR, socketId, 0, error));
+    }
+
+    private void handleClosed(int socketId) {
+        mMyHandler.sendMessage(mMyHandler.obtainMessage(MSG_CLOSED, socketId, 0));
     }
 
     /**
@@ -130,93 +262,501 @@ public class WebSocketRecognitionService extends AbstractRecognitionService {
      * @param url Webservice URL
      */
     void startSocket(String url) {
+        mNumBytesSent.set(0);
+        mNumBytesWasted.set(0);
+        mNumRetries = 0;
+        mIsFinalReceived = false;
+        mEosTime = 0;
+        mHedgeSocketId = 0;
+        mLastPartial = null;
+        mIsDeadlineSet = false;
+        mIsEncoded = false;
+        ServiceConfig config = mConfig == null ? getConfig() : mConfig;
+        mRingBuffer = new AudioRingBuffer(config.getWsRingBufferSize());
+        mBufferDelivery = new AudioBufferDelivery(getExtras().getBoolean(Extras.EXTRA_GET_AUDIO, false), this::onBufferReceived);
+        mIsVad = config.isWsVad();
+        mVad = new VoiceActivityDetector(getSampleRate());
+        mPreRoll.clear();
+        mPreRollSize = 0;
+        mNumBytesDropped = 0;
+        mSpeechEndTime = 0;
+        openSocket(url, false);
+    }
+
+    private void openSocket(String url, final boolean isReplay) {
+        final int socketId = ++mSocketCounter;
+        mSocketId = socketId;
+        mSessionUrl = url;
         mIsEosSent = false;
+        if (!isReplay) {
+            mSessionOffset = 0;
+        }
+        mNumBytesSentPrimary.set(0);
         Log.i(url);
 
-        AsyncHttpClient.getDefaultInstance().websocket(url, PROTOCOL, (ex, webSocket) -> {
-            mWebSocket = webSocket;
+        final MyHandler handler = mMyHandler;
+        AsyncHttpClient.getDefaultInstance().websocket(url, PROTOCOL, (ex, webSocket) ->
+                handler.post(() -> onSocketOpened(socketId, ex, webSocket, isReplay)));
+    }
 
-            if (ex != null) {
-                handleException(ex);
-                return;
-            }
+    private void onSocketOpened(int socketId, Exception ex, WebSocket webSocket, boolean isReplay) {
+        if (socketId != mSocketId) {
+            closeSocket(webSocket);
+            return;
+        }
 
-            webSocket.setStringCallback(s -> {
-                Log.i(s);
-                handleResult(s);
-            });
-
-            webSocket.setClosedCallback(ex1 -> {
-                if (ex1 == null) {
-                    Log.e("ClosedCallback");
-                    handleFinish(mIsEosSent);
-                } else {
-                    Log.e("ClosedCallback: ", ex1);
-                    handleException(ex1);
-                }
-            });
-
-            webSocket.setEndCallback(ex12 -> {
-                if (ex12 == null) {
-                    Log.e("EndCallback");
-                    handleFinish(mIsEosSent);
-                } else {
-                    Log.e("EndCallback: ", ex12);
-                    handleException(ex12);
-                }
-            });
+        mWebSocket = webSocket;
 
-            startSending(webSocket);
-        });
+        if (ex != null) {
+            handleException(socketId, ex);
+            return;
+        }
+
+        setCallbacks(webSocket, socketId);
+        startSending(webSocket, socketId, isReplay);
     }
 
+    private void setCallbacks(WebSocket webSocket, final int socketId) {
+        webSocket.setStringCallback(s -> {
+            Log.i(s);
+            handleResult(socketId, s);
+        });
+
+        webSocket.setClosedCallback(ex1 -> {
+            if (ex1 == null) {
+                Log.e("ClosedCallback");
+                handleClosed(socketId);
+            } else {
+                Log.e("ClosedCallback: ", ex1);
+                handleException(socketId, ex1);
+            }
+        });
+
+        webSocket.setEndCallback(ex12 -> {
+            if (ex12 == null) {
+                Log.e("EndCallback");
+                handleClosed(socketId);
+            } else {
+                Log.e("EndCallback: ", ex12);
+                handleException(socketId, ex12);
+            }
+        });
+    }
 
-    private void startSending(final WebSocket webSocket) {
-        mNumBytesSent = 0;
-        HandlerThread thread = new HandlerThread("WsSendHandlerThread", Process.THREAD_PRIORITY_BACKGROUND);
-        thread.start();
-        mSendLooper = thread.getLooper();
-        mSendHandler = new Handler(mSendLooper);
+    private void startSending(final WebSocket webSocket, final int socketId, final boolean isReplay) {
+        final TaskScheduler.Token token = new TaskScheduler.Token();
+        final MyHandler handler = mMyHandler;
+        final Runnable eosTask = () -> onEosSent(socketId);
+        mSendToken = token;
 
         // Send chunks to the server
         mSendRunnable = new Runnable() {
+            private boolean mIsReplayed = !isReplay;
+
             public void run() {
                 if (webSocket != null && webSocket.isOpen()) {
+                    if (!mIsReplayed) {
+                        final long offset;
+                        byte[] audio;
+                        // The offset and the audio must match, the handler can acknowledge audio in between
+                        AudioRingBuffer ringBuffer = mRingBuffer;
+                        synchronized (ringBuffer) {
+                            offset = ringBuffer.getFirstUnackedOffset();
+                            audio = ringBuffer.getUnacked();
+                        }
+                        Log.i("Resending bytes: " + audio.length + " from offset " + offset);
+                        // Posted before sending, i.e. the handler knows the offset before the results of the session
+                        handler.post(() -> onReplayed(socketId, offset));
+                        send(webSocket, audio);
+                        mNumBytesWasted.addAndGet(audio.length);
+                        Metrics.add("ws.bytes.resent", audio.length);
+                        Metrics.sample("ws.latency.reconnect", SystemClock.elapsedRealtime() - mFailureTime);
+                        mIsReplayed = true;
+                    }
                     AudioRecorder recorder = getRecorder();
                     if (recorder == null || recorder.getState() != AudioRecorder.State.RECORDING) {
                         Log.i("Sending: EOS (recorder == null)");
+                        flushBuffers();
+                        // Posted before sending, i.e. the handler knows about EOS before the response to it
+                        handler.post(eosTask);
                         webSocket.send(EOS);
-                        mIsEosSent = true;
                     } else {
                         byte[] buffer = recorder.consumeRecordingAndTruncate();
+                        byte[] data = buffer;
                         if (recorder instanceof EncodedAudioRecorder) {
-                            send(webSocket, ((EncodedAudioRecorder) recorder).consumeRecordingEncAndTruncate());
-                        } else {
-                            send(webSocket, buffer);
+                            data = ((EncodedAudioRecorder) recorder).consumeRecordingEncAndTruncate();
+                            mIsEncoded = true;
                         }
+                        boolean isEos = false;
                         if (buffer.length > 0) {
-                            onBufferReceived(buffer);
+                            boolean isSpeech = updateVad(buffer);
+                            if (mIsVad) {
+                                if (!mIsEncoded) {
+                                    data = trimSilence(buffer, isSpeech);
+                                }
+                                isEos = !mIsUnlimitedDuration && mVad.isSpeechStarted()
+                                        && mVad.getSilenceMillis() >= VAD_EOS_SILENCE;
+                            }
                         }
-                        boolean success = mSendHandler.postDelayed(this, TASK_INTERVAL_SEND);
-                        if (!success) {
-                            Log.i("mSendHandler.postDelayed returned false");
+                        send(webSocket, data);
+                        if (data != null && data.length > 0) {
+                            mRingBuffer.add(data);
+                        }
+                        AudioBufferDelivery bufferDelivery = mBufferDelivery;
+                        if (bufferDelivery != null) {
+                            bufferDelivery.add(buffer);
+                        }
+                        if (isEos) {
+                            Log.i("Sending: EOS (trailing silence)");
+                            flushBuffers();
+                            handler.post(eosTask);
+                            webSocket.send(EOS);
+                            Metrics.inc("ws.vad.eos");
+                        } else {
+                            boolean success = TaskScheduler.postDelayed(TaskScheduler.Lane.AUDIO, token, this, TASK_INTERVAL_SEND);
+                            if (!success) {
+                                Log.i("TaskScheduler.postDelayed returned false");
+                            }
                         }
                     }
                 }
             }
         };
 
-        mSendHandler.postDelayed(mSendRunnable, TASK_DELAY_SEND);
+        TaskScheduler.postDelayed(TaskScheduler.Lane.AUDIO, token, mSendRunnable, TASK_DELAY_SEND);
+    }
+
+    /**
+     * The resumed session starts at the given offset of the ring buffer, i.e. its segments are
+     * acknowledged relative to it (see ackFinalized).
+     */
+    private void onReplayed(int socketId, long offset) {
+        if (socketId == mSocketId) {
+            mSessionOffset = offset;
+        }
+    }
+
+    private void flushBuffers() {
+        AudioBufferDelivery bufferDelivery = mBufferDelivery;
+        if (bufferDelivery != null) {
+            bufferDelivery.flush();
+        }
+    }
+
+    private void stopSending() {
+        TaskScheduler.cancel(mSendToken);
+        mSendToken = null;
     }
 
     void send(WebSocket webSocket, byte[] buffer) {
         if (buffer != null && buffer.length > 0) {
             webSocket.send(buffer);
-            mNumBytesSent += buffer.length;
+            mNumBytesSent.addAndGet(buffer.length);
+            mNumBytesSentPrimary.addAndGet(buffer.length);
             Log.i("Sent bytes: " + buffer.length);
         }
     }
 
+    /**
+     * Runs the VAD on the given raw audio, and keeps track of the end of speech,
+     * which is used to measure the time to the final result (also if the VAD is not used
+     * to trim the audio).
+     *
+     * @return true if the audio contains speech
+     */
+    private boolean updateVad(byte[] pcm) {
+        boolean isSpeech = mVad.process(pcm);
+        if (isSpeech) {
+            mSpeechEndTime = 0;
+        } else if (mVad.isSpeechStarted() && mSpeechEndTime == 0) {
+            mSpeechEndTime = SystemClock.elapsedRealtime() - mVad.getSilenceMillis();
+        }
+        return isSpeech;
+    }
+
+    /**
+     * Drops the leading silence (except for a short pre-roll), and in dictation mode,
+     * the part of a pause that is longer than VAD_MAX_PAUSE.
+     *
+     * @return audio to be sent, or null if nothing should be sent
+     */
+    private byte[] trimSilence(byte[] pcm, boolean isSpeech) {
+        if (!mVad.isSpeechStarted()) {
+            mPreRoll.addLast(pcm);
+            mPreRollSize += pcm.length;
+            int preRollBytes = mVad.getBytes(VAD_PRE_ROLL);
+            while (mPreRollSize - mPreRoll.getFirst().length >= preRollBytes) {
+                int length = mPreRoll.removeFirst().length;
+                mPreRollSize -= length;
+                mNumBytesDropped += length;
+            }
+            return null;
+        }
+        if (!mPreRoll.isEmpty()) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(mPreRollSize + pcm.length);
+            for (byte[] bytes : mPreRoll) {
+                baos.write(bytes, 0, bytes.length);
+            }
+            baos.write(pcm, 0, pcm.length);
+            mPreRoll.clear();
+            mPreRollSize = 0;
+            return baos.toByteArray();
+        }
+        if (!isSpeech && mIsUnlimitedDuration && mVad.getSilenceMillis() > VAD_MAX_PAUSE) {
+            mNumBytesDropped += pcm.length;
+            return null;
+        }
+        return pcm;
+    }
+
+    /**
+     * @return true if the unfinalized audio can be resent to a new session
+     */
+    private boolean isResumable() {
+        if (mIsFinalReceived && (mIsEncoded || !mIsUnlimitedDuration)) {
+            return false;
+        }
+        return mRingBuffer != null && mRingBuffer.isComplete();
+    }
+
+    private void onEosSent(int socketId) {
+        if (socketId != mSocketId) {
+            return;
+        }
+        mIsEosSent = true;
+        mEosTime = SystemClock.elapsedRealtime();
+        if (mIsHedged) {
+            mMyHandler.postDelayed(mHedgeRunnable, mHedgeDelay);
+        }
+        // The deadline is not extended if EOS is resent after a retry
+        if (mDeadline > 0 && !mIsDeadlineSet) {
+            mIsDeadlineSet = true;
+            mMyHandler.postDelayed(mDeadlineRunnable, mDeadline);
+        }
+    }
+
+    /**
+     * The final result did not arrive in time: closes the session(s), and returns the best
+     * partial result as the final result, or reports a timeout if there are no partial results.
+     * In dictation, if the earlier segments have been finalized and there is no pending partial
+     * result, then the session just finishes.
+     */
+    private void onDeadline() {
+        if (mSocketId == 0) {
+            return;
+        }
+        Log.i("Deadline expired: " + mDeadline + " ms");
+        Metrics.inc("ws.deadline.timeout");
+        mMyHandler.removeCallbacks(mHedgeRunnable);
+        if (mRetryRunnable != null) mMyHandler.removeCallbacks(mRetryRunnable);
+        stopSending();
+        closeHedge();
+        closeSocket(mWebSocket);
+        mWebSocket = null;
+        mSocketId = 0;
+        if (mLastPartial == null) {
+            if (mIsFinalReceived && mIsUnlimitedDuration) {
+                handleFinish(true);
+            } else {
+                onError(SpeechRecognizer.ERROR_NETWORK_TIMEOUT);
+            }
+        } else {
+            Metrics.inc("ws.deadline.fallback");
+            if (mIsUnlimitedDuration) {
+                onPartialResults(toResultsBundle(mLastPartial, true));
+                handleFinish(true);
+            } else {
+                onEndOfSpeech();
+                onResults(toResultsBundle(mLastPartial, true));
+            }
+        }
+    }
+
+    /**
+     * Starts the second (hedged) session by replaying the complete recording, preferably
+     * to another server of the server pool.
+     */
+    private void startHedge() {
+        if (mIsFinalReceived || mHedgeSocketId != 0 || mSocketId == 0 || !isResumable()) {
+            return;
+        }
+        mHedgeOffset = mRingBuffer.getFirstUnackedOffset();
+        final byte[] audio = mRingBuffer.getUnacked();
+        String url = mSessionUrl;
+        if (mServerUrls != null) {
+            List<String> urls = new ArrayList<>(mServerUrls);
+            urls.remove(mServerUrl);
+            url = ServerPool.getInstance().select(urls, mServerUrl) + mQuery;
+        }
+        final int socketId = ++mSocketCounter;
+        mHedgeSocketId = socketId;
+        mNumBytesSentHedge = 0;
+        Metrics.inc("ws.hedge.started");
+        Log.i("Hedge: " + url);
+
+        final MyHandler handler = mMyHandler;
+        AsyncHttpClient.getDefaultInstance().websocket(url, PROTOCOL, (ex, webSocket) ->
+                handler.post(() -> onHedgeOpened(socketId, ex, webSocket, audio)));
+    }
+
+    private void onHedgeOpened(int socketId, Exception ex, WebSocket webSocket, byte[] audio) {
+        if (socketId != mHedgeSocketId) {
+            closeSocket(webSocket);
+            return;
+        }
+        if (ex != null) {
+            handleException(socketId, ex);
+            return;
+        }
+        mHedgeWebSocket = webSocket;
+        setCallbacks(webSocket, socketId);
+        webSocket.send(audio);
+        webSocket.send(EOS);
+        mNumBytesSent.addAndGet(audio.length);
+        mNumBytesSentHedge = audio.length;
+    }
+
+    private void closeHedge() {
+        if (mHedgeSocketId != 0) {
+            mNumBytesWasted.addAndGet(mNumBytesSentHedge);
+        }
+        mHedgeSocketId = 0;
+        closeSocket(mHedgeWebSocket);
+        mHedgeWebSocket = null;
+    }
+
+    /**
+     * Makes the hedged session the primary session, and closes the original primary session.
+     */
+    private void promoteHedge() {
+        stopSending();
+        closeSocket(mWebSocket);
+        mNumBytesWasted.addAndGet(mNumBytesSentPrimary.getAndSet(mNumBytesSentHedge));
+        mWebSocket = mHedgeWebSocket;
+        mSocketId = mHedgeSocketId;
+        mSessionOffset = mHedgeOffset;
+        mHedgeWebSocket = null;
+        mHedgeSocketId = 0;
+    }
+
+    private boolean isActive(int socketId) {
+        return socketId != 0 && (socketId == mSocketId || socketId == mHedgeSocketId);
+    }
+
+    /**
+     * @param segmentEnd end of the finalized segment in seconds of the session audio, or -1 if unknown
+     */
+    private void onFinalResult(int socketId, double segmentEnd) {
+        mIsFinalReceived = true;
+        mLastPartial = null;
+        // In dictation more final results can follow the EOS, the wait for each of them is bounded
+        // by the deadline. The deadline is cleared only when the session ends (see disconnect).
+        if (mIsDeadlineSet) {
+            mMyHandler.removeCallbacks(mDeadlineRunnable);
+            mMyHandler.postDelayed(mDeadlineRunnable, mDeadline);
+        }
+        // The audio of the segment has been finalized, and the next failure is retried again
+        ackFinalized(socketId, segmentEnd);
+        mNumRetries = 0;
+        long now = SystemClock.elapsedRealtime();
+        if (mIsEosSent && mEosTime > 0) {
+            Metrics.sample("ws.latency.final", now - mEosTime);
+            mEosTime = 0;
+        }
+        if (mSpeechEndTime > 0) {
+            Metrics.sample(mIsVad ? "ws.latency.speechToFinal.vad" : "ws.latency.speechToFinal", now - mSpeechEndTime);
+            mSpeechEndTime = 0;
+        }
+        mMyHandler.removeCallbacks(mHedgeRunnable);
+        if (mHedgeSocketId != 0) {
+            if (socketId == mHedgeSocketId) {
+                Metrics.inc("ws.hedge.won");
+                promoteHedge();
+            } else {
+                closeHedge();
+            }
+        }
+    }
+
+    /**
+     * Acknowledges the audio up to the end of the finalized segment. The audio that was sent
+     * after the segment (e.g. the start of the next utterance in dictation) stays in the buffer,
+     * and is resent if the session fails. If the server does not report the segment, or the audio
+     * is encoded (i.e. the seconds cannot be mapped to bytes), then the audio is acknowledged
+     * only after EOS has been sent.
+     */
+    private void ackFinalized(int socketId, double segmentEnd) {
+        if (segmentEnd >= 0 && !mIsEncoded) {
+            long offset = socketId == mHedgeSocketId ? mHedgeOffset : mSessionOffset;
+            // 16-bit mono PCM
+            long bytes = ((long) (segmentEnd * getSampleRate())) * 2;
+            mRingBuffer.ackBytes(offset + bytes);
+        } else if (mIsEosSent) {
+            mRingBuffer.ackAll();
+        }
+    }
+
+    /**
+     * Tries to recover from a failed session (the server is busy or the connection failed)
+     * either by falling back to the hedged session, or by reconnecting
+     * after a jittered backoff (to another server if the server pool is used) and
+     * resending the unfinalized audio.
+     *
+     * @return true if the failure was handled and the error should not be reported
+     */
+    private boolean recover(int socketId, String reason) {
+        if (socketId == mHedgeSocketId) {
+            Log.i("Hedge failed: " + reason);
+            closeHedge();
+            return true;
+        }
+        if (mHedgeSocketId != 0) {
+            Log.i("Primary failed, using the hedge: " + reason);
+            promoteHedge();
+            return true;
+        }
+        if (mNumRetries >= MAX_RETRIES || !isResumable()) {
+            return false;
+        }
+        mNumRetries++;
+        mFailureTime = SystemClock.elapsedRealtime();
+        stopSending();
+        closeSocket(mWebSocket);
+        mWebSocket = null;
+        mSocketId = 0;
+        mMyHandler.removeCallbacks(mHedgeRunnable);
+
+        String url = mSessionUrl;
+        if (mServerUrls != null) {
+            ServerPool pool = ServerPool.getInstance();
+            pool.markFailed(mServerUrl, reason);
+            String serverUrl = pool.select(mServerUrls, mServerUrl);
+            if (!serverUrl.equals(mServerUrl)) {
+                Metrics.inc("ws.failover");
+                mServerUrl = serverUrl;
+            }
+            url = mServerUrl + mQuery;
+        }
+        long delay = (long) (RETRY_DELAY * (1 << (mNumRetries - 1)) * (0.5 + RANDOM.nextDouble()));
+        Metrics.inc("ws.retry");
+        Log.i("Retry " + mNumRetries + " in " + delay + " ms: " + reason);
+        final String retryUrl = url;
+        mRetryRunnable = () -> openSocket(retryUrl, true);
+        mMyHandler.postDelayed(mRetryRunnable, delay);
+        return true;
+    }
+
+    private static void closeSocket(WebSocket webSocket) {
+        if (webSocket != null) {
+            webSocket.setStringCallback(null);
+            webSocket.setClosedCallback(null);
+            webSocket.setEndCallback(null);
+            if (webSocket.isOpen()) {
+                webSocket.close();
+            }
+        }
+    }
+
 
     private static class MyHandler extends Handler {
         private final WeakReference<WebSocketRecognitionService> mRef;
@@ -232,14 +772,25 @@ public class WebSocketRecognitionService extends AbstractRecognitionService {
         @Override
         public void handleMessage(Message msg) {
             WebSocketRecognitionService outerClass = mRef.get();
-            if (outerClass != null) {
+            if (outerClass != null && outerClass.isActive(msg.arg1)) {
+                int socketId = msg.arg1;
                 if (msg.what == MSG_ERROR) {
                     Exception e = (Exception) msg.obj;
+                    if (outerClass.recover(socketId, e.getMessage())) {
+                        return;
+                    }
                     if (e instanceof TimeoutException) {
                         outerClass.onError(SpeechRecognizer.ERROR_NETWORK_TIMEOUT);
                     } else {
                         outerClass.onError(SpeechRecognizer.ERROR_NETWORK);
                     }
+                } else if (msg.what == MSG_CLOSED) {
+                    if (socketId == outerClass.mSocketId) {
+                        outerClass.handleFinish(outerClass.mIsEosSent);
+                    } else {
+                        // The hedged session ended without a result
+                        outerClass.closeHedge();
+                    }
                 } else if (msg.what == MSG_RESULT) {
                     try {
                         WebSocketResponse response = new WebSocketResponse((String) msg.obj);
@@ -247,6 +798,7 @@ public class WebSocketRecognitionService extends AbstractRecognitionService {
                         if (statusCode == WebSocketResponse.STATUS_SUCCESS && response.isResult()) {
                             WebSocketResponse.Result responseResult = response.parseResult();
                             if (responseResult.isFinal()) {
+                                outerClass.onFinalResult(socketId, response.getSegmentEnd());
                                 ArrayList<String> hypotheses = responseResult.getHypotheses(MAX_HYPOTHESES, PRETTY_PRINT);
                                 if (hypotheses.isEmpty()) {
                                     Log.i("Empty final result (" + hypotheses + "), stopping");
@@ -263,13 +815,18 @@ public class WebSocketRecognitionService extends AbstractRecognitionService {
                                     }
                                 }
                             } else {
-                                // We fire this only if the caller wanted partial results
-                                if (mIsPartialResults) {
+                                // We fire this only if the caller wanted partial results,
+                                // and ignore the partial results of the hedged session.
+                                // The latest partial result is kept in case the deadline expires.
+                                if (socketId == outerClass.mSocketId) {
                                     ArrayList<String> hypotheses = responseResult.getHypotheses(MAX_HYPOTHESES, PRETTY_PRINT);
                                     if (hypotheses.isEmpty()) {
                                         Log.i("Empty non-final result (" + hypotheses + "), ignoring");
                                     } else {
-                                        outerClass.onPartialResults(toResultsBundle(hypotheses, false));
+                                        outerClass.mLastPartial = hypotheses;
+                                        if (mIsPartialResults) {
+                                            outerClass.onPartialResults(toResultsBundle(hypotheses, false));
+                                        }
                                     }
                                 }
                             }
@@ -278,7 +835,9 @@ public class WebSocketRecognitionService extends AbstractRecognitionService {
                         } else if (statusCode == WebSocketResponse.STATUS_ABORTED) {
                             outerClass.onError(SpeechRecognizer.ERROR_SERVER);
                         } else if (statusCode == WebSocketResponse.STATUS_NOT_AVAILABLE) {
-                            outerClass.onError(SpeechRecognizer.ERROR_RECOGNIZER_BUSY);
+                            if (!outerClass.recover(socketId, "busy")) {
+                                outerClass.onError(SpeechRecognizer.ERROR_RECOGNIZER_BUSY);
+                            }
                         } else if (statusCode == WebSocketResponse.STATUS_NO_SPEECH) {
                             outerClass.onError(SpeechRecognizer.ERROR_SPEECH_TIMEOUT);
                         } else if (statusCode == WebSocketResponse.STATUS_NO_VALID_FRAMES) {
@@ -296,4 +855,4 @@ public class WebSocketRecognitionService extends AbstractRecognitionService {
             }
         }
     }
-}
\ No newline at end of file
+}
@@ -5,9 +5,7 @@ import android.content.Intent;
 import java.io.IOException;
 
 import ee.ioc.phon.android.speak.ChunkedWebRecSessionBuilder;
-import ee.ioc.phon.android.speak.R;
 import ee.ioc.phon.android.speak.utils.QueryUtils;
-import ee.ioc.phon.android.speechutils.utils.PreferenceUtils;
 
 public class WebSocketRecognitionService2 extends WebSocketRecognitionService {
 
@@ -15,13 +13,12 @@ public class WebSocketRecognitionService2 extends WebSocketRecognitionService {
 
     @Override
     protected String getEncoderType() {
-        return PreferenceUtils.getPrefString(getSharedPreferences(), getResources(),
-                R.string.keyImeAudioFormat, R.string.defaultAudioFormat);
+        return getConfig().getWsAudioFormat();
     }
 
     @Override
     protected void configure(Intent recognizerIntent) throws IOException {
-        ChunkedWebRecSessionBuilder builder = new ChunkedWebRecSessionBuilder(this, recognizerIntent.getExtras(), null);
+        ChunkedWebRecSessionBuilder builder = new ChunkedWebRecSessionBuilder(this, recognizerIntent.getExtras(), null, getConfig());
         mUrl = "ws://localhost:82/duplex-speech-api/ws/speech"
                 + getAudioRecorder().getWsArgs() + QueryUtils.getQueryParams(recognizerIntent, builder, "UTF-8");
         configureHandler(false, false);
@@ -15,7 +15,8 @@ import ee.ioc.phon.android.speechutils.utils.TextUtils;
  * {"status": 9, "message": "No decoder available, try again later"}
  *
  * {"status": 0, "result": {"hypotheses": [{"transcript": "elas metsas..."}], "final": false}}
- * {"status": 0, "result": {"hypotheses": [{"transcript": "elas metsas..."}], "final": true}}
+ * {"status": 0, "result": {"hypotheses": [{"transcript": "elas metsas..."}], "final": true},
+ *  "segment-start": 0.0, "segment-length": 2.31, "total-length": 2.56}
  *
  * {"status": 0, "adaptation_state": {"type": "string+gzip+base64", "value": "eJxlvcu7"}}
  * </pre>
@@ -57,6 +58,20 @@ public class WebSocketResponse {
         return mJson.has("result");
     }
 
+    /**
+     * The segment times are optional, they are in seconds from the start of the session audio.
+     *
+     * @return end of the segment of the result (in seconds), or -1 if the server did not report it
+     */
+    public double getSegmentEnd() {
+        double start = mJson.optDouble("segment-start", -1);
+        double length = mJson.optDouble("segment-length", -1);
+        if (start < 0 || length < 0) {
+            return -1;
+        }
+        return start + length;
+    }
+
 
     public Result parseResult() throws WebSocketResponseException {
         try {
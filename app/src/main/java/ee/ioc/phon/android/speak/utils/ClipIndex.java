@@ -0,0 +1,463 @@
+package ee.ioc.phon.android.speak.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import ee.ioc.phon.android.speechutils.editor.Command;
+import ee.ioc.phon.android.speechutils.editor.UtteranceRewriter;
+
+/**
+ * <p>Approximate lookup of the clips (the entries of the clipboard, see SpeechInputView)
+ * by their spoken name, e.g. "paste meeting notes", where the recognizer might have
+ * returned "meting notes". The words that start a lookup ("paste") come from the settings
+ * (see {@link #makeLookupPattern}).</p>
+ *
+ * <p>The names are indexed by their character trigrams. A lookup counts the trigrams that
+ * each name shares with the query (walking only the postings of the trigrams of the query),
+ * keeps the names that share enough trigrams to be within the maximum edit distance
+ * (an edit changes at most 3 trigrams), and verifies at most {@link #MAX_CANDIDATES} of them
+ * with an edit distance computation that stops as soon as the distance exceeds the maximum.
+ * The maximum distance is a quarter of the length of the query.</p>
+ *
+ * <p>The index is updated incrementally (in the background), i.e. only the added and removed
+ * clips change the postings, and is then published as an immutable snapshot, which shares
+ * the posting arrays of the unchanged trigrams with the previous snapshot (only the arrays
+ * of the changed trigrams are copied). A lookup (on the main thread) reads the current
+ * snapshot, i.e. it never waits for an update.</p>
+ */
+public final class ClipIndex {
+
+    private static final Pattern NON_WORD = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    private static final int MAX_CANDIDATES = 16;
+
+    // Clips by id, null if the id is free
+    private final List<Clip> mClips = new ArrayList<>();
+    private final IntList mFreeIds = new IntList();
+    private final Map<String, Integer> mIds = new HashMap<>();
+    private final Map<String, IntList> mPostings = new HashMap<>();
+    // Published after every change, read by the lookups without locking
+    private volatile Snapshot mSnapshot = new Snapshot(new Clip[0], new HashMap<String, int[]>(), 0);
+
+    /**
+     * @param words words that start a lookup, separated by "|", e.g. "paste|kleebi"
+     * @return pattern that matches a lookup (the name of the clip is its group 1),
+     * or null if there are no words, i.e. the lookup is disabled
+     */
+    public static Pattern makeLookupPattern(String words) {
+        if (words == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String word : words.split("\\|")) {
+            word = word.trim();
+            if (!word.isEmpty()) {
+                sb.append(sb.length() == 0 ? "" : "|").append(Pattern.quote(word));
+            }
+        }
+        if (sb.length() == 0) {
+            return null;
+        }
+        return Pattern.compile("^\\s*(?:" + sb + ")\\s+(.+?)\\s*$", Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+    }
+
+    /**
+     * @return name of the clip in the given utterance, or null if the utterance is not a lookup
+     * (or the lookup is disabled, i.e. the pattern is null)
+     */
+    public static String getQuery(Pattern lookupPattern, String utterance) {
+        if (lookupPattern == null || utterance == null) {
+            return null;
+        }
+        Matcher matcher = lookupPattern.matcher(utterance);
+        return matcher.matches() ? matcher.group(1) : null;
+    }
+
+    /**
+     * Collects the clips from the given rewriters in the same way as the clipboard: the name is
+     * the comment of the rule (or the utterance, if there is no comment), the clip is the
+     * utterance (or the comment). The earlier rewriters take precedence.
+     */
+    public static Map<String, String> getClips(Iterable<UtteranceRewriter> rewriters) {
+        Map<String, String> clips = new LinkedHashMap<>();
+        for (UtteranceRewriter ur : rewriters) {
+            if (ur == null) {
+                continue;
+            }
+            for (Command command : ur.getCommands()) {
+                String key = command.get(UtteranceRewriter.HEADER_COMMENT);
+                String val = command.get(UtteranceRewriter.HEADER_UTTERANCE);
+                key = key == null ? val : key;
+                val = val == null ? key : val;
+                if (key != null && !clips.containsKey(key)) {
+                    clips.put(key, val);
+                }
+            }
+        }
+        return clips;
+    }
+
+    public int size() {
+        return mSnapshot.mSize;
+    }
+
+    /**
+     * Makes the index contain exactly the given clips, changing only the clips that differ.
+     */
+    public synchronized void update(Map<String, String> clips) {
+        long startTime = System.nanoTime();
+        boolean isChanged = false;
+        Iterator<Map.Entry<String, Integer>> iterator = mIds.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Integer> entry = iterator.next();
+            if (!clips.containsKey(entry.getKey())) {
+                removeClip(entry.getValue());
+                iterator.remove();
+                isChanged = true;
+            }
+        }
+        for (Map.Entry<String, String> entry : clips.entrySet()) {
+            isChanged |= putClip(entry.getKey(), entry.getValue());
+        }
+        if (isChanged) {
+            publish();
+        }
+        Metrics.sample("clip.index.update.us", (System.nanoTime() - startTime) / 1000);
+    }
+
+    public synchronized void put(String name, String clip) {
+        if (putClip(name, clip)) {
+            publish();
+        }
+    }
+
+    public synchronized void remove(String name) {
+        Integer id = mIds.remove(name);
+        if (id != null) {
+            removeClip(id);
+            publish();
+        }
+    }
+
+    /**
+     * Looks up the clip without locking, i.e. can be called while the index is being updated
+     * (the lookup then sees the index as it was before the update).
+     *
+     * @return clip whose name is closest to the given name (within the maximum edit distance),
+     * or null if there is no such clip (or the name is null)
+     */
+    public Match find(String name) {
+        if (name == null) {
+            return null;
+        }
+        long startTime = System.nanoTime();
+        Snapshot snapshot = mSnapshot;
+        String query = normalize(name);
+        Clip best = null;
+        int bestDistance = 0;
+        if (!query.isEmpty()) {
+            // Number of the trigrams of the query that each clip contains
+            int[] counts = new int[snapshot.mClips.length];
+            Set<String> trigrams = getTrigrams(query);
+            // Ids of the clips whose count is not zero
+            IntList touched = new IntList();
+            for (String trigram : trigrams) {
+                int[] postings = snapshot.mPostings.get(trigram);
+                if (postings != null) {
+                    for (int id : postings) {
+                        if (counts[id]++ == 0) {
+                            touched.add(id);
+                        }
+                    }
+                }
+            }
+            int maxDistance = Math.max(1, query.length() / 4);
+            int minCount = Math.max(1, trigrams.size() - 3 * maxDistance);
+            // Lowers the minimum count (if needed) so that at most MAX_CANDIDATES clips are verified,
+            // the clips with the most shared trigrams first
+            int[] histogram = new int[trigrams.size() + 1];
+            for (int i = 0; i < touched.size(); i++) {
+                histogram[counts[touched.get(i)]]++;
+            }
+            int threshold = trigrams.size();
+            int above = histogram[threshold];
+            while (threshold > minCount && above + histogram[threshold - 1] <= MAX_CANDIDATES) {
+                above += histogram[--threshold];
+            }
+            if (above == 0) {
+                // Even the top non-empty count has more than MAX_CANDIDATES clips, its first ones are verified
+                while (threshold > minCount && histogram[threshold] == 0) {
+                    threshold--;
+                }
+            }
+            IntList candidates = new IntList();
+            for (int i = 0; i < touched.size() && candidates.size() < MAX_CANDIDATES; i++) {
+                int id = touched.get(i);
+                if (counts[id] >= threshold) {
+                    candidates.add(id);
+                }
+            }
+            bestDistance = maxDistance + 1;
+            int bestCount = 0;
+            for (int i = 0; i < candidates.size(); i++) {
+                int id = candidates.get(i);
+                Clip clip = snapshot.mClips[id];
+                int distance = getDistance(query, clip.mNormalizedName, Math.min(maxDistance, bestDistance));
+                if (distance < bestDistance || (distance == bestDistance && counts[id] > bestCount)) {
+                    best = clip;
+                    bestDistance = distance;
+                    bestCount = counts[id];
+                }
+            }
+            if (bestDistance > maxDistance) {
+                best = null;
+            }
+        }
+        Metrics.sample("clip.lookup.us", (System.nanoTime() - startTime) / 1000);
+        Metrics.inc(best == null ? "clip.lookup.miss" : "clip.lookup.hit");
+        return best == null ? null : new Match(best.mName, best.mClip, bestDistance == 0);
+    }
+
+    /**
+     * @return true if the index has changed
+     */
+    private boolean putClip(String name, String clip) {
+        Integer id = mIds.get(name);
+        if (id != null) {
+            Clip old = mClips.get(id);
+            if (old.mClip == null ? clip == null : old.mClip.equals(clip)) {
+                return false;
+            }
+            // The published clips do not change, i.e. the changed clip is a new object
+            mClips.set(id, new Clip(name, old.mNormalizedName, clip, old.mTrigrams));
+            return true;
+        }
+        String normalized = normalize(name);
+        if (normalized.isEmpty()) {
+            return false;
+        }
+        Set<String> trigrams = getTrigrams(normalized);
+        Clip newClip = new Clip(name, normalized, clip, trigrams.toArray(new String[0]));
+        if (mFreeIds.size() > 0) {
+            id = mFreeIds.removeLast();
+            mClips.set(id, newClip);
+        } else {
+            id = mClips.size();
+            mClips.add(newClip);
+        }
+        mIds.put(name, id);
+        for (String trigram : trigrams) {
+            IntList postings = mPostings.get(trigram);
+            if (postings == null) {
+                postings = new IntList();
+                mPostings.put(trigram, postings);
+            }
+            postings.add(id);
+        }
+        return true;
+    }
+
+    /**
+     * Publishes the current clips and postings as an immutable snapshot. The arrays of the
+     * postings that have not changed since the previous snapshot are reused.
+     */
+    private void publish() {
+        Map<String, int[]> postings = new HashMap<>(mPostings.size() * 2);
+        for (Map.Entry<String, IntList> entry : mPostings.entrySet()) {
+            postings.put(entry.getKey(), entry.getValue().toArray());
+        }
+        mSnapshot = new Snapshot(mClips.toArray(new Clip[0]), postings, mIds.size());
+    }
+
+    private void removeClip(int id) {
+        Clip clip = mClips.get(id);
+        for (String trigram : clip.mTrigrams) {
+            IntList postings = mPostings.get(trigram);
+            postings.removeValue(id);
+            if (postings.size() == 0) {
+                mPostings.remove(trigram);
+            }
+        }
+        mClips.set(id, null);
+        mFreeIds.add(id);
+    }
+
+    /**
+     * Lower case, and punctuation and white space replaced by a single space.
+     */
+    static String normalize(String str) {
+        return NON_WORD.matcher(str.toLowerCase(Locale.ROOT)).replaceAll(" ").trim();
+    }
+
+    /**
+     * @return trigrams of the string, padded with a space at both ends
+     */
+    private static Set<String> getTrigrams(String str) {
+        String padded = " " + str + " ";
+        Set<String> trigrams = new HashSet<>();
+        for (int i = 0; i + 3 <= padded.length(); i++) {
+            trigrams.add(padded.substring(i, i + 3));
+        }
+        return trigrams;
+    }
+
+    /**
+     * @return Levenshtein distance of the strings, or max + 1 if it is larger than max
+     */
+    static int getDistance(String s1, String s2, int max) {
+        int n1 = s1.length();
+        int n2 = s2.length();
+        if (Math.abs(n1 - n2) > max) {
+            return max + 1;
+        }
+        int[] previous = new int[n2 + 1];
+        int[] current = new int[n2 + 1];
+        for (int j = 0; j <= n2; j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= n1; i++) {
+            current[0] = i;
+            int rowMin = i;
+            char c1 = s1.charAt(i - 1);
+            for (int j = 1; j <= n2; j++) {
+                int cost = c1 == s2.charAt(j - 1) ? 0 : 1;
+                int d = Math.min(Math.min(current[j - 1], previous[j]) + 1, previous[j - 1] + cost);
+                current[j] = d;
+                if (d < rowMin) {
+                    rowMin = d;
+                }
+            }
+            if (rowMin > max) {
+                return max + 1;
+            }
+            int[] tmp = previous;
+            previous = current;
+            current = tmp;
+        }
+        return Math.min(previous[n2], max + 1);
+    }
+
+    /**
+     * Clip found by a lookup.
+     */
+    public static final class Match {
+        private final String mName;
+        private final String mClip;
+        private final boolean mIsExact;
+
+        private Match(String name, String clip, boolean isExact) {
+            mName = name;
+            mClip = clip;
+            mIsExact = isExact;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public String getClip() {
+            return mClip;
+        }
+
+        /**
+         * @return true if the normalized names are equal, false if the match is approximate
+         */
+        public boolean isExact() {
+            return mIsExact;
+        }
+    }
+
+    private static final class Clip {
+        private final String mName;
+        private final String mNormalizedName;
+        private final String mClip;
+        private final String[] mTrigrams;
+
+        Clip(String name, String normalizedName, String clip, String[] trigrams) {
+            mName = name;
+            mNormalizedName = normalizedName;
+            mClip = clip;
+            mTrigrams = trigrams;
+        }
+    }
+
+    private static final class Snapshot {
+        // Clips by id, null if the id is free
+        private final Clip[] mClips;
+        private final Map<String, int[]> mPostings;
+        private final int mSize;
+
+        Snapshot(Clip[] clips, Map<String, int[]> postings, int size) {
+            mClips = clips;
+            mPostings = postings;
+            mSize = size;
+        }
+    }
+
+    /**
+     * Growable list of ints, i.e. a posting list without boxing.
+     */
+    private static class IntList {
+        private int[] mItems = new int[4];
+        private int mSize = 0;
+        // Array returned by toArray, null if the list has changed since then
+        private int[] mArray;
+
+        int size() {
+            return mSize;
+        }
+
+        int get(int index) {
+            return mItems[index];
+        }
+
+        void add(int item) {
+            mArray = null;
+            if (mSize == mItems.length) {
+                int[] items = new int[mSize * 2];
+                System.arraycopy(mItems, 0, items, 0, mSize);
+                mItems = items;
+            }
+            mItems[mSize++] = item;
+        }
+
+        /**
+         * @return items as an array, which is not modified later, i.e. the same array is returned
+         * until the list changes
+         */
+        int[] toArray() {
+            if (mArray == null) {
+                mArray = new int[mSize];
+                System.arraycopy(mItems, 0, mArray, 0, mSize);
+            }
+            return mArray;
+        }
+
+        int removeLast() {
+            mArray = null;
+            return mItems[--mSize];
+        }
+
+        /**
+         * Removes the item (the order of the items is not kept).
+         */
+        void removeValue(int item) {
+            for (int i = 0; i < mSize; i++) {
+                if (mItems[i] == item) {
+                    mArray = null;
+                    mItems[i] = mItems[--mSize];
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package ee.ioc.phon.android.speak.utils;
+
+import android.content.Context;
+import android.net.http.HttpResponseCache;
+import android.os.SystemClock;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import ee.ioc.phon.android.speak.Log;
+
+/**
+ * <p>Shared HTTP layer for the URL fetches that are triggered by rewrite rules and settings
+ * (e.g. FetchUrlActivity, GetPutPreferenceActivity).</p>
+ *
+ * <p>The connections are made with HttpURLConnection, whose connections are kept alive and pooled
+ * as long as the response body is read completely. The responses are cached on disk
+ * in the app cache directory (HttpResponseCache), which honors Cache-Control and revalidates
+ * stale responses with ETag/Last-Modified.</p>
+ *
+ * <p>Identical concurrent GET-requests are collapsed into a single request whose response is
+ * shared by all the callers (single-flight). Other methods (e.g. POST) are never collapsed
+ * because executing them twice is not necessarily the same as executing them once.</p>
+ *
+ * <p>The latency ("http.fetch"), the cache hits and network requests ("http.cache.hit",
+ * "http.cache.network"), and the shared requests ("http.singleflight.shared") are recorded
+ * in {@link Metrics}.</p>
+ *
+ * <p>Conditional requests ({@link #getIfModified}) are made by the callers that keep their own copy
+ * of the resource (e.g. the subscribed rewrite tables), the 304-responses are counted
+ * in "http.notmodified".</p>
+ */
+public final class HttpClient {
+
+    private static final String CACHE_DIR = "http";
+    private static final long CACHE_SIZE = 4 * 1024 * 1024;
+    private static final int TIMEOUT_CONNECT = 10000;
+    private static final int TIMEOUT_READ = 30000;
+    private static final int MAX_CONNECTIONS = 8;
+
+    private static final ConcurrentHashMap<String, FutureTask<String>> IN_FLIGHT = new ConcurrentHashMap<>();
+
+    private static boolean sIsInitialized = false;
+    private static long sHitCount = 0;
+    private static long sNetworkCount = 0;
+
+    private HttpClient() {
+    }
+
+    /**
+     * Installs the response cache, unless already installed. Can be called repeatedly,
+     * but must be called before the first fetch for the responses to be cached.
+     */
+    public static synchronized void init(Context context) {
+        if (sIsInitialized) {
+            return;
+        }
+        sIsInitialized = true;
+        // Pool size of the keep-alive connections per route
+        System.setProperty("http.maxConnections", String.valueOf(MAX_CONNECTIONS));
+        if (HttpResponseCache.getInstalled() == null) {
+            File dir = new File(context.getApplicationContext().getCacheDir(), CACHE_DIR);
+            try {
+                HttpResponseCache.install(dir, CACHE_SIZE);
+            } catch (IOException e) {
+                Log.e("HttpClient: cache not installed: " + e.getLocalizedMessage());
+            }
+        }
+    }
+
+    /**
+     * Performs a GET-request.
+     */
+    public static String get(String url) throws IOException {
+        return fetch(url, "GET", null, null);
+    }
+
+    /**
+     * Performs an HTTP request and returns the response body.
+     *
+     * @param url    URL
+     * @param method HTTP method, e.g. "GET", "POST"
+     * @param body   request body, or null
+     * @param header request headers, or null
+     * @return response body
+     * @throws IOException if the request failed, or the response status is not 2xx
+     */
+    public static String fetch(String url, String method, String body, Map<String, String> header) throws IOException {
+        if (!"GET".equals(method) || body != null) {
+            return execute(url, method, body, header);
+        }
+        String key = getKey(url, header);
+        FutureTask<String> task = new FutureTask<>(() -> execute(url, method, null, header));
+        FutureTask<String> existing = IN_FLIGHT.putIfAbsent(key, task);
+        if (existing == null) {
+            try {
+                task.run();
+            } finally {
+                IN_FLIGHT.remove(key, task);
+            }
+        } else {
+            Metrics.inc("http.singleflight.shared");
+            task = existing;
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Performs a conditional GET-request, bypassing the response cache.
+     *
+     * @param etag         entity tag of the copy that the caller has, or null
+     * @param lastModified Last-Modified of the copy that the caller has, or null
+     * @return response, whose body is null if the resource has not been modified
+     * @throws IOException if the request failed, or the response status is neither 2xx nor 304
+     */
+    public static ConditionalResponse getIfModified(String url, String etag, String lastModified) throws IOException {
+        long startTime = SystemClock.elapsedRealtime();
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            connection.setConnectTimeout(TIMEOUT_CONNECT);
+            connection.setReadTimeout(TIMEOUT_READ);
+            // The caller keeps the copy, caching it also here would waste space
+            connection.setUseCaches(false);
+            if (etag != null) {
+                connection.setRequestProperty("If-None-Match", etag);
+            }
+            if (lastModified != null) {
+                connection.setRequestProperty("If-Modified-Since", lastModified);
+            }
+            int code = connection.getResponseCode();
+            if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                drain(connection.getInputStream());
+                Metrics.inc("http.notmodified");
+                return new ConditionalResponse(null, etag, lastModified);
+            }
+            if (code < 200 || code >= 300) {
+                drain(connection.getErrorStream());
+                throw new IOException("HTTP " + code + " " + connection.getResponseMessage());
+            }
+            byte[] body = readBytes(connection.getInputStream());
+            return new ConditionalResponse(body, connection.getHeaderField("ETag"), connection.getHeaderField("Last-Modified"));
+        } finally {
+            Metrics.sample("http.fetch", SystemClock.elapsedRealtime() - startTime);
+        }
+    }
+
+    private static String execute(String url, String method, String body, Map<String, String> header) throws IOException {
+        long startTime = SystemClock.elapsedRealtime();
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            connection.setConnectTimeout(TIMEOUT_CONNECT);
+            connection.setReadTimeout(TIMEOUT_READ);
+            connection.setRequestMethod(method);
+            if (header != null) {
+                for (Map.Entry<String, String> entry : header.entrySet()) {
+                    connection.setRequestProperty(entry.getKey(), entry.getValue());
+                }
+            }
+            if (body != null) {
+                connection.setDoOutput(true);
+                OutputStream os = connection.getOutputStream();
+                try {
+                    os.write(body.getBytes("UTF-8"));
+                } finally {
+                    os.close();
+                }
+            }
+            int code = connection.getResponseCode();
+            if (code < 200 || code >= 300) {
+                // Reading the error body allows the connection to be reused
+                drain(connection.getErrorStream());
+                throw new IOException("HTTP " + code + " " + connection.getResponseMessage());
+            }
+            return read(connection.getInputStream());
+        } finally {
+            // The connection is not disconnected, so that it is returned to the pool
+            Metrics.sample("http.fetch", SystemClock.elapsedRealtime() - startTime);
+            updateCacheMetrics();
+        }
+    }
+
+    /**
+     * Copies the counters of the response cache into the metrics.
+     */
+    private static synchronized void updateCacheMetrics() {
+        HttpResponseCache cache = HttpResponseCache.getInstalled();
+        if (cache != null) {
+            long hitCount = cache.getHitCount();
+            long networkCount = cache.getNetworkCount();
+            Metrics.add("http.cache.hit", hitCount - sHitCount);
+            Metrics.add("http.cache.network", networkCount - sNetworkCount);
+            sHitCount = hitCount;
+            sNetworkCount = networkCount;
+        }
+    }
+
+    /**
+     * @return key that identifies the GET-request with the given URL and headers
+     */
+    static String getKey(String url, Map<String, String> header) {
+        if (header == null || header.isEmpty()) {
+            return url;
+        }
+        return url + ' ' + new TreeMap<>(header);
+    }
+
+    private static String read(InputStream is) throws IOException {
+        return new String(readBytes(is), "UTF-8");
+    }
+
+    private static byte[] readBytes(InputStream is) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        try {
+            int n;
+            while ((n = is.read(buffer)) != -1) {
+                baos.write(buffer, 0, n);
+            }
+        } finally {
+            is.close();
+        }
+        return baos.toByteArray();
+    }
+
+    private static void drain(InputStream is) {
+        if (is != null) {
+            try {
+                read(is);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    public static final class ConditionalResponse {
+        private final byte[] mBody;
+        private final String mEtag;
+        private final String mLastModified;
+
+        private ConditionalResponse(byte[] body, String etag, String lastModified) {
+            mBody = body;
+            mEtag = etag;
+            mLastModified = lastModified;
+        }
+
+        public boolean isNotModified() {
+            return mBody == null;
+        }
+
+        public byte[] getBody() {
+            return mBody;
+        }
+
+        public String getEtag() {
+            return mEtag;
+        }
+
+        public String getLastModified() {
+            return mLastModified;
+        }
+    }
+}
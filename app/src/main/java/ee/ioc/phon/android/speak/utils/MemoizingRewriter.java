@@ -0,0 +1,338 @@
+package ee.ioc.phon.android.speak.utils;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import ee.ioc.phon.android.speechutils.editor.Command;
+import ee.ioc.phon.android.speechutils.editor.UtteranceRewriter;
+
+/**
+ * <p>Applies a sequence of rewrite tables to transcription hypotheses, memoizing the rewrites
+ * of recent hypotheses.</p>
+ *
+ * <p>The partial results are rewritten in the background as they arrive (see {@link #prepare}),
+ * so that at finalization only a final hypothesis that differs from all the recent partial results
+ * needs to be rewritten. Also the tables are parsed only once, at the first rewrite.</p>
+ *
+ * <p>Every hypothesis is rewritten independently of the others, and the memoized value
+ * is exactly the result of rewriting the hypothesis with all the tables, i.e. the results
+ * are identical to rewriting the complete list at once.</p>
+ *
+ * <p>Also the output of every table is memoized by its input, i.e. a hypothesis that differs from
+ * the recent ones (e.g. a partial result that has grown by a word) is rewritten incrementally
+ * along the sequence of tables: once its intermediate rewrite equals an earlier intermediate rewrite
+ * (e.g. the first table normalizes the difference away), the remaining tables are not applied again.
+ * Note that the rewrite of a prefix of the hypothesis is not reused, because the rules are regular
+ * expressions that can match across the end of the prefix (or be anchored to it).</p>
+ *
+ * <p>The rules are matched within a time budget (see {@link RuleGuard}) only in the background.
+ * The rules that exceed it are left out of the tables of this rewriter from then on, i.e. also
+ * the final rewrite (which is not guarded, because it runs on the main thread) does not apply them.</p>
+ */
+public final class MemoizingRewriter {
+
+    // Number of most recent hypotheses whose rewrites are kept
+    private static final int MAX_ENTRIES = 32;
+    // Number of most recent outputs of single tables that are kept
+    private static final int MAX_STEP_ENTRIES = 128;
+
+    public interface Listener {
+        /**
+         * Called in the background after the partial results have been rewritten.
+         */
+        void onPrepared(List<String> texts, List<UtteranceRewriter> rewriters);
+    }
+
+    // Must generate the rewriters via RewriterIndex, so that the blocked rules are left out
+    private final Iterable<UtteranceRewriter> mRewritersIterable;
+    private final TaskScheduler.Token mToken = new TaskScheduler.Token();
+    private final AtomicReference<List<String>> mPending = new AtomicReference<>();
+    private final Map<String, List<String>> mMemo = new LinkedHashMap<String, List<String>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, List<String>> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    // Output of a table (by its index) for an input, the key is the index followed by the input
+    private final Map<String, List<String>> mStepMemo = new LinkedHashMap<String, List<String>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, List<String>> eldest) {
+            return size() > MAX_STEP_ENTRIES;
+        }
+    };
+    // Utterance patterns of the rules that exceeded the budget, guarded by mMemo
+    private final Set<String> mSkipped = new HashSet<>();
+    // Parsed tables, without the skipped rules, null if they need to be (re)parsed
+    private volatile Rewriters mRewriters;
+
+    public MemoizingRewriter(Iterable<UtteranceRewriter> rewriters) {
+        mRewritersIterable = rewriters;
+    }
+
+    /**
+     * Returns the rewrite tables, parsed at the first call, and reparsed after rules have been
+     * blocked or skipped. Does not block, i.e. if the tables are being parsed in the background,
+     * then they are parsed also here.
+     */
+    public List<UtteranceRewriter> getRewriters() {
+        Rewriters rewriters = mRewriters;
+        int generation = RuleGuard.getGeneration();
+        if (rewriters != null && rewriters.mGeneration == generation) {
+            return rewriters.mList;
+        }
+        long startTime = SystemClock.uptimeMillis();
+        List<UtteranceRewriter> list = mRewritersIterable == null
+                ? new ArrayList<UtteranceRewriter>() : Utils.makeList(mRewritersIterable);
+        Set<String> skipped;
+        synchronized (mMemo) {
+            skipped = new HashSet<>(mSkipped);
+            if (rewriters != null) {
+                // The outputs of the tables (by their index) are not valid anymore
+                mMemo.clear();
+                mStepMemo.clear();
+            }
+        }
+        if (!skipped.isEmpty()) {
+            for (int i = 0; i < list.size(); i++) {
+                if (list.get(i) != null) {
+                    list.set(i, RuleGuard.without(list.get(i), skipped));
+                }
+            }
+        }
+        Metrics.sample("rewrite.parse", SystemClock.uptimeMillis() - startTime);
+        mRewriters = new Rewriters(Collections.unmodifiableList(list), generation);
+        return mRewriters.mList;
+    }
+
+    /**
+     * Reads and parses the tables in the background, so that they are ready for the first rewrite.
+     */
+    public void load() {
+        TaskScheduler.post(TaskScheduler.Lane.DECODE, mToken, this::getRewriters);
+    }
+
+    /**
+     * Rewrites the given hypotheses, using the memoized rewrites if available. The rules are
+     * not guarded, i.e. this can be called on the main thread.
+     */
+    public List<String> rewrite(List<String> texts) {
+        List<String> newTexts = new ArrayList<>();
+        for (String text : texts) {
+            newTexts.addAll(rewrite(text, false));
+        }
+        return newTexts;
+    }
+
+    /**
+     * Rewrites the given partial results in the background, matching the rules within the budget.
+     * If the previous partial results are still waiting to be rewritten, then they are replaced by
+     * the given ones.
+     *
+     * @param texts    partial results
+     * @param listener listener to be called after the rewriting, or null
+     */
+    public void prepare(List<String> texts, final Listener listener) {
+        if (mPending.getAndSet(texts) == null) {
+            boolean isPosted = TaskScheduler.post(TaskScheduler.Lane.DECODE, mToken, () -> {
+                List<String> pending = mPending.getAndSet(null);
+                if (pending != null) {
+                    for (String text : pending) {
+                        rewrite(text, true);
+                    }
+                    if (listener != null && !pending.isEmpty()) {
+                        listener.onPrepared(pending, getRewriters());
+                    }
+                }
+            });
+            if (!isPosted) {
+                mPending.set(null);
+            }
+        }
+    }
+
+    /**
+     * Rewrites the given text for the command editor (e.g. of the IME), which executes the commands
+     * of the rules while it rewrites the text when it commits it (on the main thread). The leading tables
+     * that contain no commands are applied here, the remaining tables are returned, to be applied by
+     * the editor. All the rules are matched within the budget, i.e. the rules that exceeded it are
+     * left out of the returned tables. Must be called in the background.
+     */
+    public EditorRewrite rewriteForEditor(String text) {
+        RuleGuard.Budget budget = new RuleGuard.Budget(text);
+        List<String> result = Collections.singletonList(text);
+        List<UtteranceRewriter> rewriters = getRewriters();
+        List<UtteranceRewriter> editorRewriters = new ArrayList<>();
+        for (int i = 0; i < rewriters.size() && !budget.isExhausted(); i++) {
+            UtteranceRewriter ur = rewriters.get(i);
+            if (ur == null) {
+                continue;
+            }
+            ur = check(budget, i, ur, result);
+            if (editorRewriters.isEmpty() && !hasCommands(ur)) {
+                String oldText = result.isEmpty() ? text : result.get(0);
+                result = rewriteStep(i, ur, result);
+                // The editor gets the text as rewritten so far
+                text = result.isEmpty() ? oldText : result.get(0);
+            } else {
+                editorRewriters.add(ur);
+                // Only to check the rules of the following tables
+                result = rewriteStep(i, ur, result);
+            }
+        }
+        if (budget.isExhausted()) {
+            Metrics.inc("rewrite.guard.exhausted");
+        }
+        // Reparsed here if rules were skipped, i.e. not on the main thread
+        getRewriters();
+        return new EditorRewrite(text, editorRewriters);
+    }
+
+    /**
+     * Cancels the pending background rewrites.
+     */
+    public void close() {
+        TaskScheduler.cancel(mToken);
+    }
+
+    private List<String> rewrite(String text, boolean isGuarded) {
+        List<String> result;
+        synchronized (mMemo) {
+            result = mMemo.get(text);
+        }
+        if (result != null) {
+            Metrics.inc("rewrite.memo.hit");
+            return result;
+        }
+        Metrics.inc("rewrite.memo.miss");
+        long startTime = SystemClock.uptimeMillis();
+        RuleGuard.Budget budget = isGuarded ? new RuleGuard.Budget(text) : null;
+        result = Collections.singletonList(text);
+        List<UtteranceRewriter> rewriters = getRewriters();
+        for (int i = 0; i < rewriters.size(); i++) {
+            UtteranceRewriter ur = rewriters.get(i);
+            // Skip null, i.e. a case where a rewrites name did not resolve to a table.
+            if (ur != null) {
+                if (budget != null) {
+                    if (budget.isExhausted()) {
+                        break;
+                    }
+                    ur = check(budget, i, ur, result);
+                }
+                result = rewriteStep(i, ur, result);
+            }
+        }
+        result = Collections.unmodifiableList(new ArrayList<>(result));
+        Metrics.sample("rewrite.time", SystemClock.uptimeMillis() - startTime);
+        synchronized (mMemo) {
+            mMemo.put(text, result);
+        }
+        return result;
+    }
+
+    /**
+     * Matches the rules of the table against the given texts within the budget, unless they have
+     * been matched against them before (e.g. when the final result equals a partial result).
+     *
+     * @return table without the rules that exceeded the budget
+     */
+    private UtteranceRewriter check(RuleGuard.Budget budget, int index, UtteranceRewriter ur, List<String> texts) {
+        synchronized (mMemo) {
+            if (mStepMemo.containsKey(getStepKey(index, texts))) {
+                return ur;
+            }
+        }
+        Set<String> skipped = new HashSet<>();
+        for (String text : texts) {
+            skipped.addAll(budget.check(ur, text));
+        }
+        if (skipped.isEmpty()) {
+            return ur;
+        }
+        // Left out from now on, i.e. the tables are reparsed, and the memoized rewrites are forgotten
+        synchronized (mMemo) {
+            mSkipped.addAll(skipped);
+            mMemo.clear();
+            mStepMemo.clear();
+        }
+        mRewriters = null;
+        return RuleGuard.without(ur, skipped);
+    }
+
+    /**
+     * Applies the table with the given index, using its memoized output if available.
+     */
+    private List<String> rewriteStep(int index, UtteranceRewriter ur, List<String> texts) {
+        String key = getStepKey(index, texts);
+        List<String> result;
+        synchronized (mMemo) {
+            result = mStepMemo.get(key);
+        }
+        if (result != null) {
+            Metrics.inc("rewrite.memo.step.hit");
+            return result;
+        }
+        Metrics.inc("rewrite.memo.step.miss");
+        result = Collections.unmodifiableList(new ArrayList<>(ur.rewrite(texts)));
+        synchronized (mMemo) {
+            mStepMemo.put(key, result);
+        }
+        return result;
+    }
+
+    private static String getStepKey(int index, List<String> texts) {
+        StringBuilder sb = new StringBuilder().append(index);
+        for (String text : texts) {
+            sb.append('\u0000').append(text);
+        }
+        return sb.toString();
+    }
+
+    private static boolean hasCommands(UtteranceRewriter ur) {
+        for (Command command : ur.getCommands()) {
+            if (command.get(UtteranceRewriter.HEADER_COMMAND) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Text rewritten by the leading tables that contain no commands, and the remaining tables,
+     * see {@link #rewriteForEditor}.
+     */
+    public static final class EditorRewrite {
+        private final String mText;
+        private final List<UtteranceRewriter> mRewriters;
+
+        private EditorRewrite(String text, List<UtteranceRewriter> rewriters) {
+            mText = text;
+            mRewriters = rewriters;
+        }
+
+        public String getText() {
+            return mText;
+        }
+
+        public List<UtteranceRewriter> getRewriters() {
+            return mRewriters;
+        }
+    }
+
+    private static final class Rewriters {
+        private final List<UtteranceRewriter> mList;
+        private final int mGeneration;
+
+        Rewriters(List<UtteranceRewriter> list, int generation) {
+            mList = list;
+            mGeneration = generation;
+        }
+    }
+}
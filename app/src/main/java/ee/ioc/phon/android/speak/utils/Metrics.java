@@ -0,0 +1,106 @@
+package ee.ioc.phon.android.speak.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Process-wide counters and latency samples, e.g. "ws.bytes.sent" or "ws.latency.final".
+ * The values are kept in memory only, and can be listed in the developer details
+ * (see SpeechActionActivity).
+ */
+public final class Metrics {
+
+    // Number of most recent samples that are kept per name
+    private static final int MAX_SAMPLES = 500;
+
+    private static final Map<String, Long> COUNTERS = new TreeMap<>();
+    private static final Map<String, Samples> SAMPLES = new TreeMap<>();
+
+    private Metrics() {
+    }
+
+    public static void inc(String name) {
+        add(name, 1);
+    }
+
+    public static synchronized void add(String name, long delta) {
+        Long value = COUNTERS.get(name);
+        COUNTERS.put(name, value == null ? delta : value + delta);
+    }
+
+    public static synchronized long get(String name) {
+        Long value = COUNTERS.get(name);
+        return value == null ? 0 : value;
+    }
+
+    /**
+     * Records a sample, typically a duration in milliseconds.
+     */
+    public static synchronized void sample(String name, long value) {
+        Samples samples = SAMPLES.get(name);
+        if (samples == null) {
+            samples = new Samples();
+            SAMPLES.put(name, samples);
+        }
+        samples.add(value);
+    }
+
+    /**
+     * @return percentile (0-100) of the recorded samples, or -1 if there are no samples
+     */
+    public static synchronized long percentile(String name, int percentile) {
+        Samples samples = SAMPLES.get(name);
+        if (samples == null) {
+            return -1;
+        }
+        return samples.percentile(percentile);
+    }
+
+    public static synchronized void clear() {
+        COUNTERS.clear();
+        SAMPLES.clear();
+    }
+
+    /**
+     * @return human-readable list of all the counters and samples (count, p50, p95, p99, max)
+     */
+    public static synchronized List<String> toStringList() {
+        List<String> list = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : COUNTERS.entrySet()) {
+            list.add(entry.getKey() + ": " + entry.getValue());
+        }
+        for (Map.Entry<String, Samples> entry : SAMPLES.entrySet()) {
+            Samples samples = entry.getValue();
+            list.add(entry.getKey() + ": n=" + samples.mCount
+                    + " p50=" + samples.percentile(50)
+                    + " p95=" + samples.percentile(95)
+                    + " p99=" + samples.percentile(99)
+                    + " max=" + samples.percentile(100));
+        }
+        return list;
+    }
+
+    private static class Samples {
+        private final long[] mValues = new long[MAX_SAMPLES];
+        private int mCount = 0;
+
+        void add(long value) {
+            mValues[mCount % MAX_SAMPLES] = value;
+            mCount++;
+        }
+
+        long percentile(int percentile) {
+            int size = Math.min(mCount, MAX_SAMPLES);
+            if (size == 0) {
+                return -1;
+            }
+            long[] sorted = Arrays.copyOf(mValues, size);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100.0 * size) - 1;
+            return sorted[Math.max(0, Math.min(size - 1, index))];
+        }
+    }
+}
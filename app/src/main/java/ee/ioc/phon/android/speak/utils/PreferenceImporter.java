@@ -0,0 +1,274 @@
+package ee.ioc.phon.android.speak.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.res.Resources;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import ee.ioc.phon.android.speak.R;
+import ee.ioc.phon.android.speak.provider.RewritesStore;
+
+/**
+ * <p>Imports a list of preferences at once, e.g. when provisioning a device. The list is the JSON
+ * version of the YAML preference files in docs/ (see docs/adb-pref.py --bulk), i.e. an array of
+ * objects with the fields "key", "val", and optionally "is_url". The values have the same types
+ * as the values of GetPutPreferenceActivity: null (removes the key), boolean, int, long, float,
+ * string, and array of strings (stored as a string set).</p>
+ *
+ * <p>The URLs are fetched concurrently (in the BLOCKING lane of {@link TaskScheduler}, i.e. only a few at a time),
+ * and then all the keys are changed in a single commit, i.e. the preferences file is written once.
+ * Also the rewrite tables among the keys are moved to RewritesStore at once.
+ * A key whose URL cannot be fetched is left unchanged, and reported as an error.</p>
+ */
+public final class PreferenceImporter {
+
+    private static final String KEY = "key";
+    private static final String VAL = "val";
+    private static final String IS_URL = "is_url";
+
+    private PreferenceImporter() {
+    }
+
+    public static List<Entry> parse(String json) throws JSONException {
+        JSONArray array = new JSONArray(json);
+        List<Entry> entries = new ArrayList<>(array.length());
+        for (int i = 0; i < array.length(); i++) {
+            JSONObject object = array.getJSONObject(i);
+            entries.add(new Entry(object.getString(KEY), toVal(object.opt(VAL)), object.optBoolean(IS_URL)));
+        }
+        return entries;
+    }
+
+    /**
+     * Reads the list from the given stream (UTF-8), and closes the stream.
+     *
+     * @param maxLength max length of the list (in chars)
+     * @throws IOException if the stream cannot be read, or the list is longer than the max length
+     */
+    public static String read(InputStream is, int maxLength) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+        try {
+            StringBuilder sb = new StringBuilder();
+            char[] buffer = new char[8192];
+            int n;
+            while ((n = reader.read(buffer)) != -1) {
+                if (sb.length() + n > maxLength) {
+                    throw new IOException("List of preferences is longer than " + maxLength + " chars");
+                }
+                sb.append(buffer, 0, n);
+            }
+            return sb.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Changes the preferences. Must be called in the background.
+     */
+    public static Result apply(Context context, List<Entry> entries) {
+        long startTime = SystemClock.uptimeMillis();
+        Result result = new Result();
+        Map<Entry, Future<String>> fetches = fetchAll(context, entries);
+        SharedPreferences.Editor editor = PreferenceManager.getDefaultSharedPreferences(context).edit();
+        List<Entry> changed = new ArrayList<>();
+        for (Entry entry : entries) {
+            Object val = entry.mVal;
+            Future<String> fetch = fetches.get(entry);
+            if (fetch != null) {
+                try {
+                    val = fetch.get();
+                } catch (ExecutionException e) {
+                    result.mErrors.add(entry.mKey + ": " + val + ": " + e.getCause().getLocalizedMessage());
+                    continue;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    result.mErrors.add(entry.mKey + ": " + val + ": " + e);
+                    continue;
+                }
+            }
+            if (val == null) {
+                editor.remove(entry.mKey);
+            } else {
+                put(editor, entry.mKey, val);
+            }
+            changed.add(entry);
+        }
+        if (editor.commit()) {
+            // The tables that were put are moved to RewritesStore at once, by a single migration
+            String keyRewritesPut = null;
+            for (Entry entry : changed) {
+                if (entry.mVal == null) {
+                    result.mRemoveCount++;
+                    updateRewrites(context, entry.mKey, true);
+                } else {
+                    result.mPutCount++;
+                    if (isRewritesKey(context.getResources(), entry.mKey)) {
+                        keyRewritesPut = entry.mKey;
+                    }
+                }
+            }
+            if (keyRewritesPut != null) {
+                updateRewrites(context, keyRewritesPut, false);
+            }
+        } else {
+            result.mErrors.add("Failed to write the preferences");
+        }
+        Metrics.sample("prefs.import.time", SystemClock.uptimeMillis() - startTime);
+        Metrics.sample("prefs.import.keys", entries.size());
+        return result;
+    }
+
+    /**
+     * Puts the value into the editor, using the type of the value.
+     */
+    public static void put(SharedPreferences.Editor editor, String key, Object val) {
+        if (val instanceof String[]) {
+            editor.putStringSet(key, new HashSet<>(Arrays.asList((String[]) val)));
+        } else if (val instanceof Boolean) {
+            editor.putBoolean(key, (Boolean) val);
+        } else if (val instanceof Integer) {
+            editor.putInt(key, (Integer) val);
+        } else if (val instanceof Float) {
+            editor.putFloat(key, (Float) val);
+        } else if (val instanceof Long) {
+            editor.putLong(key, (Long) val);
+        } else {
+            editor.putString(key, val.toString());
+        }
+    }
+
+    /**
+     * The rewrite tables are stored in RewritesStore, i.e. the tables that are put into
+     * the SharedPreferences (keyRewritesMap, keyRewritesMap/NAME) are moved there,
+     * and removing keyRewritesMap/NAME deletes the table. Must be called in the background.
+     */
+    public static void updateRewrites(Context context, String key, boolean isRemoved) {
+        Resources res = context.getResources();
+        String prefix = res.getString(R.string.keyRewritesMap) + "/";
+        if (isRemoved) {
+            if (key.startsWith(prefix)) {
+                RewritesStore.getInstance(context).delete(key.substring(prefix.length()));
+            }
+        } else if (isRewritesKey(res, key)) {
+            // Moves all the tables that are in the SharedPreferences
+            RewritesStore.getInstance(context).migrate(PreferenceManager.getDefaultSharedPreferences(context), res);
+        }
+    }
+
+    private static boolean isRewritesKey(Resources res, String key) {
+        String keyRewritesMap = res.getString(R.string.keyRewritesMap);
+        return key.equals(keyRewritesMap) || key.startsWith(keyRewritesMap + "/");
+    }
+
+    private static Map<Entry, Future<String>> fetchAll(Context context, List<Entry> entries) {
+        List<Entry> urlEntries = new ArrayList<>();
+        for (Entry entry : entries) {
+            if (entry.mIsUrl && entry.mVal instanceof String) {
+                urlEntries.add(entry);
+            }
+        }
+        if (urlEntries.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        HttpClient.init(context);
+        Map<Entry, Future<String>> fetches = new IdentityHashMap<>();
+        TaskScheduler.Token token = new TaskScheduler.Token();
+        for (Entry entry : urlEntries) {
+            final String url = (String) entry.mVal;
+            FutureTask<String> fetch = new FutureTask<>(() -> HttpClient.get(url));
+            // If the lane is full, then the URL is fetched here, when its result is needed
+            if (!TaskScheduler.post(TaskScheduler.Lane.BLOCKING, token, fetch)) {
+                fetch = new FetchInPlace(url);
+            }
+            fetches.put(entry, fetch);
+        }
+        return fetches;
+    }
+
+    private static Object toVal(Object val) throws JSONException {
+        if (val == null || val == JSONObject.NULL) {
+            return null;
+        }
+        if (val instanceof JSONArray) {
+            JSONArray array = (JSONArray) val;
+            String[] strings = new String[array.length()];
+            for (int i = 0; i < array.length(); i++) {
+                strings[i] = array.getString(i);
+            }
+            return strings;
+        }
+        if (val instanceof Double) {
+            return ((Double) val).floatValue();
+        }
+        if (val instanceof Boolean || val instanceof Integer || val instanceof Long || val instanceof String) {
+            return val;
+        }
+        throw new JSONException("Unsupported value: " + val);
+    }
+
+    /**
+     * Fetch that runs when its result is requested.
+     */
+    private static class FetchInPlace extends FutureTask<String> {
+        FetchInPlace(final String url) {
+            super(() -> HttpClient.get(url));
+        }
+
+        @Override
+        public String get() throws InterruptedException, ExecutionException {
+            run();
+            return super.get();
+        }
+    }
+
+    public static class Entry {
+        private final String mKey;
+        private final Object mVal;
+        private final boolean mIsUrl;
+
+        Entry(String key, Object val, boolean isUrl) {
+            mKey = key;
+            mVal = val;
+            mIsUrl = isUrl;
+        }
+    }
+
+    public static class Result {
+        private int mPutCount;
+        private int mRemoveCount;
+        private final List<String> mErrors = new ArrayList<>();
+
+        public int getPutCount() {
+            return mPutCount;
+        }
+
+        public int getRemoveCount() {
+            return mRemoveCount;
+        }
+
+        public List<String> getErrors() {
+            return mErrors;
+        }
+    }
+}
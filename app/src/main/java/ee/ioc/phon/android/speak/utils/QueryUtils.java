@@ -36,6 +36,9 @@ public final class QueryUtils {
         listAdd(list, "calling-package", builder.getCaller());
         listAdd(list, "user-id", builder.getDeviceId());
         listAdd(list, "partial", "" + builder.isPartialResults());
+        if (builder.getDeadline() > 0) {
+            listAdd(list, "deadline", "" + builder.getDeadline());
+        }
         if (list.size() == 0) {
             return "";
         }
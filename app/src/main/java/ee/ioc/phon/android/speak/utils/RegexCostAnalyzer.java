@@ -0,0 +1,297 @@
+package ee.ioc.phon.android.speak.utils;
+
+import android.text.TextUtils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * <p>Static analysis of the utterance patterns of rewrite rules, which flags the patterns that can
+ * backtrack catastrophically on some inputs:</p>
+ *
+ * <ul>
+ * <li>nested unbounded quantifiers, e.g. <code>(a+)+</code>, <code>(\w+\s?)*</code> (exponential)</li>
+ * <li>unbounded quantifier over an alternation whose alternatives can match the same input,
+ * e.g. <code>(a|ab)*</code>, <code>(.|x)+</code> (exponential)</li>
+ * <li>three or more unbounded quantifiers over wide character classes in sequence,
+ * e.g. <code>.*a.*b.*</code> (polynomial)</li>
+ * </ul>
+ *
+ * <p>The analysis is a heuristic: it does not flag all the slow patterns, and flags some patterns
+ * that are harmless in practice. Possessive quantifiers (e.g. <code>a++</code>) are not flagged.</p>
+ */
+public final class RegexCostAnalyzer {
+
+    private static final String WIDE_ESCAPES = "wWsSdDpP";
+    private static final int MAX_WIDE_UNBOUNDED = 3;
+
+    private RegexCostAnalyzer() {
+    }
+
+    /**
+     * @return description of the problems of the given utterance pattern, or null if
+     * the pattern is not flagged
+     */
+    public static String describe(String utterance) {
+        List<String> issues = analyze(utterance);
+        if (issues.isEmpty()) {
+            return null;
+        }
+        return utterance + "\n" + TextUtils.join("\n", issues);
+    }
+
+    /**
+     * @return descriptions of the problems of the given pattern, or an empty list
+     */
+    public static List<String> analyze(String regex) {
+        List<String> issues = new ArrayList<>();
+        Deque<Group> stack = new ArrayDeque<>();
+        Group current = new Group(0);
+        // Group that was closed by the previous token, i.e. the operand of a following quantifier
+        Group closed = null;
+        // Whether the previous token was an atom that matches a wide range of characters
+        boolean isWide = false;
+        boolean isPolynomialReported = false;
+        int n = regex.length();
+        int i = 0;
+        while (i < n) {
+            char c = regex.charAt(i);
+            if (c == '*' || c == '+' || c == '?' || c == '{') {
+                boolean isUnbounded = c == '*' || c == '+';
+                if (c == '{') {
+                    int end = regex.indexOf('}', i);
+                    if (end < 0) {
+                        // Literal brace
+                        current.addAtom(regex.substring(i, i + 1), false);
+                        closed = null;
+                        isWide = false;
+                        i++;
+                        continue;
+                    }
+                    isUnbounded = regex.substring(i, end).endsWith(",");
+                    i = end;
+                }
+                i++;
+                boolean isPossessive = i < n && regex.charAt(i) == '+';
+                if (i < n && (regex.charAt(i) == '?' || regex.charAt(i) == '+')) {
+                    i++;
+                }
+                if (isUnbounded && !isPossessive) {
+                    if (closed != null) {
+                        String quantified = regex.substring(closed.mStart, i);
+                        if (closed.mHasUnbounded) {
+                            issues.add("Nested quantifier (exponential backtracking): " + quantified);
+                        } else if (closed.isOverlappingAlternation()) {
+                            issues.add("Quantified overlapping alternatives (exponential backtracking): " + quantified);
+                        }
+                    }
+                    current.mHasUnbounded = true;
+                    if (isWide && ++current.mNumWideUnbounded >= MAX_WIDE_UNBOUNDED && !isPolynomialReported) {
+                        issues.add("Many unbounded wildcards in sequence (polynomial backtracking)");
+                        isPolynomialReported = true;
+                    }
+                }
+                closed = null;
+                isWide = false;
+                continue;
+            }
+            closed = null;
+            isWide = false;
+            switch (c) {
+                case '\\': {
+                    if (i + 1 < n && regex.charAt(i + 1) == 'Q') {
+                        int end = regex.indexOf("\\E", i + 2);
+                        end = end < 0 ? n : end + 2;
+                        current.addAtom(regex.substring(i, end), false);
+                        i = end;
+                    } else {
+                        int end = skipEscape(regex, i);
+                        String atom = regex.substring(i, end);
+                        isWide = atom.length() == 2 && WIDE_ESCAPES.indexOf(atom.charAt(1)) >= 0;
+                        current.addAtom(atom, isWide);
+                        i = end;
+                    }
+                    break;
+                }
+                case '[': {
+                    int end = skipClass(regex, i);
+                    isWide = true;
+                    current.addAtom(regex.substring(i, end), true);
+                    i = end;
+                    break;
+                }
+                case '(': {
+                    int end = i + 1;
+                    if (end < n && regex.charAt(end) == '?') {
+                        // Inline flags, e.g. (?i), are not groups
+                        int close = end + 1;
+                        while (close < n && Character.isLetter(regex.charAt(close)) || close < n && regex.charAt(close) == '-') {
+                            close++;
+                        }
+                        if (close < n && regex.charAt(close) == ')') {
+                            i = close + 1;
+                            break;
+                        }
+                    }
+                    stack.push(current);
+                    current = new Group(i);
+                    i = skipGroupPrefix(regex, i + 1);
+                    break;
+                }
+                case ')': {
+                    Group group = current;
+                    current = stack.isEmpty() ? new Group(0) : stack.pop();
+                    current.mHasUnbounded |= group.mHasUnbounded;
+                    // A group is an opaque atom for the alternation analysis of the enclosing group
+                    current.addAtom(null, true);
+                    closed = group;
+                    i++;
+                    break;
+                }
+                case '|':
+                    current.mFirstAtoms.add(null);
+                    current.mIsAltStart = true;
+                    current.mHasAlternation = true;
+                    i++;
+                    break;
+                case '.':
+                    isWide = true;
+                    current.addAtom(".", true);
+                    i++;
+                    break;
+                default:
+                    current.addAtom(String.valueOf(c), false);
+                    i++;
+            }
+        }
+        return issues;
+    }
+
+    /**
+     * Skips the escape that starts at the given index. The escapes with an argument,
+     * e.g. <code>\p{L}</code>, <code>\pL</code>, <code>\x{41}</code>, are a single atom.
+     *
+     * @return index that follows the escape
+     */
+    private static int skipEscape(String regex, int i) {
+        int n = regex.length();
+        int end = Math.min(i + 2, n);
+        if (end == n || "pPx".indexOf(regex.charAt(i + 1)) < 0) {
+            return end;
+        }
+        if (regex.charAt(end) == '{') {
+            int close = regex.indexOf('}', end);
+            return close < 0 ? n : close + 1;
+        }
+        if (regex.charAt(i + 1) == 'x') {
+            return Math.min(end + 2, n);
+        }
+        // One-letter property, e.g. \pL
+        return end + 1;
+    }
+
+    /**
+     * Skips the construct that follows "(?", e.g. ":" (non-capturing), "=" (lookahead),
+     * "&lt;name&gt;" (named group), "i:" (flags).
+     *
+     * @return index that follows the construct
+     */
+    private static int skipGroupPrefix(String regex, int i) {
+        int n = regex.length();
+        if (i >= n || regex.charAt(i) != '?') {
+            return i;
+        }
+        i++;
+        if (i >= n) {
+            return i;
+        }
+        char c = regex.charAt(i);
+        if (c == '<') {
+            if (i + 1 < n && (regex.charAt(i + 1) == '=' || regex.charAt(i + 1) == '!')) {
+                return i + 2;
+            }
+            int end = regex.indexOf('>', i);
+            return end < 0 ? n : end + 1;
+        }
+        if (c == ':' || c == '=' || c == '!' || c == '>') {
+            return i + 1;
+        }
+        while (i < n && (Character.isLetter(regex.charAt(i)) || regex.charAt(i) == '-')) {
+            i++;
+        }
+        return i < n && regex.charAt(i) == ':' ? i + 1 : i;
+    }
+
+    /**
+     * @return index that follows the character class that starts at the given index
+     */
+    private static int skipClass(String regex, int start) {
+        int n = regex.length();
+        int depth = 0;
+        int i = start;
+        while (i < n) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i += 2;
+                continue;
+            }
+            if (c == '[') {
+                depth++;
+                // A closing bracket right after the opening one is a literal
+                if (i + 1 < n && regex.charAt(i + 1) == ']') {
+                    i++;
+                }
+            } else if (c == ']') {
+                depth--;
+                if (depth == 0) {
+                    return i + 1;
+                }
+            }
+            i++;
+        }
+        return n;
+    }
+
+    private static class Group {
+        private final int mStart;
+        // First atom of each alternative, null if the alternative is empty or starts with a wide atom
+        private final List<String> mFirstAtoms = new ArrayList<>();
+        private boolean mIsAltStart = true;
+        private boolean mHasAlternation = false;
+        private boolean mHasUnbounded = false;
+        private int mNumWideUnbounded = 0;
+
+        Group(int start) {
+            mStart = start;
+            mFirstAtoms.add(null);
+        }
+
+        void addAtom(String atom, boolean isWide) {
+            if (mIsAltStart) {
+                mFirstAtoms.set(mFirstAtoms.size() - 1, isWide ? null : atom);
+                mIsAltStart = false;
+            }
+        }
+
+        /**
+         * The alternatives overlap if two of them can start with the same character,
+         * i.e. one of them is empty or starts with a wide atom, or two start with the same atom.
+         */
+        boolean isOverlappingAlternation() {
+            if (!mHasAlternation) {
+                return false;
+            }
+            Set<String> seen = new HashSet<>();
+            for (String atom : mFirstAtoms) {
+                if (atom == null || !seen.add(atom)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
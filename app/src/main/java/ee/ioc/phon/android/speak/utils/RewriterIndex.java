@@ -0,0 +1,143 @@
+package ee.ioc.phon.android.speak.utils;
+
+import android.content.ComponentName;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ee.ioc.phon.android.speechutils.editor.CommandMatcher;
+import ee.ioc.phon.android.speechutils.editor.CommandMatcherFactory;
+import ee.ioc.phon.android.speechutils.editor.UtteranceRewriter;
+
+/**
+ * <p>Process-wide index of the rewrite tables, partitioned by the (locale, service, app)
+ * for which the rewriter is constructed. A partition is the rewriter that contains
+ * only the rules of the table whose Locale, Service and App columns match the triple.</p>
+ *
+ * <p>A partition is computed (i.e. the table is parsed and filtered) when the triple is
+ * first used with the table, and is then reused until the content of the table changes.
+ * I.e. switching between the combos, or between the apps in the IME, normally
+ * just selects a precomputed partition. When a table is updated with a few changed rules
+ * (see {@link #update}), only the partitions that contain the changed rules are recomputed.
+ * The partitions of a deleted or renamed table are dropped (see {@link #remove}).</p>
+ */
+public final class RewriterIndex {
+
+    // Number of partitions that are kept per table
+    private static final int MAX_PARTITIONS = 16;
+
+    private static final Map<String, Table> TABLES = new HashMap<>();
+
+    private RewriterIndex() {
+    }
+
+    /**
+     * @return key of the partition of the given locale, service and app
+     */
+    public static String getPartitionKey(String locale, ComponentName service, ComponentName app) {
+        return locale + '|'
+                + (service == null ? null : service.flattenToShortString()) + '|'
+                + (app == null ? null : app.flattenToShortString());
+    }
+
+    /**
+     * Returns the rewriter that contains the rules of the given table that match
+     * the given locale, service, and app.
+     *
+     * @param name    name of the rewrite table
+     * @param content rewrite table as a TSV string
+     */
+    public static UtteranceRewriter get(String name, String content, String locale, ComponentName service, ComponentName app) {
+        // Partitions that might contain newly blocked rules are not reused
+        String key = getPartitionKey(locale, service, app) + '|' + RuleGuard.getGeneration();
+        Table table;
+        synchronized (TABLES) {
+            table = TABLES.get(name);
+            if (table == null || !table.mContent.equals(content)) {
+                table = new Table(content);
+                TABLES.put(name, table);
+            }
+        }
+        synchronized (table) {
+            Partition partition = table.mPartitions.get(key);
+            if (partition == null) {
+                Metrics.inc("rewrite.partition.miss");
+                CommandMatcher commandMatcher = CommandMatcherFactory.createCommandFilter(locale, service, app);
+                partition = new Partition(new UtteranceRewriter(RuleGuard.removeBlocked(content), commandMatcher), commandMatcher);
+                table.mPartitions.put(key, partition);
+            } else {
+                Metrics.inc("rewrite.partition.hit");
+            }
+            return partition.mRewriter;
+        }
+    }
+
+    /**
+     * Replaces the content of the given table, keeping the partitions that are not affected
+     * by the change, i.e. that do not contain any of the changed rules.
+     *
+     * @param name        name of the rewrite table
+     * @param oldContent  previous content of the table
+     * @param newContent  new content of the table
+     * @param changedRows table (with the header, if any) of the rules that were added or removed,
+     *                    or null if all the partitions are affected (e.g. the rules were reordered)
+     */
+    public static void update(String name, String oldContent, String newContent, String changedRows) {
+        synchronized (TABLES) {
+            Table oldTable = TABLES.get(name);
+            if (oldTable == null || !oldTable.mContent.equals(oldContent)) {
+                return;
+            }
+            Table table = new Table(newContent);
+            if (changedRows != null) {
+                synchronized (oldTable) {
+                    for (Map.Entry<String, Partition> entry : oldTable.mPartitions.entrySet()) {
+                        Partition partition = entry.getValue();
+                        // The partition is unaffected if the changed rules are filtered out of it
+                        if (new UtteranceRewriter(changedRows, partition.mCommandMatcher).getCommandHolder().size() == 0) {
+                            table.mPartitions.put(entry.getKey(), partition);
+                            Metrics.inc("rewrite.partition.kept");
+                        } else {
+                            Metrics.inc("rewrite.partition.invalidated");
+                        }
+                    }
+                }
+            }
+            TABLES.put(name, table);
+        }
+    }
+
+    /**
+     * Drops the partitions of the given table, e.g. because the table was deleted or renamed.
+     */
+    public static void remove(String name) {
+        synchronized (TABLES) {
+            TABLES.remove(name);
+        }
+    }
+
+    private static class Partition {
+        private final UtteranceRewriter mRewriter;
+        private final CommandMatcher mCommandMatcher;
+
+        Partition(UtteranceRewriter rewriter, CommandMatcher commandMatcher) {
+            mRewriter = rewriter;
+            mCommandMatcher = commandMatcher;
+        }
+    }
+
+    private static class Table {
+        private final String mContent;
+        private final Map<String, Partition> mPartitions = new LinkedHashMap<String, Partition>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Partition> eldest) {
+                return size() > MAX_PARTITIONS;
+            }
+        };
+
+        Table(String content) {
+            mContent = content;
+        }
+    }
+}
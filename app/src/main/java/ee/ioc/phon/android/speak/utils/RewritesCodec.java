@@ -0,0 +1,229 @@
+package ee.ioc.phon.android.speak.utils;
+
+import android.util.Base64;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import ee.ioc.phon.android.speechutils.editor.UtteranceRewriter;
+
+/**
+ * <p>Encoding of rewrite tables for sharing, as <code>k6://</code>-links or as files/streams.</p>
+ *
+ * <p>The encoded table is a header (the bytes 0, 'K', '6', followed by the format version),
+ * followed by the UTF-8 TSV compressed with deflate (zlib format). Version 1 uses a preset
+ * dictionary of the column names and of the common command names and intent fragments,
+ * which makes also short tables noticeably shorter. The dictionary of a version
+ * must never change, a new dictionary requires a new version.</p>
+ *
+ * <p>Input that does not start with the header is the plain TSV, i.e. the <code>k6://</code>-links
+ * and files of the earlier versions of Kõnele are still decoded. A TSV cannot start with
+ * the header because it does not contain NUL-characters.</p>
+ */
+public final class RewritesCodec {
+
+    public static final String SCHEME = "k6";
+
+    // The MIME type of the encoded table, used when sharing it as a stream
+    public static final String MIME_TYPE = "application/vnd.ee.ioc.phon.android.speak.rewrites";
+    public static final String FILE_EXTENSION = ".k6";
+
+    private static final int VERSION = 1;
+    private static final byte[] MAGIC = {0, 'K', '6'};
+    private static final int HEADER_LENGTH = MAGIC.length + 1;
+    private static final int BASE64_FLAGS = Base64.NO_WRAP | Base64.URL_SAFE;
+    private static final String UTF_8 = "UTF-8";
+
+    // Preset dictionary of version 1. The more frequent strings are towards the end,
+    // because deflate encodes closer matches with fewer bits.
+    private static final byte[] DICTIONARY_V1 = toBytes(
+            "\"component\":\"ee.ioc.phon.android.speak/.activity.FetchUrlActivity\""
+                    + "\"extras\":{\"ee.ioc.phon.android.extra.HTTP_METHOD\":\"\"data\":\"https://"
+                    + "\"action\":\"android.intent.action.VIEW\"\"android.intent.extra.TEXT\":"
+                    + "ee.ioc.phon.android.speak/ee.ioc.phon.android.speak.service.WebSocketRecognitionService"
+                    + "activity\tgetUrl\timeActionDone\tselectReBefore\treplaceSel\treplace\tselect\t"
+                    + "moveRel\tdeleteLeftWord\tundo\tcopy\tpaste\tsaveClip\tloadClip\t"
+                    + "(?i)\\b([0-9]+)\\s*$1(.*)\\s*\\.*\\s+"
+                    + UtteranceRewriter.HEADER_APP + '\t'
+                    + UtteranceRewriter.HEADER_LOCALE + '\t'
+                    + UtteranceRewriter.HEADER_SERVICE + '\t'
+                    + UtteranceRewriter.HEADER_COMMENT + '\t'
+                    + UtteranceRewriter.HEADER_UTTERANCE + '\t'
+                    + UtteranceRewriter.HEADER_REPLACEMENT + '\t'
+                    + UtteranceRewriter.HEADER_COMMAND + '\t'
+                    + UtteranceRewriter.HEADER_ARG1 + '\t'
+                    + UtteranceRewriter.HEADER_ARG2 + '\n');
+
+    private RewritesCodec() {
+    }
+
+    /**
+     * @return <code>k6://</code>-link that contains the given table
+     */
+    public static String toLink(String tsv) {
+        return SCHEME + "://" + Base64.encodeToString(encode(tsv), BASE64_FLAGS);
+    }
+
+    /**
+     * @param ssp scheme specific part of a <code>k6://</code>-link, i.e. starting with "//"
+     * @return encoded table (compressed or plain) contained in the link
+     */
+    public static byte[] getLinkBytes(String ssp) throws IOException {
+        try {
+            return Base64.decode(ssp.substring(2), BASE64_FLAGS);
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new ZipException("Malformed link: " + e.getLocalizedMessage());
+        }
+    }
+
+    public static byte[] encode(String tsv) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try {
+            encode(tsv, baos);
+        } catch (IOException e) {
+            // Does not happen with ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Writes the encoded table to the given stream. The stream is not closed.
+     */
+    public static void encode(String tsv, OutputStream out) throws IOException {
+        out.write(MAGIC);
+        out.write(VERSION);
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setDictionary(DICTIONARY_V1);
+            DeflaterOutputStream dos = new DeflaterOutputStream(out, deflater);
+            dos.write(tsv.getBytes(UTF_8));
+            dos.finish();
+            dos.flush();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Returns a reader that decodes the table (compressed or plain) incrementally from
+     * the given stream. Closing the reader closes the stream.
+     */
+    public static BufferedReader openReader(InputStream in) throws IOException {
+        PushbackInputStream pis = new PushbackInputStream(in, HEADER_LENGTH);
+        byte[] header = new byte[HEADER_LENGTH];
+        int length = 0;
+        while (length < HEADER_LENGTH) {
+            int n = pis.read(header, length, HEADER_LENGTH - length);
+            if (n < 0) {
+                break;
+            }
+            length += n;
+        }
+        InputStream is;
+        if (length == HEADER_LENGTH && hasHeader(header)) {
+            if (header[MAGIC.length] != VERSION) {
+                throw new ZipException("Unsupported version: " + header[MAGIC.length]);
+            }
+            is = new InflatingInputStream(pis, DICTIONARY_V1);
+        } else {
+            pis.unread(header, 0, length);
+            is = pis;
+        }
+        return new BufferedReader(new InputStreamReader(is, UTF_8));
+    }
+
+    private static boolean hasHeader(byte[] bytes) {
+        return bytes.length >= HEADER_LENGTH && Arrays.equals(Arrays.copyOf(bytes, MAGIC.length), MAGIC);
+    }
+
+    private static byte[] toBytes(String str) {
+        try {
+            return str.getBytes(UTF_8);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Inflates a zlib stream that can require a preset dictionary. (InflaterInputStream
+     * reports end of stream when the dictionary is required.)
+     */
+    private static class InflatingInputStream extends FilterInputStream {
+        private final Inflater mInflater = new Inflater();
+        private final byte[] mDictionary;
+        private final byte[] mBuffer = new byte[8192];
+        private final byte[] mSingle = new byte[1];
+
+        InflatingInputStream(InputStream in, byte[] dictionary) {
+            super(in);
+            mDictionary = dictionary;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return read(mSingle, 0, 1) < 0 ? -1 : mSingle[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            try {
+                while (true) {
+                    int n = mInflater.inflate(b, off, len);
+                    if (n > 0) {
+                        return n;
+                    }
+                    if (mInflater.finished()) {
+                        return -1;
+                    }
+                    if (mInflater.needsDictionary()) {
+                        mInflater.setDictionary(mDictionary);
+                    } else if (mInflater.needsInput()) {
+                        int count = in.read(mBuffer, 0, mBuffer.length);
+                        if (count < 0) {
+                            throw new ZipException("Unexpected end of compressed table");
+                        }
+                        mInflater.setInput(mBuffer, 0, count);
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new ZipException(e.getLocalizedMessage());
+            } catch (IllegalArgumentException e) {
+                // Wrong dictionary
+                throw new ZipException(e.getLocalizedMessage());
+            }
+        }
+
+        @Override
+        public int available() {
+            return mInflater.finished() ? 0 : 1;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mInflater.end();
+            super.close();
+        }
+    }
+}
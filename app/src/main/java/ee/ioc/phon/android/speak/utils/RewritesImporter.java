@@ -0,0 +1,284 @@
+package ee.ioc.phon.android.speak.utils;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.OpenableColumns;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import ee.ioc.phon.android.speechutils.editor.Command;
+import ee.ioc.phon.android.speechutils.editor.UtteranceRewriter;
+
+/**
+ * <p>Imports a rewrite table (plain or compressed, see {@link RewritesCodec}) from a stream,
+ * to be run in the background.</p>
+ *
+ * <p>The rows are parsed as they are decoded, by the rule parser of {@link UtteranceRewriter}
+ * (which reports the invalid rules), and the utterance pattern of each rule is checked for
+ * catastrophic backtracking (see {@link RegexCostAnalyzer}). The progress
+ * (bytes read, number of rules and errors) is reported at most every {@link #PROGRESS_INTERVAL} ms.
+ * The normalized rows are appended to the resulting table as they arrive, i.e. the raw input
+ * is never held in memory as a whole, only the resulting table is.</p>
+ */
+public class RewritesImporter implements Runnable {
+
+    public static final long PROGRESS_INTERVAL = 100;
+
+    // Header of the tables that do not have one
+    private static final String DEFAULT_HEADER = UtteranceRewriter.HEADER_UTTERANCE + '\t' + UtteranceRewriter.HEADER_REPLACEMENT;
+
+    /**
+     * Source of the table, opened in the background (opening a content URI can block).
+     */
+    public interface Source {
+        InputStream open() throws IOException;
+
+        /**
+         * @return size of the stream in bytes, or -1 if unknown
+         */
+        long getSize();
+    }
+
+    public interface Listener {
+        /**
+         * @param bytesRead  number of bytes read from the stream
+         * @param size       size of the stream, or -1 if unknown
+         * @param ruleCount  number of rules parsed so far
+         * @param errorCount number of errors found so far
+         */
+        void onProgress(long bytesRead, long size, int ruleCount, int errorCount);
+
+        /**
+         * @param rewrites rewrite table as a TSV string
+         * @param errors   descriptions of the invalid and the potentially slow rules
+         */
+        void onDone(String rewrites, List<String> errors);
+
+        void onError(Exception e);
+    }
+
+    private final Source mSource;
+    private final TaskScheduler.Token mToken;
+    private final Listener mListener;
+
+    /**
+     * @param token token of the import task, the import stops if it is cancelled
+     */
+    public RewritesImporter(Source source, TaskScheduler.Token token, Listener listener) {
+        mSource = source;
+        mToken = token;
+        mListener = listener;
+    }
+
+    @Override
+    public void run() {
+        long startTime = SystemClock.uptimeMillis();
+        long size = mSource.getSize();
+        CountingInputStream cis;
+        try {
+            InputStream is = mSource.open();
+            if (is == null) {
+                throw new FileNotFoundException();
+            }
+            cis = new CountingInputStream(is);
+        } catch (IOException | SecurityException e) {
+            mListener.onError(e);
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        List<String> errors = new ArrayList<>();
+        int ruleCount = 0;
+        int lineNumber = 0;
+        // Header of the table, the default header is used if the table does not have one
+        String header = null;
+        long progressTime = startTime;
+        BufferedReader reader = null;
+        try {
+            reader = RewritesCodec.openReader(cis);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (mToken.isCancelled()) {
+                    return;
+                }
+                lineNumber++;
+                if (header == null) {
+                    if (Arrays.asList(line.split("\t", -1)).contains(UtteranceRewriter.HEADER_UTTERANCE)) {
+                        header = line;
+                        sb.append(header);
+                        continue;
+                    }
+                    header = DEFAULT_HEADER;
+                    sb.append(header);
+                }
+                if (line.isEmpty()) {
+                    continue;
+                }
+                ruleCount += parse(header, line, lineNumber, sb, errors);
+                long now = SystemClock.uptimeMillis();
+                if (now - progressTime >= PROGRESS_INTERVAL) {
+                    progressTime = now;
+                    mListener.onProgress(cis.getCount(), size, ruleCount, errors.size());
+                }
+            }
+        } catch (IOException e) {
+            mListener.onError(e);
+            return;
+        } finally {
+            close(reader == null ? cis : reader);
+        }
+        mListener.onProgress(cis.getCount(), size, ruleCount, errors.size());
+        Metrics.sample("rewrite.import.time", SystemClock.uptimeMillis() - startTime);
+        Metrics.sample("rewrite.import.rules", ruleCount);
+        mListener.onDone(sb.toString(), errors);
+    }
+
+    /**
+     * Parses the given row with the rule parser of the rewriter, and appends the normalized row
+     * (if it is valid) to the table.
+     *
+     * @param errors the errors of the parser, and the potentially slow rules are added here
+     * @return number of rules in the row
+     */
+    private static int parse(String header, String line, int lineNumber, StringBuilder sb, List<String> errors) {
+        UtteranceRewriter ur = new UtteranceRewriter(header + '\n' + line);
+        for (String error : ur.getErrorsAsStringArray()) {
+            errors.add(lineNumber + ": " + error);
+        }
+        String tsv = ur.toTsv();
+        int index = tsv.indexOf('\n');
+        if (index >= 0) {
+            sb.append(tsv, index, tsv.length());
+        }
+        int ruleCount = 0;
+        for (Command command : ur.getCommands()) {
+            ruleCount++;
+            String utterance = command.get(UtteranceRewriter.HEADER_UTTERANCE);
+            String cost = utterance == null ? null : RegexCostAnalyzer.describe(utterance);
+            if (cost != null) {
+                errors.add(lineNumber + ": " + cost);
+            }
+        }
+        return ruleCount;
+    }
+
+    /**
+     * @return description of the problem of the given utterance pattern, or null if it is fine
+     */
+    static String validate(String utterance) {
+        try {
+            Pattern.compile(utterance);
+        } catch (PatternSyntaxException e) {
+            return e.getLocalizedMessage();
+        }
+        return RegexCostAnalyzer.describe(utterance);
+    }
+
+    private static void close(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    public static class UriSource implements Source {
+        private final ContentResolver mContentResolver;
+        private final Uri mUri;
+
+        public UriSource(ContentResolver contentResolver, Uri uri) {
+            mContentResolver = contentResolver;
+            mUri = uri;
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            return mContentResolver.openInputStream(mUri);
+        }
+
+        @Override
+        public long getSize() {
+            Cursor cursor = null;
+            try {
+                cursor = mContentResolver.query(mUri, new String[]{OpenableColumns.SIZE}, null, null, null);
+                if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0)) {
+                    return cursor.getLong(0);
+                }
+            } catch (RuntimeException e) {
+                // The provider does not support the query
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+            return -1;
+        }
+    }
+
+    public static class BytesSource implements Source {
+        private final byte[] mBytes;
+
+        public BytesSource(byte[] bytes) {
+            mBytes = bytes;
+        }
+
+        @Override
+        public InputStream open() {
+            return new ByteArrayInputStream(mBytes);
+        }
+
+        @Override
+        public long getSize() {
+            return mBytes.length;
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private volatile long mCount = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                mCount += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            mCount += skipped;
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,361 @@
+package ee.ioc.phon.android.speak.utils;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import ee.ioc.phon.android.speak.Log;
+import ee.ioc.phon.android.speak.RewritesSyncReceiver;
+import ee.ioc.phon.android.speak.provider.RewritesStore;
+import ee.ioc.phon.android.speechutils.editor.UtteranceRewriter;
+
+/**
+ * <p>Rewrite tables that are subscribed to a source URL, and refreshed from it periodically
+ * (every {@link #INTERVAL} ms, via {@link RewritesSyncReceiver}) and on request.</p>
+ *
+ * <p>The refresh is a conditional GET-request (If-None-Match/If-Modified-Since), i.e. if the
+ * table has not changed, then the server answers with a short 304-response. If the table has
+ * changed, then it is compared to the current table row by row: only the added rules are
+ * validated, and only the cached partitions of the table (see {@link RewriterIndex}) that
+ * contain added or removed rules are invalidated.</p>
+ *
+ * <p>The source can be any http(s) URL, e.g. a spreadsheet exported as TSV, or a local
+ * test server. The table can also be compressed (see {@link RewritesCodec}).
+ * The status of the last refresh of each table is stored (in {@link RewritesStore}, together with
+ * the table), and shown in RewritesSelectorActivity.</p>
+ */
+public final class RewritesSync {
+
+    public static final long INTERVAL = AlarmManager.INTERVAL_HALF_DAY;
+
+    private RewritesSync() {
+    }
+
+    /**
+     * Subscribes the table to the given URL, or unsubscribes it if the URL is null or empty.
+     * The sync status is reset in any case.
+     */
+    public static void setUrl(Context context, String name, String url) {
+        RewritesStore.getInstance(context).setUrl(name, url == null || url.isEmpty() ? null : url);
+        schedule(context);
+    }
+
+    public static Status getStatus(Context context, String name) {
+        String json = RewritesStore.getInstance(context).getSyncStatus(name);
+        if (json == null) {
+            return null;
+        }
+        try {
+            Status status = new Status(new JSONObject(json));
+            return status.mResult == null ? null : status;
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Schedules the periodic refresh if there are subscribed tables, otherwise cancels it.
+     * The alarm does not survive a reboot, i.e. this is called also when the IME starts.
+     * The subscriptions are read in the background, i.e. this can be called on the main thread.
+     */
+    public static void schedule(Context context) {
+        final Context appContext = context.getApplicationContext();
+        TaskScheduler.post(TaskScheduler.Lane.IO, new TaskScheduler.Token(), () -> scheduleNow(appContext));
+    }
+
+    private static void scheduleNow(Context context) {
+        boolean hasSubscriptions = !RewritesStore.getInstance(context).getSubscribedNames().isEmpty();
+        Intent intent = new Intent(context, RewritesSyncReceiver.class);
+        PendingIntent existing = PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_NO_CREATE);
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        if (alarmManager == null) {
+            return;
+        }
+        if (hasSubscriptions) {
+            if (existing == null) {
+                PendingIntent pendingIntent = PendingIntent.getBroadcast(context, 0, intent, 0);
+                alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME,
+                        SystemClock.elapsedRealtime() + INTERVAL, INTERVAL, pendingIntent);
+            }
+        } else if (existing != null) {
+            alarmManager.cancel(existing);
+            existing.cancel();
+        }
+    }
+
+    /**
+     * Refreshes all the subscribed tables. Must be called in the background.
+     */
+    public static void syncAll(Context context) {
+        for (String name : RewritesStore.getInstance(context).getSubscribedNames()) {
+            sync(context, name);
+        }
+    }
+
+    /**
+     * Refreshes the given table from its URL, and stores the status of the refresh.
+     * Must be called in the background.
+     *
+     * @return status of the refresh, or null if the table is not subscribed
+     */
+    public static synchronized Status sync(Context context, String name) {
+        RewritesStore store = RewritesStore.getInstance(context);
+        String url = store.getUrl(name);
+        if (url == null) {
+            return null;
+        }
+        Status oldStatus = getStatus(context, name);
+        Status status = new Status();
+        status.mTime = System.currentTimeMillis();
+        if (oldStatus != null) {
+            status.mEtag = oldStatus.mEtag;
+            status.mLastModified = oldStatus.mLastModified;
+        }
+        String oldContent = store.get(name);
+        // New content of the table, stored together with the status
+        String updatedContent = null;
+        long startTime = SystemClock.elapsedRealtime();
+        try {
+            HttpClient.init(context);
+            // Without a local copy, the copy on the server is always "modified"
+            HttpClient.ConditionalResponse response = oldContent == null
+                    ? HttpClient.getIfModified(url, null, null)
+                    : HttpClient.getIfModified(url, status.mEtag, status.mLastModified);
+            status.mEtag = response.getEtag();
+            status.mLastModified = response.getLastModified();
+            if (response.isNotModified()) {
+                status.mResult = Status.NOT_MODIFIED;
+            } else {
+                String newContent = decode(response.getBody());
+                if (newContent.equals(oldContent)) {
+                    status.mResult = Status.NOT_MODIFIED;
+                } else {
+                    update(name, oldContent, newContent, status);
+                    updatedContent = newContent;
+                    status.mResult = Status.UPDATED;
+                }
+            }
+        } catch (IOException e) {
+            status.mResult = Status.FAILED;
+            status.mMessage = e.getLocalizedMessage();
+            Log.i("RewritesSync: " + name + ": " + url + ": " + e);
+        }
+        status.mDuration = SystemClock.elapsedRealtime() - startTime;
+        Metrics.sample("rewrite.sync.time", status.mDuration);
+        Metrics.inc("rewrite.sync." + status.mResult);
+        store.putSyncStatus(name, status.toJson().toString(), updatedContent);
+        return status;
+    }
+
+    private static void update(String name, String oldContent, String newContent, Status status) {
+        List<String> added = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        String changedRows = oldContent == null ? null : diff(oldContent, newContent, added, removed);
+        List<String> newRows = getRows(newContent);
+        String header = getHeader(newRows);
+        if (changedRows == null) {
+            // Everything has changed
+            added = newRows;
+            removed.clear();
+        }
+        // Only the added rules are validated, the others have been validated before
+        int column = header == null ? 0 : Math.max(0, Arrays.asList(header.split("\t", -1)).indexOf(UtteranceRewriter.HEADER_UTTERANCE));
+        for (String row : added) {
+            String[] cols = row.split("\t", -1);
+            if (column < cols.length && RewritesImporter.validate(cols[column]) != null) {
+                status.mErrorCount++;
+            }
+        }
+        status.mChangedRows = added.size() + removed.size();
+        if (oldContent != null) {
+            RewriterIndex.update(name, oldContent, newContent, changedRows);
+        }
+    }
+
+    /**
+     * Compares the tables row by row.
+     *
+     * @param added   the rows of the new table that are not in the old table are added here
+     * @param removed the rows of the old table that are not in the new table are added here
+     * @return header (if any) followed by the added and removed rows, or null if the difference
+     * cannot be expressed in this way, i.e. the header changed, the remaining rows were reordered,
+     * or a table contains duplicate rows
+     */
+    static String diff(String oldContent, String newContent, List<String> added, List<String> removed) {
+        List<String> oldRows = getRows(oldContent);
+        List<String> newRows = getRows(newContent);
+        String oldHeader = getHeader(oldRows);
+        String newHeader = getHeader(newRows);
+        if (oldHeader == null ? newHeader != null : !oldHeader.equals(newHeader)) {
+            return null;
+        }
+        Set<String> oldSet = new HashSet<>(oldRows);
+        Set<String> newSet = new HashSet<>(newRows);
+        if (oldSet.size() != oldRows.size() || newSet.size() != newRows.size()) {
+            return null;
+        }
+        // The rules are applied in order, i.e. the rows that are in both tables must be in the same order
+        List<String> oldKept = new ArrayList<>();
+        for (String row : oldRows) {
+            if (newSet.contains(row)) {
+                oldKept.add(row);
+            } else {
+                removed.add(row);
+            }
+        }
+        List<String> newKept = new ArrayList<>();
+        for (String row : newRows) {
+            if (oldSet.contains(row)) {
+                newKept.add(row);
+            } else {
+                added.add(row);
+            }
+        }
+        if (!oldKept.equals(newKept)) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        if (newHeader != null) {
+            sb.append(newHeader);
+        }
+        for (String row : added) {
+            sb.append('\n').append(row);
+        }
+        for (String row : removed) {
+            sb.append('\n').append(row);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return non-empty rows (including the header)
+     */
+    private static List<String> getRows(String content) {
+        List<String> rows = new ArrayList<>();
+        for (String row : content.split("\n")) {
+            if (!row.isEmpty()) {
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Removes the header from the given rows.
+     *
+     * @return header, or null if there is none
+     */
+    private static String getHeader(List<String> rows) {
+        if (!rows.isEmpty() && Arrays.asList(rows.get(0).split("\t", -1)).contains(UtteranceRewriter.HEADER_UTTERANCE)) {
+            return rows.remove(0);
+        }
+        return null;
+    }
+
+    private static String decode(byte[] body) throws IOException {
+        BufferedReader reader = RewritesCodec.openReader(new ByteArrayInputStream(body));
+        try {
+            StringBuilder sb = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (sb.length() > 0) {
+                    sb.append('\n');
+                }
+                sb.append(line);
+            }
+            return sb.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
+    public static class Status {
+        public static final String UPDATED = "updated";
+        public static final String NOT_MODIFIED = "notmodified";
+        public static final String FAILED = "failed";
+
+        private long mTime;
+        private long mDuration;
+        private String mResult;
+        private String mMessage;
+        private int mChangedRows;
+        private int mErrorCount;
+        private String mEtag;
+        private String mLastModified;
+
+        private Status() {
+        }
+
+        private Status(JSONObject json) {
+            mTime = json.optLong("time");
+            mDuration = json.optLong("duration");
+            mResult = json.optString("result", null);
+            mMessage = json.optString("message", null);
+            mChangedRows = json.optInt("changed");
+            mErrorCount = json.optInt("errors");
+            mEtag = json.optString("etag", null);
+            mLastModified = json.optString("lastModified", null);
+        }
+
+        /**
+         * @return time of the refresh (ms since epoch)
+         */
+        public long getTime() {
+            return mTime;
+        }
+
+        /**
+         * @return duration of the refresh (ms)
+         */
+        public long getDuration() {
+            return mDuration;
+        }
+
+        public String getResult() {
+            return mResult;
+        }
+
+        public String getMessage() {
+            return mMessage;
+        }
+
+        public int getChangedRows() {
+            return mChangedRows;
+        }
+
+        public int getErrorCount() {
+            return mErrorCount;
+        }
+
+        private JSONObject toJson() {
+            JSONObject json = new JSONObject();
+            try {
+                json.put("time", mTime);
+                json.put("duration", mDuration);
+                json.put("result", mResult);
+                json.put("message", mMessage);
+                json.put("changed", mChangedRows);
+                json.put("errors", mErrorCount);
+                json.put("etag", mEtag);
+                json.put("lastModified", mLastModified);
+            } catch (JSONException e) {
+                // Does not happen with these values
+            }
+            return json;
+        }
+    }
+}
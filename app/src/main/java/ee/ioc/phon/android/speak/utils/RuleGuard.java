@@ -0,0 +1,349 @@
+package ee.ioc.phon.android.speak.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+
+import ee.ioc.phon.android.speak.Log;
+import ee.ioc.phon.android.speechutils.editor.Command;
+import ee.ioc.phon.android.speechutils.editor.UtteranceRewriter;
+
+/**
+ * <p>Time-bounded matching of the utterance patterns of rewrite rules.</p>
+ *
+ * <p>Before an utterance is rewritten (in the background, see MemoizingRewriter), the utterance
+ * pattern of every rule (as compiled by the rewriter) is matched against the utterance as rewritten
+ * by the preceding tables, via a CharSequence that throws if the time budget of the utterance
+ * is exceeded. The rule that exceeds the budget is left out when this utterance is rewritten,
+ * i.e. the rewriting itself cannot get stuck in catastrophic backtracking, and the budget is renewed
+ * for the remaining rules (at most {@link #MAX_TEXT_OVERRUNS} times, then the remaining tables
+ * are not applied). The rule also gets an overrun, and a rule with {@link #MAX_OVERRUNS} overruns
+ * is blocked, i.e. {@link RewriterIndex} leaves it out of the rewriters. (A single overrun can be
+ * caused by the device being busy.)</p>
+ *
+ * <p>The overruns are stored (see {@link #init}), i.e. they survive the process being killed,
+ * e.g. after the IME has frozen. The blocked rules are logged, counted ("rewrite.rule.timeout"),
+ * and listed in the developer details together with the slowest rules. The blocked rules
+ * are unblocked by {@link #clear}, e.g. after the rewrite tables have changed.</p>
+ */
+public final class RuleGuard {
+
+    // Max time that matching all the utterance patterns against an utterance may take
+    public static final long BUDGET_MILLIS = 200;
+    // Number of overruns after which the rule is blocked
+    public static final int MAX_OVERRUNS = 3;
+    // Number of overruns per utterance after which the remaining tables are not applied to it
+    public static final int MAX_TEXT_OVERRUNS = 3;
+
+    private static final String PREFS_NAME = "RuleGuard";
+    // Number of slowest rules that are listed
+    private static final int MAX_LISTED = 10;
+    // The deadline is checked at every this many charAt-calls
+    private static final int CHECK_INTERVAL = 1024;
+
+    private static final Map<String, long[]> COSTS = new HashMap<>();
+    private static final Map<String, Integer> OVERRUNS = new HashMap<>();
+    private static final Set<String> BLOCKED = new HashSet<>();
+    private static volatile int sGeneration = 0;
+    // Overruns by utterance pattern, null until init is called (e.g. in the unit tests)
+    private static SharedPreferences sPrefs;
+
+    private RuleGuard() {
+    }
+
+    /**
+     * Loads the stored overruns (and blocks the rules that have too many of them).
+     * Must be called in the background.
+     */
+    public static void init(Context context) {
+        SharedPreferences prefs = context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        Map<String, ?> stored = prefs.getAll();
+        synchronized (BLOCKED) {
+            if (sPrefs != null) {
+                return;
+            }
+            sPrefs = prefs;
+            for (Map.Entry<String, ?> entry : stored.entrySet()) {
+                if (entry.getValue() instanceof Integer) {
+                    int count = (Integer) entry.getValue();
+                    OVERRUNS.put(entry.getKey(), count);
+                    if (count >= MAX_OVERRUNS) {
+                        BLOCKED.add(entry.getKey());
+                    }
+                }
+            }
+            if (!BLOCKED.isEmpty()) {
+                sGeneration++;
+                Log.i("RuleGuard: blocked: " + BLOCKED);
+            }
+        }
+    }
+
+    /**
+     * @return number of times that new rules have been blocked, i.e. the rewriters that have been
+     * constructed before the number changed can contain blocked rules
+     */
+    public static int getGeneration() {
+        return sGeneration;
+    }
+
+    public static boolean isBlocked(String utterance) {
+        synchronized (BLOCKED) {
+            return BLOCKED.contains(utterance);
+        }
+    }
+
+    /**
+     * Unblocks all the rules, and forgets their overruns.
+     */
+    public static void clear() {
+        synchronized (BLOCKED) {
+            OVERRUNS.clear();
+            if (sPrefs != null) {
+                sPrefs.edit().clear().apply();
+            }
+            if (!BLOCKED.isEmpty()) {
+                BLOCKED.clear();
+                sGeneration++;
+            }
+        }
+    }
+
+    /**
+     * Removes the rules with blocked utterance patterns from the given rewrite table.
+     *
+     * @param content rewrite table as a TSV string
+     * @return rewrite table without the blocked rules
+     */
+    public static String removeBlocked(String content) {
+        Set<String> blocked;
+        synchronized (BLOCKED) {
+            if (BLOCKED.isEmpty()) {
+                return content;
+            }
+            blocked = new HashSet<>(BLOCKED);
+        }
+        return removeRules(content, blocked);
+    }
+
+    /**
+     * @return rewriter without the rules with the given utterance patterns (the given rewriter
+     * if it does not contain any of them)
+     */
+    public static UtteranceRewriter without(UtteranceRewriter ur, Set<String> utterances) {
+        for (Command command : ur.getCommands()) {
+            if (utterances.contains(command.get(UtteranceRewriter.HEADER_UTTERANCE))) {
+                return new UtteranceRewriter(removeRules(ur.toTsv(), utterances));
+            }
+        }
+        return ur;
+    }
+
+    /**
+     * Removes the rules with the given utterance patterns from the given rewrite table.
+     * The Utterance column is located via the header (if present), otherwise it is the first column.
+     */
+    private static String removeRules(String content, Set<String> utterances) {
+        String[] lines = content.split("\n", -1);
+        int column = Arrays.asList(lines[0].split("\t", -1)).indexOf(UtteranceRewriter.HEADER_UTTERANCE);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < lines.length; i++) {
+            if (i > 0 || column < 0) {
+                String[] cols = lines[i].split("\t", -1);
+                if (utterances.contains(cols[Math.max(column, 0)])) {
+                    continue;
+                }
+            }
+            if (sb.length() > 0) {
+                sb.append('\n');
+            }
+            sb.append(lines[i]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Time budget of rewriting an utterance, shared by all the tables that are applied to it.
+     */
+    public static final class Budget {
+        private final String mText;
+        private long mDeadline;
+        private int mNumOverruns = 0;
+
+        public Budget(String text) {
+            mText = text;
+            mDeadline = SystemClock.elapsedRealtime() + BUDGET_MILLIS;
+        }
+
+        /**
+         * @return true if the utterance has had too many overruns, i.e. the remaining tables
+         * must not be applied to it
+         */
+        public boolean isExhausted() {
+            return mNumOverruns >= MAX_TEXT_OVERRUNS;
+        }
+
+        /**
+         * Matches the utterance patterns of the rules of the given rewriter against the given
+         * input (every match, as the rewriting does), recording the time of each rule.
+         * A rule that exceeds the budget gets an overrun, and the budget is renewed for the
+         * remaining rules. Must be called in the background.
+         *
+         * @return utterance patterns of the rules that exceeded the budget, i.e. that must be left out
+         * when the input is rewritten (all the rules, if the budget got exhausted), empty if none
+         */
+        public Set<String> check(UtteranceRewriter ur, String input) {
+            Set<String> overrun = new HashSet<>();
+            for (Command command : ur.getCommands()) {
+                String utterance = command.get(UtteranceRewriter.HEADER_UTTERANCE);
+                if (utterance == null || isBlocked(utterance)) {
+                    continue;
+                }
+                if (isExhausted()) {
+                    overrun.add(utterance);
+                    continue;
+                }
+                long startTime = SystemClock.elapsedRealtime();
+                try {
+                    Matcher matcher = command.getUtterance().matcher(new DeadlineCharSequence(input, mDeadline));
+                    while (matcher.find()) {
+                        // Every match is visited, as by replaceAll
+                    }
+                    addCost(utterance, SystemClock.elapsedRealtime() - startTime);
+                } catch (BudgetExceededException e) {
+                    addCost(utterance, SystemClock.elapsedRealtime() - startTime);
+                    overrun.add(utterance);
+                    overrun(utterance, mText);
+                    mNumOverruns++;
+                    mDeadline = SystemClock.elapsedRealtime() + BUDGET_MILLIS;
+                }
+            }
+            return overrun;
+        }
+    }
+
+    /**
+     * @return the slowest rules (max and mean time of matching in ms), and the blocked rules
+     */
+    public static List<String> toStringList() {
+        List<Map.Entry<String, long[]>> entries;
+        synchronized (COSTS) {
+            entries = new ArrayList<>();
+            for (Map.Entry<String, long[]> entry : COSTS.entrySet()) {
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue().clone()));
+            }
+        }
+        // Long.compare requires API 19
+        Collections.sort(entries, (e1, e2) -> {
+            long max1 = e1.getValue()[2];
+            long max2 = e2.getValue()[2];
+            return max1 > max2 ? -1 : (max1 == max2 ? 0 : 1);
+        });
+        List<String> list = new ArrayList<>();
+        for (Map.Entry<String, long[]> entry : entries.subList(0, Math.min(MAX_LISTED, entries.size()))) {
+            long[] cost = entry.getValue();
+            list.add("rewrite.rule.slowest: " + entry.getKey() + ": max=" + cost[2] + " mean=" + cost[1] / cost[0]);
+        }
+        synchronized (BLOCKED) {
+            for (Map.Entry<String, Integer> entry : OVERRUNS.entrySet()) {
+                list.add("rewrite.rule.overruns: " + entry.getKey() + ": " + entry.getValue());
+            }
+            for (String utterance : BLOCKED) {
+                list.add("rewrite.rule.blocked: " + utterance);
+            }
+        }
+        return list;
+    }
+
+    private static void addCost(String utterance, long millis) {
+        synchronized (COSTS) {
+            long[] cost = COSTS.get(utterance);
+            if (cost == null) {
+                // count, total, max
+                cost = new long[3];
+                COSTS.put(utterance, cost);
+            }
+            cost[0]++;
+            cost[1] += millis;
+            cost[2] = Math.max(cost[2], millis);
+        }
+    }
+
+    /**
+     * Records (and stores) the overrun, and blocks the rule if it has too many overruns.
+     * The overrun is stored synchronously, because the process might get killed soon.
+     */
+    private static void overrun(String utterance, String text) {
+        Metrics.inc("rewrite.rule.overrun");
+        int count;
+        synchronized (BLOCKED) {
+            Integer overruns = OVERRUNS.get(utterance);
+            count = overruns == null ? 1 : overruns + 1;
+            OVERRUNS.put(utterance, count);
+            if (sPrefs != null) {
+                sPrefs.edit().putInt(utterance, count).commit();
+            }
+            if (count >= MAX_OVERRUNS) {
+                BLOCKED.add(utterance);
+                sGeneration++;
+            }
+        }
+        if (count < MAX_OVERRUNS) {
+            Log.i("RuleGuard: rule exceeded the budget of " + BUDGET_MILLIS + " ms (" + count + "), skipped: " + utterance + " (input: " + text + ")");
+            return;
+        }
+        Metrics.inc("rewrite.rule.timeout");
+        Log.e("RuleGuard: rule exceeded the budget of " + BUDGET_MILLIS + " ms " + count + " times and was blocked: " + utterance + " (input: " + text + ")");
+    }
+
+    private static class BudgetExceededException extends RuntimeException {
+    }
+
+    /**
+     * CharSequence that throws BudgetExceededException when accessed after the deadline.
+     */
+    private static class DeadlineCharSequence implements CharSequence {
+        private final CharSequence mSeq;
+        private final long mDeadline;
+        private int mCount = 0;
+
+        DeadlineCharSequence(CharSequence seq, long deadline) {
+            mSeq = seq;
+            mDeadline = deadline;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (++mCount % CHECK_INTERVAL == 0 && SystemClock.elapsedRealtime() > mDeadline) {
+                throw new BudgetExceededException();
+            }
+            return mSeq.charAt(index);
+        }
+
+        @Override
+        public int length() {
+            return mSeq.length();
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new DeadlineCharSequence(mSeq.subSequence(start, end), mDeadline);
+        }
+
+        @Override
+        public String toString() {
+            return mSeq.toString();
+        }
+    }
+}
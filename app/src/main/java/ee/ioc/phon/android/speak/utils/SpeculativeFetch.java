@@ -0,0 +1,271 @@
+package ee.ioc.phon.android.speak.utils;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Matcher;
+
+import ee.ioc.phon.android.speak.Log;
+import ee.ioc.phon.android.speak.activity.FetchUrlActivity;
+import ee.ioc.phon.android.speechutils.Extras;
+import ee.ioc.phon.android.speechutils.editor.Command;
+import ee.ioc.phon.android.speechutils.editor.UtteranceRewriter;
+
+/**
+ * <p>Speculative execution of the URL fetches of the rewrite rules that launch
+ * FetchUrlActivity (command "activity" with an intent such as in docs/server.py).</p>
+ *
+ * <p>When a partial result matches such a rule, and the resulting request is a GET-request
+ * without a body, then the request is started in the background and its response is kept
+ * for a short while. When FetchUrlActivity is then launched (based on the final result)
+ * with exactly the same request, it takes the speculative response instead of starting
+ * a new request. Responses that are not taken expire and are discarded.</p>
+ *
+ * <p>Note that the rules are matched here independently from the command editor, i.e. a
+ * speculative response is used only if the final request is identical, otherwise
+ * it is just wasted work. The utterance patterns are the ones compiled by the rewriters,
+ * i.e. a partial result does not compile any patterns.</p>
+ *
+ * <p>Metrics: "speculative.started", "speculative.hit", "speculative.miss",
+ * "speculative.discarded", and "speculative.saved" (latency saved by a hit, in ms).</p>
+ */
+public final class SpeculativeFetch {
+
+    // Speculative responses that are not taken within this time are discarded
+    private static final long MAX_AGE = 30000;
+    // Max number of speculative requests that are kept at the same time
+    private static final int MAX_ENTRIES = 4;
+    // Max time to wait for a speculative response that is still being fetched
+    private static final long MAX_WAIT = 5000;
+
+    private static final String COMMAND_ACTIVITY = "activity";
+    private static final String KEY_COMPONENT = "component";
+    private static final String KEY_DATA = "data";
+    private static final String KEY_EXTRAS = "extras";
+
+    private static final String HEADER_EXTRAS = UtteranceRewriter.HEADER_UTTERANCE + "\t"
+            + UtteranceRewriter.HEADER_COMMAND + "\t" + UtteranceRewriter.HEADER_ARG1;
+
+    private static final Map<String, Entry> ENTRIES = new LinkedHashMap<>();
+
+    // Rule of the EXTRAs (EXTRA_RESULT_UTTERANCE etc.), and the rewriter that contains it
+    private static String sExtrasRule;
+    private static UtteranceRewriter sExtrasRewriter;
+
+    private SpeculativeFetch() {
+    }
+
+    /**
+     * Starts the speculative requests of the rules (from the rewrite tables and from the EXTRAs)
+     * that match the given partial result. The rules that do not launch FetchUrlActivity with
+     * a GET-request are ignored.
+     *
+     * @param context   context
+     * @param rewriters rewrite tables, or null
+     * @param extras    EXTRAs that can contain a rule (EXTRA_RESULT_UTTERANCE etc.), or null
+     * @param text      partial result
+     */
+    public static void speculate(Context context, Iterable<UtteranceRewriter> rewriters, Bundle extras, String text) {
+        if (text == null || text.isEmpty()) {
+            return;
+        }
+        List<String> intents = new ArrayList<>();
+        if (extras != null && COMMAND_ACTIVITY.equals(extras.getString(Extras.EXTRA_RESULT_COMMAND))) {
+            addIfMatches(intents, getExtrasRewriter(extras.getString(Extras.EXTRA_RESULT_UTTERANCE),
+                    extras.getString(Extras.EXTRA_RESULT_ARG1)), text);
+        }
+        if (rewriters != null) {
+            for (UtteranceRewriter ur : rewriters) {
+                addIfMatches(intents, ur, text);
+            }
+        }
+        for (String intent : intents) {
+            startIfGet(context, intent);
+        }
+    }
+
+    /**
+     * Returns the speculative response of the given request, waiting for it (at most
+     * {@link #MAX_WAIT} ms) if it is still being fetched, or null if there is no such response,
+     * i.e. the caller must fetch it.
+     */
+    public static String take(String url, String method, String body, Map<String, String> header) {
+        if (!"GET".equals(method) || body != null) {
+            return null;
+        }
+        Entry entry;
+        synchronized (ENTRIES) {
+            expire();
+            entry = ENTRIES.remove(HttpClient.getKey(url, header));
+        }
+        if (entry == null) {
+            Metrics.inc("speculative.miss");
+            return null;
+        }
+        long takeTime = SystemClock.elapsedRealtime();
+        try {
+            String result = entry.mTask.get(MAX_WAIT, TimeUnit.MILLISECONDS);
+            Metrics.inc("speculative.hit");
+            Metrics.sample("speculative.saved", Math.min(takeTime, entry.mEndTime) - entry.mStartTime);
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.i("SpeculativeFetch: failed: " + url + ": " + e.getCause());
+        } catch (TimeoutException e) {
+            Log.i("SpeculativeFetch: timeout: " + url);
+            entry.mTask.cancel(true);
+        }
+        // The request is repeated by the caller
+        Metrics.inc("speculative.miss");
+        return null;
+    }
+
+    /**
+     * Expands the group references of the intent templates (Arg1) of the rules that
+     * launch FetchUrlActivity, if their utterance pattern matches the text.
+     */
+    private static void addIfMatches(List<String> intents, UtteranceRewriter ur, String text) {
+        if (ur == null) {
+            return;
+        }
+        for (Command command : ur.getCommands()) {
+            if (!COMMAND_ACTIVITY.equals(command.get(UtteranceRewriter.HEADER_COMMAND))) {
+                continue;
+            }
+            String template = command.get(UtteranceRewriter.HEADER_ARG1);
+            if (template == null || !template.contains(FetchUrlActivity.class.getSimpleName())) {
+                continue;
+            }
+            try {
+                Matcher m = command.getUtterance().matcher(text);
+                if (m.find()) {
+                    StringBuffer sb = new StringBuffer();
+                    m.appendReplacement(sb, template);
+                    intents.add(sb.substring(m.start()));
+                }
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                // Invalid group reference, the command editor reports it
+            }
+        }
+    }
+
+    /**
+     * @return rewriter that contains the rule of the EXTRAs, which is parsed only when the EXTRAs change
+     */
+    private static synchronized UtteranceRewriter getExtrasRewriter(String utterance, String template) {
+        if (utterance == null || template == null) {
+            return null;
+        }
+        String rule = utterance + "\t" + COMMAND_ACTIVITY + "\t" + template;
+        if (!rule.equals(sExtrasRule)) {
+            sExtrasRule = rule;
+            try {
+                sExtrasRewriter = new UtteranceRewriter(rule, HEADER_EXTRAS);
+            } catch (IllegalArgumentException e) {
+                // Invalid pattern, the command editor reports it
+                sExtrasRewriter = null;
+            }
+        }
+        return sExtrasRewriter;
+    }
+
+    private static void startIfGet(Context context, String intentAsJson) {
+        final String url;
+        final Map<String, String> header;
+        try {
+            JSONObject json = new JSONObject(intentAsJson);
+            String component = json.optString(KEY_COMPONENT);
+            url = json.optString(KEY_DATA, null);
+            if (!component.endsWith(FetchUrlActivity.class.getSimpleName()) || url == null) {
+                return;
+            }
+            JSONObject extras = json.optJSONObject(KEY_EXTRAS);
+            header = new HashMap<>();
+            if (extras != null) {
+                if (!"GET".equals(extras.optString(FetchUrlActivity.EXTRA_HTTP_METHOD, "GET"))
+                        || extras.has(FetchUrlActivity.EXTRA_HTTP_BODY)) {
+                    return;
+                }
+                JSONObject headerAsJson = extras.optJSONObject(FetchUrlActivity.EXTRA_HTTP_HEADER);
+                if (headerAsJson != null) {
+                    Iterator<String> keys = headerAsJson.keys();
+                    while (keys.hasNext()) {
+                        String key = keys.next();
+                        header.put(key, headerAsJson.getString(key));
+                    }
+                }
+            }
+        } catch (JSONException e) {
+            return;
+        }
+
+        final String key = HttpClient.getKey(url, header);
+        final Entry entry = new Entry(new FutureTask<>(() -> HttpClient.fetch(url, "GET", null, header)));
+        synchronized (ENTRIES) {
+            expire();
+            if (ENTRIES.containsKey(key)) {
+                return;
+            }
+            if (ENTRIES.size() >= MAX_ENTRIES) {
+                Iterator<String> iter = ENTRIES.keySet().iterator();
+                iter.next();
+                iter.remove();
+                Metrics.inc("speculative.discarded");
+            }
+            ENTRIES.put(key, entry);
+        }
+        HttpClient.init(context);
+        Log.i("SpeculativeFetch: " + url);
+        Metrics.inc("speculative.started");
+        if (!TaskScheduler.post(TaskScheduler.Lane.IO, new TaskScheduler.Token(), () -> {
+            entry.mTask.run();
+            entry.mEndTime = SystemClock.elapsedRealtime();
+        })) {
+            synchronized (ENTRIES) {
+                if (ENTRIES.get(key) == entry) {
+                    ENTRIES.remove(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the entries that are too old. Must be called while holding the lock.
+     */
+    private static void expire() {
+        long now = SystemClock.elapsedRealtime();
+        Iterator<Entry> iter = ENTRIES.values().iterator();
+        while (iter.hasNext()) {
+            if (now - iter.next().mStartTime > MAX_AGE) {
+                iter.remove();
+                Metrics.inc("speculative.discarded");
+            }
+        }
+    }
+
+    private static class Entry {
+        private final FutureTask<String> mTask;
+        private final long mStartTime;
+        private volatile long mEndTime = Long.MAX_VALUE;
+
+        Entry(FutureTask<String> task) {
+            mTask = task;
+            mStartTime = SystemClock.elapsedRealtime();
+        }
+    }
+}
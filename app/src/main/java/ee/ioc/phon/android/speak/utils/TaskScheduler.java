@@ -0,0 +1,191 @@
+package ee.ioc.phon.android.speak.utils;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import ee.ioc.phon.android.speak.Log;
+
+/**
+ * Process-wide background threads, one per lane (except for the BLOCKING lane, which has a few threads).
+ * The lanes differ by thread priority, so that e.g. sending the audio is never delayed by a URL fetch
+ * or a network scan.
+ * The queue of each lane is bounded, posting to a full lane fails.
+ * The queue depth, the waiting time (from the due time to the start of the task),
+ * and the running time of the tasks are recorded in {@link Metrics}, e.g. "lane.io.wait".
+ * <p>
+ * Tasks are posted with a {@link Token}. Cancelling the token removes its pending tasks,
+ * and makes further posts with the token fail, i.e. a repeating task that re-posts itself
+ * stops after the token is cancelled.
+ */
+public final class TaskScheduler {
+
+    public enum Lane {
+        // Recording and sending the audio
+        AUDIO("audio", Process.THREAD_PRIORITY_AUDIO, 16),
+        // Waiting for and decoding the recognition results
+        DECODE("decode", Process.THREAD_PRIORITY_DEFAULT, 16),
+        // User-initiated network and disk I/O (e.g. fetching a URL)
+        IO("io", Process.THREAD_PRIORITY_BACKGROUND, 32),
+        // Maintenance (e.g. network scanning), can be delayed arbitrarily
+        BACKGROUND("background", Process.THREAD_PRIORITY_LOWEST, 8),
+        // Tasks that block for a long time (e.g. concurrent URL fetches, waiting for a recognition result),
+        // run on a few threads, i.e. at most this many of them run at the same time
+        BLOCKING("blocking", Process.THREAD_PRIORITY_BACKGROUND, 32, 4);
+
+        private final String mName;
+        private final int mPriority;
+        private final int mCapacity;
+        private final int mNumThreads;
+        private final Set<Task> mQueued = Collections.newSetFromMap(new ConcurrentHashMap<Task, Boolean>());
+        private Handler mHandler;
+        private ScheduledExecutorService mExecutor;
+
+        Lane(String name, int priority, int capacity) {
+            this(name, priority, capacity, 1);
+        }
+
+        Lane(String name, int priority, int capacity, int numThreads) {
+            mName = name;
+            mPriority = priority;
+            mCapacity = capacity;
+            mNumThreads = numThreads;
+        }
+
+        private synchronized Handler getHandler() {
+            if (mHandler == null) {
+                HandlerThread thread = new HandlerThread("Lane-" + mName, mPriority);
+                thread.start();
+                mHandler = new Handler(thread.getLooper());
+            }
+            return mHandler;
+        }
+
+        private synchronized ScheduledExecutorService getExecutor() {
+            if (mExecutor == null) {
+                mExecutor = new ScheduledThreadPoolExecutor(mNumThreads, runnable -> new Thread(() -> {
+                    Process.setThreadPriority(mPriority);
+                    runnable.run();
+                }, "Lane-" + mName));
+            }
+            return mExecutor;
+        }
+
+        private String getMetricName(String suffix) {
+            return "lane." + mName + "." + suffix;
+        }
+    }
+
+    /**
+     * Identifies a group of tasks (e.g. the tasks of a recognition session) that can be
+     * cancelled together.
+     */
+    public static final class Token {
+        private volatile boolean mIsCancelled;
+
+        public boolean isCancelled() {
+            return mIsCancelled;
+        }
+    }
+
+    private TaskScheduler() {
+    }
+
+    public static boolean post(Lane lane, Token token, Runnable runnable) {
+        return postDelayed(lane, token, runnable, 0);
+    }
+
+    /**
+     * @return false if the token has been cancelled or the lane is full
+     */
+    public static boolean postDelayed(Lane lane, Token token, Runnable runnable, long delayMillis) {
+        if (token.isCancelled()) {
+            return false;
+        }
+        int depth = lane.mQueued.size();
+        Metrics.sample(lane.getMetricName("depth"), depth);
+        if (depth >= lane.mCapacity) {
+            Log.e("TaskScheduler: lane " + lane.mName + " is full");
+            Metrics.inc(lane.getMetricName("rejected"));
+            return false;
+        }
+        long dueTime = SystemClock.uptimeMillis() + delayMillis;
+        Task task = new Task(lane, token, runnable, dueTime);
+        lane.mQueued.add(task);
+        if (lane.mNumThreads > 1) {
+            // The cancelled tasks are not removed from the executor, but they do not run
+            try {
+                lane.getExecutor().schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                lane.mQueued.remove(task);
+                return false;
+            }
+        } else if (!lane.getHandler().postAtTime(task, token, dueTime)) {
+            lane.mQueued.remove(task);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Removes the pending tasks of the token from all the lanes, and rejects its future tasks.
+     * A task that is already running is not interrupted.
+     */
+    public static void cancel(Token token) {
+        if (token == null) {
+            return;
+        }
+        token.mIsCancelled = true;
+        for (Lane lane : Lane.values()) {
+            synchronized (lane) {
+                if (lane.mHandler != null) {
+                    lane.mHandler.removeCallbacksAndMessages(token);
+                }
+            }
+            Iterator<Task> iter = lane.mQueued.iterator();
+            while (iter.hasNext()) {
+                if (iter.next().mToken == token) {
+                    iter.remove();
+                }
+            }
+        }
+    }
+
+    private static class Task implements Runnable {
+        private final Lane mLane;
+        private final Token mToken;
+        private final Runnable mRunnable;
+        private final long mDueTime;
+
+        Task(Lane lane, Token token, Runnable runnable, long dueTime) {
+            mLane = lane;
+            mToken = token;
+            mRunnable = runnable;
+            mDueTime = dueTime;
+        }
+
+        @Override
+        public void run() {
+            if (!mLane.mQueued.remove(this) || mToken.isCancelled()) {
+                return;
+            }
+            long startTime = SystemClock.uptimeMillis();
+            Metrics.sample(mLane.getMetricName("wait"), startTime - mDueTime);
+            try {
+                mRunnable.run();
+            } finally {
+                Metrics.sample(mLane.getMetricName("run"), SystemClock.uptimeMillis() - startTime);
+            }
+        }
+    }
+}
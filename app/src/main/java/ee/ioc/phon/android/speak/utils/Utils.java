@@ -28,7 +28,6 @@ import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.ShortcutInfo;
 import android.content.pm.ShortcutManager;
-import android.content.res.Resources;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
@@ -38,11 +37,14 @@ import android.graphics.drawable.Icon;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
 import android.speech.RecognizerIntent;
 import android.text.SpannableString;
 import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
+import android.view.ViewTreeObserver;
 import android.view.inputmethod.EditorInfo;
 import android.widget.EditText;
 
@@ -60,9 +62,8 @@ import ee.ioc.phon.android.speak.R;
 import ee.ioc.phon.android.speak.activity.SpeechActionActivity;
 import ee.ioc.phon.android.speak.model.CallerInfo;
 import ee.ioc.phon.android.speak.model.Combo;
+import ee.ioc.phon.android.speak.provider.RewritesStore;
 import ee.ioc.phon.android.speechutils.Extras;
-import ee.ioc.phon.android.speechutils.editor.CommandMatcher;
-import ee.ioc.phon.android.speechutils.editor.CommandMatcherFactory;
 import ee.ioc.phon.android.speechutils.editor.UtteranceRewriter;
 import ee.ioc.phon.android.speechutils.utils.PreferenceUtils;
 
@@ -207,15 +208,15 @@ public final class Utils {
      * If the given list is null, then the default rewriter is returned (currently at most one).
      * Passing an empty list effectively turns off rewriting.
      */
-    public static Iterable<UtteranceRewriter> genRewriters(final SharedPreferences prefs,
-                                                           final Resources resources,
+    public static Iterable<UtteranceRewriter> genRewriters(Context context,
                                                            String[] rewritesByName,
                                                            String language,
                                                            ComponentName service,
                                                            ComponentName app) {
         final String[] names;
         if (rewritesByName == null) {
-            Set<String> defaults = PreferenceUtils.getPrefStringSet(prefs, resources, R.string.defaultRewriteTables);
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+            Set<String> defaults = PreferenceUtils.getPrefStringSet(prefs, context.getResources(), R.string.defaultRewriteTables);
             if (defaults.isEmpty()) {
                 return Collections.EMPTY_LIST;
             }
@@ -230,8 +231,7 @@ public final class Utils {
         if (length == 0) {
             return Collections.EMPTY_LIST;
         }
-        final CommandMatcher commandMatcher = CommandMatcherFactory.createCommandFilter(language, service, app);
-
+        final RewritesStore store = RewritesStore.getInstance(context);
         return () -> new Iterator<UtteranceRewriter>() {
 
             private int mCurrent = 0;
@@ -243,11 +243,12 @@ public final class Utils {
 
             @Override
             public UtteranceRewriter next() {
-                String rewritesAsStr = PreferenceUtils.getPrefMapEntry(prefs, resources, R.string.keyRewritesMap, names[mCurrent++]);
+                String name = names[mCurrent++];
+                String rewritesAsStr = store.get(name);
                 if (rewritesAsStr == null) {
                     return null;
                 }
-                return new UtteranceRewriter(rewritesAsStr, commandMatcher);
+                return RewriterIndex.get(name, rewritesAsStr, language, service, app);
             }
         };
     }
@@ -260,6 +261,22 @@ public final class Utils {
         return list;
     }
 
+    /**
+     * Samples the time from the given start time until the view is drawn for the first time.
+     *
+     * @param startTime start time in uptime milliseconds
+     */
+    public static void sampleFirstFrame(final View view, final String name, final long startTime) {
+        view.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                view.getViewTreeObserver().removeOnPreDrawListener(this);
+                Metrics.sample(name, SystemClock.uptimeMillis() - startTime);
+                return true;
+            }
+        });
+    }
+
     public static Intent getRecognizerIntent(String action, CallerInfo callerInfo, String language) {
         Intent intent = new Intent(action);
         Bundle extras = callerInfo.getExtras();
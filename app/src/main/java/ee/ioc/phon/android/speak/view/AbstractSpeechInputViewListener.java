@@ -38,7 +38,7 @@ public abstract class AbstractSpeechInputViewListener implements SpeechInputView
     }
 
     @Override
-    public void onDeleteLeftChar() {
+    public void onDeleteLeftChars(int numOfChars) {
         // empty
     }
 
@@ -0,0 +1,99 @@
+package ee.ioc.phon.android.speak.view;
+
+import android.view.Choreographer;
+
+import ee.ioc.phon.android.speak.utils.Metrics;
+
+/**
+ * Accumulates the cursor movements, selection changes and deletions that are generated by
+ * the gestures, and flushes them as a single combined operation per display frame.
+ * An operation of a different kind (or a selection change of a different type) flushes
+ * the pending operation first, so that the order of the operations is preserved.
+ * Must be used on the UI thread.
+ */
+public abstract class EditOpBatcher implements Choreographer.FrameCallback {
+
+    private static final int KIND_NONE = 0;
+    private static final int KIND_MOVE = 1;
+    private static final int KIND_MOVE_SEL = 2;
+    private static final int KIND_DELETE = 3;
+
+    private final Choreographer mChoreographer = Choreographer.getInstance();
+
+    private int mKind = KIND_NONE;
+    private int mType;
+    private int mNumOfChars;
+    private boolean mIsScheduled;
+
+    abstract void onMove(int numOfChars);
+
+    abstract void onMoveSel(int numOfChars, int type);
+
+    /**
+     * @param numOfChars number of characters to delete to the left of the cursor
+     */
+    abstract void onDelete(int numOfChars);
+
+    public void move(int numOfChars) {
+        add(KIND_MOVE, 0, numOfChars);
+    }
+
+    public void moveSel(int numOfChars, int type) {
+        add(KIND_MOVE_SEL, type, numOfChars);
+    }
+
+    public void delete(int numOfChars) {
+        add(KIND_DELETE, 0, numOfChars);
+    }
+
+    /**
+     * Executes the pending operation (if any) immediately.
+     */
+    public void flush() {
+        if (mIsScheduled) {
+            mChoreographer.removeFrameCallback(this);
+            mIsScheduled = false;
+        }
+        int kind = mKind;
+        int numOfChars = mNumOfChars;
+        mKind = KIND_NONE;
+        mNumOfChars = 0;
+        if (numOfChars == 0) {
+            return;
+        }
+        Metrics.inc("ime.gesture.ops");
+        switch (kind) {
+            case KIND_MOVE:
+                onMove(numOfChars);
+                break;
+            case KIND_MOVE_SEL:
+                onMoveSel(numOfChars, mType);
+                break;
+            case KIND_DELETE:
+                onDelete(numOfChars);
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        mIsScheduled = false;
+        flush();
+    }
+
+    private void add(int kind, int type, int numOfChars) {
+        if (mKind != KIND_NONE && (mKind != kind || mType != type)) {
+            flush();
+        }
+        Metrics.inc("ime.gesture.events");
+        mKind = kind;
+        mType = type;
+        mNumOfChars += numOfChars;
+        if (!mIsScheduled) {
+            mIsScheduled = true;
+            mChoreographer.postFrameCallback(this);
+        }
+    }
+}
@@ -2,6 +2,7 @@ package ee.ioc.phon.android.speak.view;
 
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewConfiguration;
@@ -26,6 +27,14 @@ public class OnCursorTouchListener implements View.OnTouchListener {
     // TODO: calculate dynamically
     private static final float VERTICAL_SPEED = 3.5f;
     private static final float DISTANCE_SCALE = 0.04f;
+    // Moves faster than this (in pixels per millisecond) are accelerated
+    private static final float ACCEL_SPEED = 1.0f;
+    private static final float MAX_ACCEL = 4.0f;
+    // The edge scrolling step doubles after dwelling this long at the edge, and is up to
+    // EDGE_DEPTH_ACCEL times larger at the outer border of the edge than at its inner border
+    private static final int EDGE_DOUBLING_MILLIS = 1000;
+    private static final float EDGE_DEPTH_ACCEL = 4.0f;
+    private static final int MAX_EDGE_STEP = 4096;
 
     private final int mEdge;
 
@@ -35,19 +44,23 @@ public class OnCursorTouchListener implements View.OnTouchListener {
 
     private float mStartX = 0;
     private float mStartY = 0;
+    private long mStartTime = 0;
+    private long mEdgeStartTime = 0;
+    // Position of the finger in the edge, from 0 (inner border) to 1 (outer border)
+    private float mEdgeDepth = 0;
     private int mCursorType = -1;
     private int mTapCounter = 0;
 
     private Handler mHandler = new Handler();
     private Runnable mTask1 = new Runnable() {
         public void run() {
-            onMoveAux(-1, 0);
+            onMoveAux(-1 * getEdgeStep(), 0);
             mHandler.postDelayed(this, DELAY);
         }
     };
     private Runnable mTask2 = new Runnable() {
         public void run() {
-            onMoveAux(1, 1);
+            onMoveAux(getEdgeStep(), 1);
             mHandler.postDelayed(this, DELAY);
         }
     };
@@ -103,6 +116,7 @@ public class OnCursorTouchListener implements View.OnTouchListener {
                 cancelEdge();
                 mStartX = newX;
                 mStartY = newY;
+                mStartTime = event.getEventTime();
                 mCursorType = -1;
                 mIsLongPress = false;
                 mIsFirstMove = true;
@@ -122,21 +136,22 @@ public class OnCursorTouchListener implements View.OnTouchListener {
                 if (newX < mEdge) {
                     mTapCounter = 0;
                     mHandlerPress.removeMessages(MSG_LONG_PRESS);
+                    mEdgeDepth = getEdgeDepth(mEdge - newX);
                     if (!mIsEdge) {
-                        mIsEdge = true;
-                        mHandler.post(mTask1);
+                        startEdge(mTask1);
                     }
                 } else if (newX > v.getWidth() - mEdge) {
                     mTapCounter = 0;
                     mHandlerPress.removeMessages(MSG_LONG_PRESS);
+                    mEdgeDepth = getEdgeDepth(newX - (v.getWidth() - mEdge));
                     if (!mIsEdge) {
-                        mIsEdge = true;
-                        mHandler.post(mTask2);
+                        startEdge(mTask2);
                     }
                 } else if (numOfChars > 0) {
                     mHandlerPress.removeMessages(MSG_LONG_PRESS);
                     cancelEdge();
                     mTapCounter = 0;
+                    numOfChars = accelerate(numOfChars, distance, event.getEventTime() - mStartTime);
                     double atan2 = Math.atan2(mStartY - newY, mStartX - newX);
                     if (atan2 > -0.4 && atan2 < 1.97) {
                         if (mCursorType == -1) {
@@ -157,6 +172,7 @@ public class OnCursorTouchListener implements View.OnTouchListener {
                     }
                     mStartX = newX;
                     mStartY = newY;
+                    mStartTime = event.getEventTime();
                 } else {
                     cancelEdge();
                 }
@@ -193,12 +209,44 @@ public class OnCursorTouchListener implements View.OnTouchListener {
         return true;
     }
 
+    private void startEdge(Runnable task) {
+        mIsEdge = true;
+        mEdgeStartTime = SystemClock.uptimeMillis();
+        mHandler.post(task);
+    }
+
     private void cancelEdge() {
         if (mHandler != null) mHandler.removeCallbacks(mTask1);
         if (mHandler != null) mHandler.removeCallbacks(mTask2);
         mIsEdge = false;
     }
 
+    private float getEdgeDepth(float distanceIntoEdge) {
+        return Math.max(0, Math.min(1, distanceIntoEdge / Math.max(1, mEdge)));
+    }
+
+    /**
+     * The step grows exponentially with the dwell time at the edge (i.e. also long texts
+     * can be scrolled through), and with the depth of the finger in the edge (i.e. the user
+     * can control the speed).
+     */
+    private int getEdgeStep() {
+        long dwellMillis = SystemClock.uptimeMillis() - mEdgeStartTime;
+        double step = Math.pow(2, (double) dwellMillis / EDGE_DOUBLING_MILLIS) * (1 + (EDGE_DEPTH_ACCEL - 1) * mEdgeDepth);
+        return (int) Math.min(MAX_EDGE_STEP, Math.round(step));
+    }
+
+    /**
+     * Fast moves move the cursor by more characters than slow moves over the same distance.
+     */
+    private static int accelerate(int numOfChars, float distance, long millis) {
+        float speed = distance / Math.max(1, millis);
+        if (speed <= ACCEL_SPEED) {
+            return numOfChars;
+        }
+        return Math.round(numOfChars * Math.min(MAX_ACCEL, speed / ACCEL_SPEED));
+    }
+
     private void onMoveAux(int numOfChars, int type) {
         if (mIsLongPress) {
             onMoveSel(numOfChars, type);
@@ -9,23 +9,33 @@ public abstract class OnPressAndHoldListener implements View.OnTouchListener {
 
     private static final int TIMEOUT = ViewConfiguration.getKeyRepeatTimeout();
     private static final int DELAY = ViewConfiguration.getKeyRepeatDelay();
+    // The number of steps per repeat grows by one after this many repeats
+    private static final int ACCEL_REPEATS = 10;
+    private static final int MAX_STEPS = 4;
+
+    private int mNumOfRepeats;
 
     private Handler mHandler = new Handler();
     private Runnable mTask = new Runnable() {
         public void run() {
-            onAction();
+            mNumOfRepeats++;
+            onAction(Math.min(MAX_STEPS, 1 + mNumOfRepeats / ACCEL_REPEATS));
             mHandler.postDelayed(this, DELAY);
         }
     };
 
-    abstract void onAction();
+    /**
+     * @param numOfSteps size of the action, grows if the key is held down longer
+     */
+    abstract void onAction(int numOfSteps);
 
     public boolean onTouch(View v, MotionEvent event) {
         int action = event.getActionMasked();
         switch (action) {
             case MotionEvent.ACTION_DOWN:
+                mNumOfRepeats = 0;
                 mHandler.postDelayed(mTask, TIMEOUT);
-                onAction();
+                onAction(1);
                 v.setPressed(true);
                 break;
             case MotionEvent.ACTION_UP:
@@ -12,15 +12,18 @@ import android.preference.PreferenceManager;
 import android.speech.RecognitionListener;
 import android.speech.SpeechRecognizer;
 import android.support.annotation.NonNull;
+import android.support.v4.os.TraceCompat;
 import android.support.v7.widget.GridLayoutManager;
 import android.support.v7.widget.RecyclerView;
 import android.text.TextUtils;
 import android.util.AttributeSet;
 import android.util.DisplayMetrics;
+import android.view.Choreographer;
 import android.view.HapticFeedbackConstants;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewStub;
 import android.view.inputmethod.EditorInfo;
 import android.widget.Button;
 import android.widget.ImageButton;
@@ -42,10 +45,12 @@ import ee.ioc.phon.android.speak.ServiceLanguageChooser;
 import ee.ioc.phon.android.speak.activity.ComboSelectorActivity;
 import ee.ioc.phon.android.speak.model.CallerInfo;
 import ee.ioc.phon.android.speak.model.Combo;
+import ee.ioc.phon.android.speak.provider.RewritesStore;
+import ee.ioc.phon.android.speak.utils.Metrics;
+import ee.ioc.phon.android.speak.utils.RewriterIndex;
+import ee.ioc.phon.android.speak.utils.TaskScheduler;
 import ee.ioc.phon.android.speechutils.Extras;
 import ee.ioc.phon.android.speechutils.editor.Command;
-import ee.ioc.phon.android.speechutils.editor.CommandMatcher;
-import ee.ioc.phon.android.speechutils.editor.CommandMatcherFactory;
 import ee.ioc.phon.android.speechutils.editor.UtteranceRewriter;
 import ee.ioc.phon.android.speechutils.utils.PreferenceUtils;
 import ee.ioc.phon.android.speechutils.view.MicButton;
@@ -62,6 +67,8 @@ public class SpeechInputView extends LinearLayout {
     private TextView mTvInstruction;
     private TextView mTvMessage;
     private RecyclerView mRvClipboard;
+    private TaskScheduler.Token mClipboardToken = new TaskScheduler.Token();
+    private ViewStub mClipboardStub;
 
     private ComponentName mApp;
     private SpeechInputViewListener mListener;
@@ -73,6 +80,33 @@ public class SpeechInputView extends LinearLayout {
 
     private MicButton.State mState;
 
+    // State of the last init, used to skip the re-init if nothing relevant has changed
+    private int mKeys;
+    private long mPrefsGeneration = -1;
+    private String mClipboardKey;
+    private boolean mIsClipboardStale = true;
+
+    private final FrameUpdater mFrameUpdater = new FrameUpdater();
+
+    private final EditOpBatcher mEditOpBatcher = new EditOpBatcher() {
+        @Override
+        void onMove(int numOfChars) {
+            mListener.moveRel(numOfChars);
+            showMessageArrow(numOfChars, DASH_CUR);
+        }
+
+        @Override
+        void onMoveSel(int numOfChars, int type) {
+            mListener.moveRelSel(numOfChars, type);
+            showMessageArrow(numOfChars, DASH_SEL);
+        }
+
+        @Override
+        void onDelete(int numOfChars) {
+            mListener.onDeleteLeftChars(numOfChars);
+        }
+    };
+
     // Y (yellow i.e. not-transcribing)
     // R (red, i.e. transcribing)
     private String mBtnType = "Y";
@@ -85,6 +119,10 @@ public class SpeechInputView extends LinearLayout {
     private final static String DASH_SEL = "■■■■■■■■■■■■■■■■■■■■";
     private final static int DASH_LENGTH = DASH_CUR.length();
 
+    private final static int MESSAGE_PLAIN = 0;
+    private final static int MESSAGE_SUCCESS = 1;
+    private final static int MESSAGE_FAILURE = 2;
+
     public interface SpeechInputViewListener {
 
         void onComboChange(String language, ComponentName service);
@@ -115,7 +153,12 @@ public class SpeechInputView extends LinearLayout {
          */
         void onAction(int actionId, boolean hide);
 
-        void onDeleteLeftChar();
+        /**
+         * Delete characters to the left of the cursor.
+         *
+         * @param numOfChars number of characters to delete
+         */
+        void onDeleteLeftChars(int numOfChars);
 
         void onDeleteLastWord();
 
@@ -150,6 +193,17 @@ public class SpeechInputView extends LinearLayout {
         super(context, attrs);
     }
 
+    @Override
+    protected void onDetachedFromWindow() {
+        mFrameUpdater.cancel();
+        if (!mClipboardToken.isCancelled()) {
+            // The clipboard that was being built is rebuilt when it is shown again
+            TaskScheduler.cancel(mClipboardToken);
+            mIsClipboardStale = true;
+        }
+        super.onDetachedFromWindow();
+    }
+
     // TODO: change the content description when the button changes
     // mBImeAction.setContentDescription(mContext.getString(R.string.cdImeNewline));
     public void setListener(final SpeechInputViewListener listener, EditorInfo editorInfo) {
@@ -206,8 +260,8 @@ public class SpeechInputView extends LinearLayout {
         if (buttonDelete != null) {
             buttonDelete.setOnTouchListener(new OnPressAndHoldListener() {
                 @Override
-                public void onAction() {
-                    mListener.onDeleteLeftChar();
+                public void onAction(int numOfSteps) {
+                    mEditOpBatcher.delete(numOfSteps);
                 }
             });
         }
@@ -256,18 +310,17 @@ public class SpeechInputView extends LinearLayout {
         mOctl = new OnCursorTouchListener(edge) {
             @Override
             public void onMove(int numOfChars) {
-                mListener.moveRel(numOfChars);
-                showMessageArrow(numOfChars, DASH_CUR);
+                mEditOpBatcher.move(numOfChars);
             }
 
             @Override
             public void onMoveSel(int numOfChars, int type) {
-                mListener.moveRelSel(numOfChars, type);
-                showMessageArrow(numOfChars, DASH_SEL);
+                mEditOpBatcher.moveSel(numOfChars, type);
             }
 
             @Override
             public void onLongPress() {
+                mEditOpBatcher.flush();
                 // Selects current word.
                 // The selection can be later changed, e.g. include punctuation.
                 mListener.onExtendSel("\\w+");
@@ -289,7 +342,7 @@ public class SpeechInputView extends LinearLayout {
             public void onDown() {
                 mBImeKeyboard.setVisibility(View.INVISIBLE);
                 mBImeAction.setVisibility(View.INVISIBLE);
-                if (mRvClipboard.getVisibility() == View.GONE) {
+                if (!isClipboardShown()) {
                     mBImeStartStop.setVisibility(View.INVISIBLE);
                     setVisibility(mTvInstruction, View.INVISIBLE);
                     if (mBComboSelector != null) {
@@ -304,10 +357,11 @@ public class SpeechInputView extends LinearLayout {
 
             @Override
             public void onUp() {
+                mEditOpBatcher.flush();
                 showMessage("");
                 mBImeKeyboard.setVisibility(View.VISIBLE);
                 mBImeAction.setVisibility(View.VISIBLE);
-                if (mRvClipboard.getVisibility() == View.GONE) {
+                if (!isClipboardShown()) {
                     mBImeStartStop.setVisibility(View.VISIBLE);
                     setVisibility(mTvInstruction, View.VISIBLE);
                     if (mBComboSelector != null) {
@@ -335,6 +389,32 @@ public class SpeechInputView extends LinearLayout {
     }
 
     public void init(int keys, CallerInfo callerInfo, int swipeType) {
+        init(keys, callerInfo, swipeType, -1);
+    }
+
+    /**
+     * Initializes the view. If the keys, the swipe type and the generation of the settings are the
+     * same as in the previous call, then only the caller info is updated, i.e. moving between
+     * the fields of a form does not recreate the recognizer, the combo list, etc.
+     *
+     * @param prefsGeneration changes whenever the settings change, -1 disables the incremental init
+     */
+    public void init(int keys, CallerInfo callerInfo, int swipeType, long prefsGeneration) {
+        if (prefsGeneration >= 0 && mSlc != null && prefsGeneration == mPrefsGeneration
+                && keys == mKeys && swipeType == mSwipeType) {
+            mSlc.setCallerInfo(callerInfo);
+            updateServiceLanguage(mSlc.getSpeechRecognizer());
+            if (mRvClipboard != null) {
+                mRvClipboard.setVisibility(View.GONE);
+            }
+            showMessage("");
+            Metrics.inc("ime.init.incremental");
+            return;
+        }
+        Metrics.inc("ime.init.full");
+        TraceCompat.beginSection("SpeechInputView.init");
+        mKeys = keys;
+        mPrefsGeneration = prefsGeneration;
         mSwipeType = swipeType;
         // These controls are optional (i.e. can be null),
         // except for mBImeStartStop (TODO: which should also be optional)
@@ -345,19 +425,20 @@ public class SpeechInputView extends LinearLayout {
         mBComboSelector = findViewById(R.id.tvComboSelector);
         mTvInstruction = findViewById(R.id.tvInstruction);
         mTvMessage = findViewById(R.id.tvMessage);
+        // The clipboard is inflated from its stub when it is shown for the first time
         mRvClipboard = findViewById(R.id.rvClipboard);
-
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getContext());
-
-        if (mRvClipboard != null) {
+        if (mRvClipboard == null) {
+            mClipboardStub = findViewById(R.id.stubClipboard);
+        } else {
             mRvClipboard.setVisibility(View.GONE);
-            mRvClipboard.setHasFixedSize(true);
-            // TODO: make span count configurable
-            mRvClipboard.setLayoutManager(new GridLayoutManager(getContext(), 3));
         }
 
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getContext());
+
         // TODO: check for null? (test by deinstalling a recognizer but not changing K6nele settings)
+        TraceCompat.beginSection("ServiceLanguageChooser");
         mSlc = new ServiceLanguageChooser(getContext(), prefs, keys, callerInfo);
+        TraceCompat.endSection();
         if (mBComboSelector != null) {
             if (mSlc.size() > 1) {
                 mBComboSelector.setVisibility(View.VISIBLE);
@@ -450,6 +531,7 @@ public class SpeechInputView extends LinearLayout {
                 return true;
             });
         }
+        TraceCompat.endSection();
     }
 
     public void start() {
@@ -474,35 +556,50 @@ public class SpeechInputView extends LinearLayout {
 
     public void showMessage(CharSequence message) {
         if (mTvMessage != null) {
-            if (message == null || message.length() == 0) {
-                setText(mTvMessage, "");
-            } else {
-                mTvMessage.setEllipsize(TextUtils.TruncateAt.START);
-                mTvMessage.setPaintFlags(mTvMessage.getPaintFlags() & ~Paint.STRIKE_THRU_TEXT_FLAG & ~Paint.UNDERLINE_TEXT_FLAG);
-                setText(mTvMessage, message);
-            }
+            mFrameUpdater.setMessage(message, MESSAGE_PLAIN);
         }
     }
 
     public void showMessage(CharSequence message, boolean isSuccess) {
         if (mTvMessage != null) {
-            if (message == null || message.length() == 0) {
-                setText(mTvMessage, "");
+            mFrameUpdater.setMessage(message, isSuccess ? MESSAGE_SUCCESS : MESSAGE_FAILURE);
+        }
+    }
+
+    /**
+     * Must be called on the UI thread.
+     */
+    private void applyMessage(CharSequence message, int type) {
+        if (mTvMessage == null || mTvMessage.getVisibility() == View.GONE) {
+            return;
+        }
+        if (message == null || message.length() == 0) {
+            mTvMessage.setText("");
+        } else {
+            int flags = mTvMessage.getPaintFlags();
+            if (type == MESSAGE_PLAIN) {
+                mTvMessage.setEllipsize(TextUtils.TruncateAt.START);
+                flags = flags & ~Paint.STRIKE_THRU_TEXT_FLAG & ~Paint.UNDERLINE_TEXT_FLAG;
             } else {
                 mTvMessage.setEllipsize(TextUtils.TruncateAt.MIDDLE);
-                if (isSuccess) {
-                    mTvMessage.setPaintFlags(mTvMessage.getPaintFlags() & (~Paint.STRIKE_THRU_TEXT_FLAG) | Paint.UNDERLINE_TEXT_FLAG);
+                if (type == MESSAGE_SUCCESS) {
+                    flags = flags & (~Paint.STRIKE_THRU_TEXT_FLAG) | Paint.UNDERLINE_TEXT_FLAG;
                 } else {
-                    mTvMessage.setPaintFlags(mTvMessage.getPaintFlags() & (~Paint.UNDERLINE_TEXT_FLAG) | Paint.STRIKE_THRU_TEXT_FLAG);
+                    flags = flags & (~Paint.UNDERLINE_TEXT_FLAG) | Paint.STRIKE_THRU_TEXT_FLAG;
                 }
-                setText(mTvMessage, message);
             }
+            mTvMessage.setPaintFlags(flags);
+            mTvMessage.setText(message);
         }
     }
 
 
     private void toggleClipboard() {
-        if (mRvClipboard.getVisibility() == View.GONE) {
+        if (!isClipboardShown()) {
+            if (inflateClipboard() == null) {
+                return;
+            }
+            updateClipboard();
             setVisibilityKeyboard(View.GONE);
             mRvClipboard.setVisibility(View.VISIBLE);
         } else {
@@ -511,11 +608,71 @@ public class SpeechInputView extends LinearLayout {
         }
     }
 
+    private boolean isClipboardShown() {
+        return mRvClipboard != null && mRvClipboard.getVisibility() != View.GONE;
+    }
+
+    private RecyclerView inflateClipboard() {
+        if (mRvClipboard == null && mClipboardStub != null) {
+            TraceCompat.beginSection("inflateClipboard");
+            mRvClipboard = (RecyclerView) mClipboardStub.inflate();
+            mClipboardStub = null;
+            mRvClipboard.setHasFixedSize(true);
+            // TODO: make span count configurable
+            mRvClipboard.setLayoutManager(new GridLayoutManager(getContext(), 3));
+            TraceCompat.endSection();
+        }
+        return mRvClipboard;
+    }
+
+    /**
+     * Rebuilds the clipboard if it is out of date. Reading and parsing the rewrite tables is expensive,
+     * thus this is done only when the clipboard is shown, and in the background.
+     */
+    private void updateClipboard() {
+        if (mIsClipboardStale || mRvClipboard.getAdapter() == null) {
+            mIsClipboardStale = false;
+            TaskScheduler.cancel(mClipboardToken);
+            final TaskScheduler.Token token = new TaskScheduler.Token();
+            mClipboardToken = token;
+            final String language = mSlc.getLanguage();
+            final ComponentName service = mSlc.getService();
+            final ComponentName app = mApp;
+            TaskScheduler.post(TaskScheduler.Lane.IO, token, () -> {
+                TraceCompat.beginSection("ClipboardAdapter");
+                final ClipboardAdapter adapter = new ClipboardAdapter(language, service, app);
+                TraceCompat.endSection();
+                post(() -> {
+                    // Unless a newer clipboard is being built
+                    if (!token.isCancelled() && mRvClipboard != null) {
+                        mRvClipboard.setAdapter(adapter);
+                    }
+                });
+            });
+        }
+    }
+
+    /**
+     * Marks the clipboard as out of date, e.g. after one of its rewrite tables has changed.
+     * It is rebuilt right away only if it is shown.
+     */
+    public void invalidateClipboard() {
+        mIsClipboardStale = true;
+        if (isClipboardShown()) {
+            updateClipboard();
+        }
+    }
+
     private void makeComboChange() {
         mListener.onComboChange(mSlc.getLanguage(), mSlc.getService());
-        if (mRvClipboard != null) {
-            final CommandMatcher commandMatcher = CommandMatcherFactory.createCommandFilter(mSlc.getLanguage(), mSlc.getService(), mApp);
-            mRvClipboard.setAdapter(new ClipboardAdapter(commandMatcher));
+        // The clipboard is rebuilt only if the settings, the combo, or the app has changed
+        String clipboardKey = mPrefsGeneration < 0 ? null : mPrefsGeneration + "/" + mSlc.getCombo() + "/" + mApp;
+        if (clipboardKey == null || !clipboardKey.equals(mClipboardKey)) {
+            mClipboardKey = clipboardKey;
+            mIsClipboardStale = true;
+        }
+        if (isClipboardShown()) {
+            updateClipboard();
         }
     }
 
@@ -598,7 +755,7 @@ public class SpeechInputView extends LinearLayout {
 
     private void setGuiState(MicButton.State state) {
         mState = state;
-        setMicButtonState(mBImeStartStop, mState);
+        mFrameUpdater.setState(state);
     }
 
     private void setGuiInitState(int message) {
@@ -652,18 +809,6 @@ public class SpeechInputView extends LinearLayout {
         }
     }
 
-    private static void setMicButtonVolumeLevel(final MicButton button, final float rmsdB) {
-        if (button != null) {
-            button.post(() -> button.setVolumeLevel(rmsdB));
-        }
-    }
-
-    private static void setMicButtonState(final MicButton button, final MicButton.State state) {
-        if (button != null) {
-            button.post(() -> button.setState(state));
-        }
-    }
-
     private static void setVisibility(final View view, final int visibility) {
         if (view != null && view.getVisibility() != View.GONE) {
             view.post(() -> view.setVisibility(visibility));
@@ -824,7 +969,7 @@ public class SpeechInputView extends LinearLayout {
         @Override
         public void onRmsChanged(float rmsdB) {
             //Log.i("onRmsChanged");
-            setMicButtonVolumeLevel(mBImeStartStop, rmsdB);
+            mFrameUpdater.setVolumeLevel(rmsdB);
         }
 
         @Override
@@ -834,6 +979,103 @@ public class SpeechInputView extends LinearLayout {
         }
     }
 
+    /**
+     * Coalesces the updates of the mic button (state, volume level) and of the message view,
+     * and applies the latest values at most once per display frame. The updates can come in
+     * from any thread, e.g. RMS changes arrive dozens of times per second, i.e. often more
+     * frequently than the display can show them.
+     */
+    private class FrameUpdater implements Choreographer.FrameCallback {
+
+        private final Choreographer mChoreographer = Choreographer.getInstance();
+
+        private MicButton.State mPendingState;
+        private float mPendingVolumeLevel;
+        private boolean mIsVolumeLevelPending;
+        private CharSequence mPendingMessage;
+        private int mPendingMessageType;
+        private boolean mIsMessagePending;
+        private boolean mIsScheduled;
+
+        synchronized void setState(MicButton.State state) {
+            if (mPendingState != null) {
+                Metrics.inc("ime.frame.dropped");
+            }
+            mPendingState = state;
+            schedule();
+        }
+
+        synchronized void setVolumeLevel(float rmsdB) {
+            if (mIsVolumeLevelPending) {
+                Metrics.inc("ime.frame.dropped");
+            }
+            mPendingVolumeLevel = rmsdB;
+            mIsVolumeLevelPending = true;
+            schedule();
+        }
+
+        synchronized void setMessage(CharSequence message, int type) {
+            if (mIsMessagePending) {
+                Metrics.inc("ime.frame.dropped");
+            }
+            mPendingMessage = message;
+            mPendingMessageType = type;
+            mIsMessagePending = true;
+            schedule();
+        }
+
+        synchronized void cancel() {
+            mChoreographer.removeFrameCallback(this);
+            mIsScheduled = false;
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            MicButton.State state;
+            float volumeLevel;
+            boolean isVolumeLevelPending;
+            CharSequence message;
+            int messageType;
+            boolean isMessagePending;
+            synchronized (this) {
+                mIsScheduled = false;
+                state = mPendingState;
+                volumeLevel = mPendingVolumeLevel;
+                isVolumeLevelPending = mIsVolumeLevelPending;
+                message = mPendingMessage;
+                messageType = mPendingMessageType;
+                isMessagePending = mIsMessagePending;
+                mPendingState = null;
+                mIsVolumeLevelPending = false;
+                mPendingMessage = null;
+                mIsMessagePending = false;
+            }
+            if (mBImeStartStop != null) {
+                // The state is applied first because the button ignores the volume in some states
+                if (state != null) {
+                    mBImeStartStop.setState(state);
+                    Metrics.inc("ime.frame.applied");
+                }
+                if (isVolumeLevelPending) {
+                    mBImeStartStop.setVolumeLevel(volumeLevel);
+                    Metrics.inc("ime.frame.applied");
+                }
+            }
+            if (isMessagePending) {
+                applyMessage(message, messageType);
+                Metrics.inc("ime.frame.applied");
+            }
+            Metrics.inc("ime.frame.frames");
+        }
+
+        private void schedule() {
+            if (!mIsScheduled) {
+                mIsScheduled = true;
+                mChoreographer.postFrameCallback(this);
+            }
+        }
+    }
+
     private class ClipboardAdapter extends RecyclerView.Adapter<ClipboardAdapter.MyViewHolder> {
         private final List<String> mDataset;
         private final Map<String, String> mClipboard;
@@ -855,7 +1097,7 @@ public class SpeechInputView extends LinearLayout {
          * TODO: improve dealing with nulls
          * TODO: support named clipboards
          */
-        public ClipboardAdapter(CommandMatcher commandMatcher) {
+        public ClipboardAdapter(String language, ComponentName service, ComponentName app) {
             Context context = getContext();
             mPrefs = PreferenceManager.getDefaultSharedPreferences(context);
             mRes = getResources();
@@ -866,13 +1108,13 @@ public class SpeechInputView extends LinearLayout {
             // TODO: defaults should be a list (not a set that needs to be sorted)
             Arrays.sort(names);
             for (String def : names) {
-                String rewritesAsStr = PreferenceUtils.getPrefMapEntry(mPrefs, mRes, R.string.keyRewritesMap, def);
+                String rewritesAsStr = RewritesStore.getInstance(context).get(def);
                 if (rewritesAsStr == null) {
                     // TODO: show error
                     mDataset.add("[" + def + " (null)] ☞");
                 } else {
                     mDataset.add("[" + def + " ] ☞");
-                    UtteranceRewriter ur = new UtteranceRewriter(rewritesAsStr, commandMatcher);
+                    UtteranceRewriter ur = RewriterIndex.get(def, rewritesAsStr, language, service, app);
                     for (Command command : ur.getCommands()) {
                         String key = command.get(UtteranceRewriter.HEADER_COMMENT);
                         String val = command.get(UtteranceRewriter.HEADER_UTTERANCE);
@@ -880,7 +1122,10 @@ public class SpeechInputView extends LinearLayout {
                         val = val == null ? key : val;
                         Log.i("save to clipboard: " + key + "->" + val);
                         mDataset.add(key);
-                        mClipboard.put(key, val);
+                        // The earlier tables take precedence, as in the spoken lookup (see ClipIndex)
+                        if (!mClipboard.containsKey(key)) {
+                            mClipboard.put(key, val);
+                        }
                     }
                 }
             }
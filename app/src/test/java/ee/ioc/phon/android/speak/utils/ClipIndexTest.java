@@ -0,0 +1,182 @@
+package ee.ioc.phon.android.speak.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the approximate lookup of the clips, and benchmarks it on 10k clips.
+ */
+public class ClipIndexTest {
+
+    private static final int NUM_CLIPS = 10000;
+    private static final int NUM_LOOKUPS = 20000;
+    // Required mean and 99th percentile time of a lookup on 10k clips
+    private static final long MAX_MEAN_LOOKUP_NS = 250000;
+    private static final long MAX_P99_LOOKUP_NS = 1000000;
+
+    private ClipIndex mIndex;
+
+    @Before
+    public void setUp() {
+        mIndex = new ClipIndex();
+        mIndex.put("Meeting notes", "MN");
+        mIndex.put("Home address", "HA");
+        mIndex.put("ok", "OK");
+    }
+
+    @Test
+    public void test01() {
+        assertEquals("MN", mIndex.find("Meeting, notes!").getClip());
+        assertTrue(mIndex.find("Meeting, notes!").isExact());
+        assertEquals("OK", mIndex.find("ok").getClip());
+        assertNull(mIndex.find("xyz"));
+        assertNull(mIndex.find(null));
+    }
+
+    /**
+     * Approximate matches are reported as such.
+     */
+    @Test
+    public void test02() {
+        ClipIndex.Match match = mIndex.find("meting notes");
+        assertEquals("Meeting notes", match.getName());
+        assertEquals("MN", match.getClip());
+        assertFalse(match.isExact());
+        assertEquals("HA", mIndex.find("home adress").getClip());
+    }
+
+    /**
+     * Incremental updates.
+     */
+    @Test
+    public void test03() {
+        mIndex.remove("Meeting notes");
+        assertNull(mIndex.find("meeting notes"));
+        assertEquals(2, mIndex.size());
+        Map<String, String> clips = new LinkedHashMap<>();
+        clips.put("Home address", "HA2");
+        clips.put("Phone number", "PN");
+        mIndex.update(clips);
+        assertEquals(2, mIndex.size());
+        assertNull(mIndex.find("ok"));
+        assertEquals("HA2", mIndex.find("home address").getClip());
+        assertEquals("PN", mIndex.find("phone numbr").getClip());
+    }
+
+    /**
+     * The lookup words come from the settings, and are not regular expressions.
+     */
+    @Test
+    public void test04() {
+        Pattern pattern = ClipIndex.makeLookupPattern("paste | kleebi|a.b");
+        assertEquals("meeting notes", ClipIndex.getQuery(pattern, "Paste  meeting notes "));
+        assertEquals("märkmed", ClipIndex.getQuery(pattern, "KLEEBI märkmed"));
+        assertEquals("x", ClipIndex.getQuery(pattern, "a.b x"));
+        assertNull(ClipIndex.getQuery(pattern, "axb x"));
+        assertNull(ClipIndex.getQuery(pattern, "paste"));
+        assertNull(ClipIndex.makeLookupPattern(""));
+        assertNull(ClipIndex.makeLookupPattern(" | "));
+        assertNull(ClipIndex.getQuery(null, "paste meeting notes"));
+    }
+
+    @Test
+    public void test05() {
+        assertEquals(3, ClipIndex.getDistance("kitten", "sitting", 5));
+        assertEquals(3, ClipIndex.getDistance("kitten", "sitting", 2));
+        assertEquals(0, ClipIndex.getDistance("abc", "abc", 0));
+    }
+
+    /**
+     * Benchmark: lookups of misrecognized names (1-2 wrong letters) among 10k clips,
+     * while the index is being updated in another thread.
+     */
+    @Test
+    public void test06() throws InterruptedException {
+        Random random = new Random(1);
+        String[] words = new String[2000];
+        for (int i = 0; i < words.length; i++) {
+            StringBuilder sb = new StringBuilder();
+            int length = 3 + random.nextInt(7);
+            for (int j = 0; j < length; j++) {
+                sb.append((char) ('a' + random.nextInt(26)));
+            }
+            words[i] = sb.toString();
+        }
+        final Map<String, String> clips = new LinkedHashMap<>();
+        while (clips.size() < NUM_CLIPS) {
+            String name = words[random.nextInt(words.length)] + " " + words[random.nextInt(words.length)]
+                    + (random.nextBoolean() ? " " + words[random.nextInt(words.length)] : "");
+            clips.put(name, "clip of " + name);
+        }
+        final ClipIndex index = new ClipIndex();
+        index.update(clips);
+        assertEquals(NUM_CLIPS, index.size());
+
+        List<String> names = new ArrayList<>(clips.keySet());
+        String[] queries = new String[NUM_LOOKUPS];
+        String[] expected = new String[NUM_LOOKUPS];
+        for (int i = 0; i < NUM_LOOKUPS; i++) {
+            String name = names.get(random.nextInt(names.size()));
+            char[] chars = name.toCharArray();
+            int numErrors = 1 + (name.length() >= 12 ? 1 : 0);
+            for (int e = 0; e < numErrors; e++) {
+                int pos = random.nextInt(chars.length);
+                if (chars[pos] != ' ') {
+                    chars[pos] = (char) ('a' + random.nextInt(26));
+                }
+            }
+            queries[i] = new String(chars);
+            expected[i] = "clip of " + name;
+        }
+
+        // Updates that change 10 clips back and forth
+        final Map<String, String> changedClips = new LinkedHashMap<>(clips);
+        for (int i = 0; i < 10; i++) {
+            changedClips.remove(names.get(i));
+            changedClips.put("new clip " + i, "new " + i);
+        }
+        Thread updater = new Thread(() -> {
+            for (int i = 0; i < 20; i++) {
+                index.update(changedClips);
+                index.update(clips);
+            }
+        });
+        updater.start();
+
+        // Warmup
+        for (String query : queries) {
+            index.find(query);
+        }
+        int numCorrect = 0;
+        long[] times = new long[NUM_LOOKUPS];
+        long totalTime = 0;
+        for (int i = 0; i < NUM_LOOKUPS; i++) {
+            long startTime = System.nanoTime();
+            ClipIndex.Match match = index.find(queries[i]);
+            times[i] = System.nanoTime() - startTime;
+            totalTime += times[i];
+            if (match != null && expected[i].equals(match.getClip())) {
+                numCorrect++;
+            }
+        }
+        updater.join();
+        Arrays.sort(times);
+        assertTrue(totalTime / NUM_LOOKUPS < MAX_MEAN_LOOKUP_NS);
+        assertTrue(times[NUM_LOOKUPS * 99 / 100] < MAX_P99_LOOKUP_NS);
+        // Random names can be closer to another name, or to nothing within the maximum distance
+        assertTrue(numCorrect > NUM_LOOKUPS * 9 / 10);
+    }
+}
@@ -0,0 +1,142 @@
+package ee.ioc.phon.android.speak.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import ee.ioc.phon.android.speechutils.editor.UtteranceRewriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Differential test: the memoizing rewriter must return exactly what the tables return
+ * when they are applied one after the other to every hypothesis.
+ */
+public class MemoizingRewriterTest {
+
+    private static final String[] TABLES = {
+            "Utterance\tReplacement\n"
+                    + "\\s+\t \n"
+                    + "(?i)\\bkoma\\b\t,\n",
+            "Utterance\tReplacement\n"
+                    + " ,\t,\n"
+                    + "^a\\b\tA\n",
+            "Utterance\tReplacement\n"
+                    + "(\\d+) (\\d+)\t$1$2\n"
+    };
+
+    private static final String[] WORDS = {"a", "b", "koma", "Koma", "KOMA", "1", "2", " ", "  "};
+
+    private MemoizingRewriter mMemoizingRewriter;
+
+    @Before
+    public void setUp() {
+        mMemoizingRewriter = new MemoizingRewriter(makeRewriters());
+    }
+
+    @Test
+    public void test01() {
+        assertRewrite(Arrays.asList("a koma b", "a Koma b", "a  KOMA b", "1 2 koma"));
+    }
+
+    /**
+     * The hypotheses that differ only in what the first table normalizes reuse the rest of the tables.
+     */
+    @Test
+    public void test02() {
+        assertRewrite(Collections.singletonList("a koma b"));
+        long hits = Metrics.get("rewrite.memo.step.hit");
+        assertRewrite(Collections.singletonList("a  KOMA b"));
+        assertTrue(Metrics.get("rewrite.memo.step.hit") > hits);
+    }
+
+    /**
+     * Growing partial results (as they arrive from the recognizer), with repetitions,
+     * and the final result.
+     */
+    @Test
+    public void test03() {
+        Random random = new Random(42);
+        for (int i = 0; i < 200; i++) {
+            StringBuilder sb = new StringBuilder();
+            int length = 1 + random.nextInt(8);
+            for (int j = 0; j < length; j++) {
+                sb.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+                String partial = sb.toString().trim();
+                assertRewrite(Collections.singletonList(partial));
+                if (random.nextBoolean()) {
+                    assertRewrite(Collections.singletonList(partial));
+                }
+            }
+            assertRewrite(Arrays.asList(sb.toString().trim(), sb.toString()));
+        }
+    }
+
+    /**
+     * The leading tables without commands are applied in the background, the rest is left to the editor.
+     */
+    @Test
+    public void test04() {
+        List<UtteranceRewriter> rewriters = makeRewriters();
+        UtteranceRewriter commands = new UtteranceRewriter("Utterance\tCommand\n"
+                + "^undo$\tundo\n");
+        rewriters.add(2, commands);
+        MemoizingRewriter.EditorRewrite rewrite = new MemoizingRewriter(rewriters).rewriteForEditor("a  koma 1 2");
+        assertEquals("A, 1 2", rewrite.getText());
+        assertEquals(Arrays.asList(commands, rewriters.get(3)), rewrite.getRewriters());
+    }
+
+    /**
+     * The rules that exceeded the budget are left out of the table.
+     */
+    @Test
+    public void test05() {
+        UtteranceRewriter ur = makeRewriters().get(0);
+        assertSame(ur, RuleGuard.without(ur, Collections.singleton("x")));
+        UtteranceRewriter newUr = RuleGuard.without(ur, Collections.singleton("\\s+"));
+        assertEquals(Collections.singletonList("a  ,"), newUr.rewrite(Collections.singletonList("a  koma")));
+    }
+
+    /**
+     * The final result that equals a partial result is not rewritten (nor checked) again.
+     */
+    @Test
+    public void test06() {
+        assertRewrite(Collections.singletonList("1 koma 2"));
+        long misses = Metrics.get("rewrite.memo.step.miss");
+        assertEquals("1, 2", mMemoizingRewriter.rewriteForEditor("1 koma 2").getText());
+        assertEquals(misses, Metrics.get("rewrite.memo.step.miss"));
+    }
+
+    private void assertRewrite(List<String> texts) {
+        assertEquals(rewriteDirectly(texts), mMemoizingRewriter.rewrite(texts));
+    }
+
+    private static List<String> rewriteDirectly(List<String> texts) {
+        List<UtteranceRewriter> rewriters = makeRewriters();
+        List<String> newTexts = new ArrayList<>();
+        for (String text : texts) {
+            List<String> result = Collections.singletonList(text);
+            for (UtteranceRewriter ur : rewriters) {
+                result = ur.rewrite(result);
+            }
+            newTexts.addAll(result);
+        }
+        return newTexts;
+    }
+
+    private static List<UtteranceRewriter> makeRewriters() {
+        List<UtteranceRewriter> rewriters = new ArrayList<>();
+        for (String table : TABLES) {
+            rewriters.add(new UtteranceRewriter(table));
+        }
+        return rewriters;
+    }
+}
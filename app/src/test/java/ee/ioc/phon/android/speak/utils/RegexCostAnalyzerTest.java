@@ -0,0 +1,52 @@
+package ee.ioc.phon.android.speak.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the flagging of the utterance patterns that can backtrack catastrophically.
+ */
+public class RegexCostAnalyzerTest {
+
+    @Test
+    public void test01() {
+        assertFlagged("(a+)+b");
+        assertFlagged("(\\w+\\s?)*$");
+        assertFlagged("(a|ab)*c");
+        assertFlagged(".*a.*b.*c");
+    }
+
+    /**
+     * Unicode properties and hex escapes are single atoms, i.e. their braces are not quantifiers.
+     */
+    @Test
+    public void test02() {
+        assertFlagged("(\\p{L}+\\s?)*");
+        assertFlagged("(\\P{Lu}+)+x");
+        assertFlagged("(\\pL+ )*");
+        assertFlagged("(\\x{41}+)+");
+        assertOk("\\p{L}+");
+        assertOk("(\\p{L}\\s)+");
+        assertOk("\\p{Lu}{2,3}");
+        assertOk("\\x41+");
+    }
+
+    @Test
+    public void test03() {
+        assertOk("(?i)\\bkoma\\b");
+        assertOk("(a++)+b");
+        assertOk("[a-z]{2}");
+        assertOk("(\\d+) (\\d+)");
+        assertOk("\\Q(a+)+\\E");
+    }
+
+    private static void assertFlagged(String regex) {
+        assertTrue(regex, !RegexCostAnalyzer.analyze(regex).isEmpty());
+    }
+
+    private static void assertOk(String regex) {
+        assertEquals(regex, 0, RegexCostAnalyzer.analyze(regex).size());
+    }
+}
@@ -0,0 +1,146 @@
+package ee.ioc.phon.android.speak.utils;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the row diff of the subscribed tables, and the conditional GET-request
+ * (200 and 304 responses) against a local server.
+ */
+public class RewritesSyncTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String HEADER = "Utterance\tReplacement";
+    private static final String TABLE = HEADER + "\na\tA\nb\tB\nc\tC";
+    private static final String ETAG = "\"v1\"";
+
+    private HttpServer mServer;
+    private String mUrl;
+    private int mNumRequests;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/table.tsv", exchange -> {
+            mNumRequests++;
+            if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.sendResponseHeaders(304, -1);
+            } else {
+                byte[] body = TABLE.getBytes(UTF_8);
+                exchange.getResponseHeaders().set("ETag", ETAG);
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream os = exchange.getResponseBody();
+                os.write(body);
+                os.close();
+            }
+            exchange.close();
+        });
+        mServer.start();
+        mUrl = "http://127.0.0.1:" + mServer.getAddress().getPort() + "/table.tsv";
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+    }
+
+    /**
+     * Added and removed rows, the kept rows in the same order.
+     */
+    @Test
+    public void test01() {
+        List<String> added = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        String changedRows = RewritesSync.diff(TABLE, HEADER + "\na\tA\nc\tC\nd\tD\n", added, removed);
+        assertEquals(Collections.singletonList("d\tD"), added);
+        assertEquals(Collections.singletonList("b\tB"), removed);
+        assertEquals(HEADER + "\nd\tD\nb\tB", changedRows);
+    }
+
+    @Test
+    public void test02() {
+        List<String> added = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        assertEquals(HEADER, RewritesSync.diff(TABLE, TABLE, added, removed));
+        assertTrue(added.isEmpty());
+        assertTrue(removed.isEmpty());
+    }
+
+    /**
+     * Changed header, reordered rows, and duplicate rows cannot be expressed as a diff.
+     */
+    @Test
+    public void test03() {
+        assertNull(RewritesSync.diff(TABLE, "Utterance\tReplacement\tComment\na\tA\nb\tB\nc\tC",
+                new ArrayList<String>(), new ArrayList<String>()));
+        assertNull(RewritesSync.diff(TABLE, HEADER + "\nb\tB\na\tA\nc\tC",
+                new ArrayList<String>(), new ArrayList<String>()));
+        assertNull(RewritesSync.diff(TABLE, TABLE + "\na\tA",
+                new ArrayList<String>(), new ArrayList<String>()));
+    }
+
+    /**
+     * Tables without a header.
+     */
+    @Test
+    public void test04() {
+        List<String> added = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        assertEquals("\nc\tC", RewritesSync.diff("a\tA\nb\tB", "a\tA\nb\tB\nc\tC", added, removed));
+        assertEquals(Arrays.asList("c\tC"), added);
+        assertTrue(removed.isEmpty());
+    }
+
+    /**
+     * Without a local copy, the server returns the table (200) together with its ETag.
+     */
+    @Test
+    public void test05() throws IOException {
+        HttpClient.ConditionalResponse response = HttpClient.getIfModified(mUrl, null, null);
+        assertFalse(response.isNotModified());
+        assertArrayEquals(TABLE.getBytes(UTF_8), response.getBody());
+        assertEquals(ETAG, response.getEtag());
+        assertEquals(1, mNumRequests);
+    }
+
+    /**
+     * With the ETag of the local copy, the server returns 304, and the ETag is kept.
+     */
+    @Test
+    public void test06() throws IOException {
+        long numNotModified = Metrics.get("http.notmodified");
+        HttpClient.ConditionalResponse response = HttpClient.getIfModified(mUrl, ETAG, null);
+        assertTrue(response.isNotModified());
+        assertNull(response.getBody());
+        assertEquals(ETAG, response.getEtag());
+        assertEquals(numNotModified + 1, Metrics.get("http.notmodified"));
+    }
+
+    /**
+     * With an outdated ETag, the server returns the table.
+     */
+    @Test
+    public void test07() throws IOException {
+        HttpClient.ConditionalResponse response = HttpClient.getIfModified(mUrl, "\"v0\"", null);
+        assertFalse(response.isNotModified());
+        assertEquals(ETAG, response.getEtag());
+    }
+}
@@ -21,6 +21,14 @@ Usage:
 
     adb-pref.py prefs_developer.yml prefs_user_guide_rewrites.yml prefs_private.yml | sh
 
+With --bulk, all the preferences (of all the files) are sent to GetPutPreferenceActivity as JSON lists,
+each of which is imported at once: the URLs are fetched concurrently, all the keys are changed
+in one transaction, and a single summary is shown. The command line of "am start" is limited, i.e. the
+preferences are split into lists of at most MAX_BULK_LENGTH characters (a longer preference is sent alone). Note that integer values are then stored as
+integers (as with "adb ... --ei"), i.e. the values that are stored as strings must be quoted in the YAML.
+
+    adb-pref.py --bulk prefs_developer.yml prefs_clips.yml | sh
+
 """
 
 from __future__ import division, unicode_literals, print_function
@@ -28,11 +36,22 @@ from __future__ import division, unicode_literals, print_function
 import sys
 import argparse
 import re
+import json
 import yaml
 
+try:
+    from shlex import quote
+except ImportError:
+    from pipes import quote
+
 DEFAULT_ADB_COMMAND = 'shell'
 #DEFAULT_ADB_COMMAND = 'exec-out'
 
+ACTIVITY = 'ee.ioc.phon.android.speak/.activity.GetPutPreferenceActivity'
+
+# Max length of the JSON list in a single ADB call
+MAX_BULK_LENGTH = 8000
+
 DEFAULT_PREF_DISABLE_CONFIRMATION = {
     'key': 'keyGetPutPrefSkipUi',
     'val': True
@@ -44,6 +63,8 @@ def get_args():
     parser.add_argument('fns', metavar='FILE', type=str, nargs='*',
                         help='preference file')
     parser.add_argument('--disable-confirmation', action='store_true', dest='disable_confirmation')
+    parser.add_argument('--bulk', action='store_true', dest='bulk',
+                        help='import all the preferences at once')
     parser.add_argument('-v', '--version', action='version', version='%(prog)s v0.0.1')
     return parser.parse_args()
 
@@ -75,7 +96,33 @@ def create_adb(pref):
         val_str = '-e val "{}"'.format(escape_s(val))
         if pref.get('is_url'):
             val_str += ' --ez is_url true'
-    return 'adb {0} am start -n ee.ioc.phon.android.speak/.activity.GetPutPreferenceActivity -e key "{1}" {2}'.format(DEFAULT_ADB_COMMAND, key, val_str)
+    return 'adb {0} am start -n {1} -e key "{2}" {3}'.format(DEFAULT_ADB_COMMAND, ACTIVITY, key, val_str)
+
+
+def create_adb_bulk(prefs):
+    """Return the list of preferences as a single ADB call.
+    The JSON is quoted twice, for the local shell and for the shell on the device.
+    """
+    doc = json.dumps(prefs, separators=(',', ':'))
+    return 'adb {0} am start -n {1} --es prefs {2}'.format(DEFAULT_ADB_COMMAND, ACTIVITY, quote(quote(doc)))
+
+
+def split_bulk(prefs):
+    """Split the list of preferences into lists whose JSON is at most MAX_BULK_LENGTH characters"""
+    batches = []
+    batch = []
+    length = 2
+    for pref in prefs:
+        pref_length = len(json.dumps(pref, separators=(',', ':'))) + 1
+        if batch and length + pref_length > MAX_BULK_LENGTH:
+            batches.append(batch)
+            batch = []
+            length = 2
+        batch.append(pref)
+        length += pref_length
+    if batch:
+        batches.append(batch)
+    return batches
 
 
 def process(prefs):
@@ -88,13 +135,19 @@ def main():
     args = get_args()
     if args.disable_confirmation:
         print(create_adb(DEFAULT_PREF_DISABLE_CONFIRMATION))
+    bulk = []
     for fn in args.fns:
         with open(fn, 'r') as stream:
             try:
                 prefs = yaml.load(stream)
-                process(prefs)
+                if args.bulk:
+                    bulk.extend(prefs)
+                else:
+                    process(prefs)
             except yaml.YAMLError as exc:
                 print(exc, file=sys.stderr)
+    for batch in split_bulk(bulk):
+        print(create_adb_bulk(batch))
 
 if __name__ == "__main__":
     main()